@@ -55,6 +55,14 @@ public class AnswerPresenter extends Presenter<AnswerPresenter.AnswerUi>
 
     private static final String TAG = AnswerPresenter.class.getSimpleName();
 
+    /**
+     * Call changes which can affect whether the answer UI is shown or which answer targets it
+     * offers. Other updates are ignored by {@link #onCallChanged}.
+     */
+    private static final int ANSWER_UI_CHANGES = Call.Change.STATE | Call.Change.VIDEO_STATE
+            | Call.Change.CANNED_RESPONSES | Call.Change.SESSION_MODIFICATION
+            | Call.Change.ACCOUNT | Call.Change.CAPABILITIES;
+
     private String mCallId[] = new String[InCallServiceImpl.sPhoneCount];
     private Call mCall[] = new Call[InCallServiceImpl.sPhoneCount];
     private final CallList mCalls = CallList.getInstance();
@@ -374,8 +382,11 @@ public class AnswerPresenter extends Presenter<AnswerPresenter.AnswerUi>
     }
 
     @Override
-    public void onCallChanged(Call call) {
+    public void onCallChanged(Call call, int changes) {
         Log.d(this, "onCallStateChange() " + call + " " + this);
+        if ((changes & ANSWER_UI_CHANGES) == 0) {
+            return;
+        }
         if (call.getState() != Call.State.INCOMING) {
             boolean isUpgradePending = isVideoUpgradePending(call);
             int subId = call.getSubId();
@@ -30,11 +30,9 @@ import android.telecom.GatewayInfo;
 import android.telecom.InCallService.VideoCall;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
-import android.telecom.TelecomManager;
 import android.telecom.VideoProfile;
 import android.telephony.SubscriptionManager;
 import android.telephony.PhoneNumberUtils;
-import android.text.TextUtils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -63,6 +61,8 @@ public class Call {
         public static final int SELECT_PHONE_ACCOUNT = 12; /* Waiting for account selection */
         public static final int CONNECTING = 13;    /* Waiting for Telecomm broadcast to finish */
 
+        /* Number of states defined above; used to size tables indexed by state. */
+        public static final int COUNT = CONNECTING + 1;
 
         public static boolean isConnectingOrConnected(int state) {
             switch(state) {
@@ -133,6 +133,66 @@ public class Call {
         public static final int REQUEST_REJECTED = 5;
     }
 
+    /**
+     * Bits describing which parts of a call changed in an update. Passed to
+     * {@link CallList.CallUpdateListener}s so they only redo the work affected by a change.
+     */
+    public static class Change {
+        public static final int NONE = 0;
+        public static final int STATE = 1 << 0;
+        public static final int DISCONNECT_CAUSE = 1 << 1;
+        public static final int VIDEO_STATE = 1 << 2;
+        public static final int CHILDREN = 1 << 3;
+        public static final int PARENT = 1 << 4;
+        public static final int HANDLE = 1 << 5;
+        public static final int ACCOUNT = 1 << 6;
+        public static final int EXTRAS = 1 << 7;
+        public static final int CAPABILITIES = 1 << 8;
+        /** Any other field of {@link android.telecom.Call.Details}. */
+        public static final int DETAILS = 1 << 9;
+        public static final int VIDEO_CALL = 1 << 10;
+        public static final int ACTIVE_SUB = 1 << 11;
+        public static final int CANNED_RESPONSES = 1 << 12;
+        public static final int POST_DIAL = 1 << 13;
+        public static final int CONFERENCEABLE_CALLS = 1 << 14;
+        public static final int SESSION_MODIFICATION = 1 << 15;
+        /** Used when the cause of an update is not known. */
+        public static final int ALL = ~0;
+
+        public static String toString(int changes) {
+            if (changes == ALL) {
+                return "ALL";
+            }
+            final StringBuilder sb = new StringBuilder("[");
+            append(sb, changes, STATE, "STATE");
+            append(sb, changes, DISCONNECT_CAUSE, "DISCONNECT_CAUSE");
+            append(sb, changes, VIDEO_STATE, "VIDEO_STATE");
+            append(sb, changes, CHILDREN, "CHILDREN");
+            append(sb, changes, PARENT, "PARENT");
+            append(sb, changes, HANDLE, "HANDLE");
+            append(sb, changes, ACCOUNT, "ACCOUNT");
+            append(sb, changes, EXTRAS, "EXTRAS");
+            append(sb, changes, CAPABILITIES, "CAPABILITIES");
+            append(sb, changes, DETAILS, "DETAILS");
+            append(sb, changes, VIDEO_CALL, "VIDEO_CALL");
+            append(sb, changes, ACTIVE_SUB, "ACTIVE_SUB");
+            append(sb, changes, CANNED_RESPONSES, "CANNED_RESPONSES");
+            append(sb, changes, POST_DIAL, "POST_DIAL");
+            append(sb, changes, CONFERENCEABLE_CALLS, "CONFERENCEABLE_CALLS");
+            append(sb, changes, SESSION_MODIFICATION, "SESSION_MODIFICATION");
+            return sb.append("]").toString();
+        }
+
+        private static void append(StringBuilder sb, int changes, int bit, String name) {
+            if ((changes & bit) != 0) {
+                if (sb.length() > 1) {
+                    sb.append(" ");
+                }
+                sb.append(name);
+            }
+        }
+    }
+
     public static class VideoSettings {
         public static final int CAMERA_DIRECTION_UNKNOWN = -1;
         public static final int CAMERA_DIRECTION_FRONT_FACING =
@@ -198,7 +258,8 @@ public class Call {
                 @Override
                 public void onChildrenChanged(android.telecom.Call call,
                         List<android.telecom.Call> children) {
-                    update();
+                    update(mChildCallTracker.setChildren(children)
+                            ? Change.CHILDREN : Change.NONE);
                 }
 
                 @Override
@@ -214,7 +275,7 @@ public class Call {
                         List<String> cannedTextResponses) {
                     Log.d(this, "TelecommCallCallback onStateChanged call=" + call
                             + " cannedTextResponses=" + cannedTextResponses);
-                    update();
+                    update(Change.CANNED_RESPONSES);
                 }
 
                 @Override
@@ -222,7 +283,7 @@ public class Call {
                         String remainingPostDialSequence) {
                     Log.d(this, "TelecommCallCallback onStateChanged call=" + call
                             + " remainingPostDialSequence=" + remainingPostDialSequence);
-                    update();
+                    update(Change.POST_DIAL);
                 }
 
                 @Override
@@ -242,7 +303,7 @@ public class Call {
                 @Override
                 public void onConferenceableCallsChanged(android.telecom.Call call,
                         List<android.telecom.Call> conferenceableCalls) {
-                    update();
+                    update(Change.CONFERENCEABLE_CALLS);
                 }
             };
 
@@ -251,10 +312,25 @@ public class Call {
     private boolean mIsEmergencyCall;
     private Uri mHandle;
     private final String mId;
+    /** Numeric part of {@link #mId}, used where a compact call identifier is needed. */
+    private final int mIndex;
     private int mState = State.INVALID;
     private DisconnectCause mDisconnectCause;
     private int mSessionModificationState;
-    private final List<String> mChildCallIds = new ArrayList<>();
+    private final ChildCallTracker<android.telecom.Call> mChildCallTracker =
+            new ChildCallTracker<>(new ChildCallTracker.Resolver<android.telecom.Call>() {
+                @Override
+                public String resolve(android.telecom.Call child) {
+                    final Call call = CallList.getInstance().getCallByTelecommCall(child);
+                    return call == null ? null : call.getId();
+                }
+            });
+    /** Details as of the last update, used to work out which fields changed. */
+    private android.telecom.Call.Details mLastDetails;
+    private android.telecom.Call mLastParent;
+    private VideoCall mLastVideoCall;
+    private int mLastUpdateChanges = Change.ALL;
+    private boolean mChildrenInitialized;
     private final VideoSettings mVideoSettings = new VideoSettings();
     /**
      * mModifyToVideoState is used to store requested upgrade / downgrade video state
@@ -268,6 +344,19 @@ public class Call {
     private PhoneAccountHandle mPhoneAccountHandle;
     private boolean mIsOutgoing = false;
 
+    /**
+     * Subscription id parsed from {@link #mPhoneAccountHandle} whenever the handle changes, so
+     * that DSDA lookups do not have to parse it again. Set to
+     * {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if the account id is not numeric.
+     */
+    private int mAccountSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+    /**
+     * Indicates whether the call has no phone account handle or is placed over a SIP account, in
+     * which case it is shown regardless of the active subscription.
+     */
+    private boolean mIsSubscriptionAgnostic = true;
+
     /**
      * Indicates whether the phone account associated with this call supports specifying a call
      * subject.
@@ -280,13 +369,15 @@ public class Call {
     @NeededForTesting
     Call(int state) {
         mTelecommCall = null;
-        mId = ID_PREFIX + Integer.toString(sIdCounter++);
+        mIndex = sIdCounter++;
+        mId = ID_PREFIX + Integer.toString(mIndex);
         setState(state);
     }
 
     public Call(android.telecom.Call telecommCall) {
         mTelecommCall = telecommCall;
-        mId = ID_PREFIX + Integer.toString(sIdCounter++);
+        mIndex = sIdCounter++;
+        mId = ID_PREFIX + Integer.toString(mIndex);
 
         updateFromTelecommCall();
         mTelecommCall.registerCallback(mTelecomCallCallback);
@@ -296,6 +387,14 @@ public class Call {
         return mTelecommCall;
     }
 
+    /**
+     * @return Bit mask of {@link Change} values describing what changed in the most recent
+     *      update from the telecom call.
+     */
+    public int getLastUpdateChanges() {
+        return mLastUpdateChanges;
+    }
+
     /**
      * @return video settings of the call, null if the call is not a video call.
      * @see VideoProfile
@@ -305,22 +404,64 @@ public class Call {
     }
 
     private void update() {
+        update(Change.NONE);
+    }
+
+    /**
+     * Refreshes the call from its telecom call and reports the update to the call list.
+     *
+     * @param knownChanges Changes already known to the caller which cannot be detected by
+     *      comparing the telecom call against its previous state.
+     */
+    private void update(int knownChanges) {
         Trace.beginSection("Update");
         int oldState = getState();
-        updateFromTelecommCall();
+        final int changes = updateFromTelecommCall() | knownChanges;
+        mLastUpdateChanges = changes;
+        CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_UPDATED, this,
+                oldState, getState());
         if (oldState != getState() && getState() == Call.State.DISCONNECTED) {
+            CallbackTrace.getInstance().record(CallbackTrace.OP_DISCONNECTED, this, changes);
             CallList.getInstance().onDisconnect(this);
         } else {
-            CallList.getInstance().onUpdate(this);
+            CallbackTrace.getInstance().record(CallbackTrace.OP_UPDATED, this, changes);
+            CallList.getInstance().onUpdate(this, changes);
         }
         Trace.endSection();
     }
 
-    private void updateFromTelecommCall() {
+    /**
+     * Copies the state of the telecom call into this call.
+     *
+     * @return A bit mask of {@link Change} values describing what changed.
+     */
+    private int updateFromTelecommCall() {
         Log.d(this, "updateFromTelecommCall: " + mTelecommCall.toString());
+        int changes = Change.NONE;
+        final android.telecom.Call.Details details = mTelecommCall.getDetails();
+        final android.telecom.Call.Details lastDetails = mLastDetails;
+        mLastDetails = details;
+
+        final int oldState = mState;
         setState(translateState(mTelecommCall.getState()));
-        setDisconnectCause(mTelecommCall.getDetails().getDisconnectCause());
-        mIsActiveSub = mTelecommCall.isActive();
+        if (oldState != mState) {
+            changes |= Change.STATE;
+        }
+        if (mTelecommCall.getParent() != mLastParent) {
+            mLastParent = mTelecommCall.getParent();
+            changes |= Change.PARENT | Change.STATE;
+        }
+
+        if (!Objects.equals(mDisconnectCause, details.getDisconnectCause())) {
+            changes |= Change.DISCONNECT_CAUSE;
+        }
+        setDisconnectCause(details.getDisconnectCause());
+
+        final boolean isActiveSub = mTelecommCall.isActive();
+        if (isActiveSub != mIsActiveSub) {
+            changes |= Change.ACTIVE_SUB;
+        }
+        mIsActiveSub = isActiveSub;
 
         if (mTelecommCall.getVideoCall() != null) {
             if (mVideoCallCallback == null) {
@@ -328,19 +469,27 @@ public class Call {
             }
             mTelecommCall.getVideoCall().registerCallback(mVideoCallCallback);
         }
+        if (mTelecommCall.getVideoCall() != mLastVideoCall) {
+            mLastVideoCall = mTelecommCall.getVideoCall();
+            changes |= Change.VIDEO_CALL;
+        }
 
-        mChildCallIds.clear();
-        for (int i = 0; i < mTelecommCall.getChildren().size(); i++) {
-            mChildCallIds.add(
-                    CallList.getInstance().getCallByTelecommCall(
-                            mTelecommCall.getChildren().get(i)).getId());
+        // Children are normally tracked from onChildrenChanged; only look at them here for the
+        // initial update, or if a child could not be matched to its call last time.
+        if (!mChildrenInitialized || !mChildCallTracker.isResolved()) {
+            mChildrenInitialized = true;
+            if (mChildCallTracker.setChildren(mTelecommCall.getChildren())) {
+                changes |= Change.CHILDREN;
+            }
         }
 
-        updateFromCallExtras(mTelecommCall.getDetails().getExtras());
+        changes |= getDetailsChanges(lastDetails, details);
+
+        updateFromCallExtras(details.getExtras());
 
         // If the handle of the call has changed, update state for the call determining if it is an
         // emergency call.
-        Uri newHandle = mTelecommCall.getDetails().getHandle();
+        Uri newHandle = details.getHandle();
         if (!Objects.equals(mHandle, newHandle)) {
             mHandle = newHandle;
             updateEmergencyCallState();
@@ -348,19 +497,97 @@ public class Call {
 
         // If the phone account handle of the call is set, cache capability bit indicating whether
         // the phone account supports call subjects.
-        PhoneAccountHandle newPhoneAccountHandle = mTelecommCall.getDetails().getAccountHandle();
+        PhoneAccountHandle newPhoneAccountHandle = details.getAccountHandle();
         if (!Objects.equals(mPhoneAccountHandle, newPhoneAccountHandle)) {
             mPhoneAccountHandle = newPhoneAccountHandle;
+            updateAccountSubId();
 
-            if (mPhoneAccountHandle != null) {
-                TelecomManager mgr = InCallPresenter.getInstance().getTelecomManager();
-                PhoneAccount phoneAccount = mgr.getPhoneAccount(mPhoneAccountHandle);
-                if (phoneAccount != null) {
-                    mIsCallSubjectSupported = phoneAccount.hasCapabilities(
-                            PhoneAccount.CAPABILITY_CALL_SUBJECT);
-                }
+            final PhoneAccountCache.Entry account =
+                    PhoneAccountCache.getInstance().get(mPhoneAccountHandle);
+            if (account != null) {
+                mIsCallSubjectSupported = account.hasCapabilities(
+                        PhoneAccount.CAPABILITY_CALL_SUBJECT);
             }
         }
+        return changes;
+    }
+
+    /**
+     * Compares two versions of the call details.
+     *
+     * @return A bit mask of {@link Change} values describing the differences.
+     */
+    private static int getDetailsChanges(android.telecom.Call.Details oldDetails,
+            android.telecom.Call.Details newDetails) {
+        if (oldDetails == null) {
+            return Change.ALL;
+        }
+        if (oldDetails == newDetails || Objects.equals(oldDetails, newDetails)) {
+            return Change.NONE;
+        }
+
+        // Details.equals() covers every field; anything not broken out below is reported as a
+        // generic details change.
+        int changes = Change.DETAILS;
+        if (oldDetails.getVideoState() != newDetails.getVideoState()) {
+            changes |= Change.VIDEO_STATE;
+        }
+        if (!Objects.equals(oldDetails.getHandle(), newDetails.getHandle())
+                || oldDetails.getHandlePresentation() != newDetails.getHandlePresentation()) {
+            changes |= Change.HANDLE;
+        }
+        if (!Objects.equals(oldDetails.getAccountHandle(), newDetails.getAccountHandle())) {
+            changes |= Change.ACCOUNT;
+        }
+        if (oldDetails.getCallCapabilities() != newDetails.getCallCapabilities()
+                || oldDetails.getCallProperties() != newDetails.getCallProperties()) {
+            changes |= Change.CAPABILITIES;
+        }
+        if (!areBundlesEqual(oldDetails.getExtras(), newDetails.getExtras())
+                || !areBundlesEqual(oldDetails.getIntentExtras(),
+                        newDetails.getIntentExtras())) {
+            changes |= Change.EXTRAS;
+        }
+        return changes;
+    }
+
+    private static boolean areBundlesEqual(Bundle bundle, Bundle newBundle) {
+        if (bundle == null || newBundle == null) {
+            return bundle == newBundle;
+        }
+        if (bundle.size() != newBundle.size()) {
+            return false;
+        }
+        for (String key : bundle.keySet()) {
+            if (key != null && !Objects.equals(bundle.get(key), newBundle.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the subscription id out of the current phone account handle.
+     */
+    private void updateAccountSubId() {
+        if (mPhoneAccountHandle == null) {
+            mAccountSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+            mIsSubscriptionAgnostic = true;
+            return;
+        }
+
+        final String id = mPhoneAccountHandle.getId();
+        mIsSubscriptionAgnostic = id != null && id.contains("sip");
+        mAccountSubId = PhoneAccountCache.parseSubId(mPhoneAccountHandle);
+    }
+
+    /**
+     * Used only to give mock calls a phone account.
+     */
+    @NeededForTesting
+    void setAccountSubId(int subId) {
+        mAccountSubId = subId;
+        mIsSubscriptionAgnostic = subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     }
 
     /**
@@ -462,6 +689,32 @@ public class Call {
         return mId;
     }
 
+    /**
+     * @return A number identifying this call, unique for the lifetime of the process.
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return The {@link #getIndex} of the call with the given id, or -1 if {@code id} is not
+     *      a call id. Does not allocate, so it can be used while recording a trace.
+     */
+    static int getIndexFromId(String id) {
+        if (id == null || id.length() == ID_PREFIX.length() || !id.startsWith(ID_PREFIX)) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = ID_PREFIX.length(); i < id.length(); i++) {
+            final char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
     public String getNumber() {
         if (mTelecommCall == null) {
             return null;
@@ -607,6 +860,14 @@ public class Call {
         return (capabilities == (capabilities & mTelecommCall.getDetails().getCallCapabilities()));
     }
 
+    /**
+     * @return The {@link android.telecom.Call.Details} capabilities of the call, without the
+     *      adjustments made by {@link #can}.
+     */
+    int getCallCapabilities() {
+        return mTelecommCall.getDetails().getCallCapabilities();
+    }
+
     public boolean hasProperty(int property) {
         return mTelecommCall.getDetails().hasProperty(property);
     }
@@ -660,14 +921,9 @@ public class Call {
     }
 
     public int getSubId() {
-        PhoneAccountHandle ph = getAccountHandle();
-        if (ph != null) {
-            try {
-                if (ph.getId() != null ) {
-                    return Integer.parseInt(getAccountHandle().getId());
-                }
-            } catch (NumberFormatException e) {
-                Log.w(this,"sub Id is not a number " + e);
+        if (mPhoneAccountHandle != null) {
+            if (mAccountSubId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                return mAccountSubId;
             }
             return SubscriptionManager.getDefaultVoiceSubId();
         } else {
@@ -675,18 +931,42 @@ public class Call {
         }
     }
 
+    /**
+     * @return The subscription id parsed from the call's phone account handle, or
+     *      {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if there is no handle or its id
+     *      is not numeric.
+     */
+    int getAccountSubId() {
+        return mAccountSubId;
+    }
+
+    /**
+     * @return {@code true} if the call should be shown for the given subscription, either
+     *      because it belongs to it or because it is not tied to a subscription at all.
+     */
+    boolean isVisibleOnSub(int subId) {
+        return mIsSubscriptionAgnostic
+                || (mAccountSubId != SubscriptionManager.INVALID_SUBSCRIPTION_ID
+                        && mAccountSubId == subId);
+    }
+
     public VideoCall getVideoCall() {
         return mTelecommCall == null ? null : mTelecommCall.getVideoCall();
     }
 
+    /**
+     * @return An immutable list of the ids of the conference children of this call.
+     */
     public List<String> getChildCallIds() {
-        return mChildCallIds;
+        return mChildCallTracker.getChildIds();
     }
 
     public String getParentId() {
         android.telecom.Call parentCall = mTelecommCall.getParent();
         if (parentCall != null) {
-            return CallList.getInstance().getCallByTelecommCall(parentCall).getId();
+            final Call parent = CallList.getInstance().getCallByTelecommCall(parentCall);
+            // The parent may not have been added yet.
+            return parent == null ? null : parent.getId();
         }
         return null;
     }
@@ -719,7 +999,7 @@ public class Call {
 
         Log.d(this, "setSessionModificationTo - mSessionModificationState="
             + mSessionModificationState + " video state= " + videoState);
-        update();
+        update(Change.SESSION_MODIFICATION);
     }
 
     /**
@@ -772,7 +1052,7 @@ public class Call {
         return call1.getId().equals(call2.getId());
     }
 
-    public static boolean areSameNumber(Call call1, Call call2) {
+    public static boolean areSameNumber(Context context, Call call1, Call call2) {
         if (call1 == null && call2 == null) {
             return true;
         } else if (call1 == null || call2 == null) {
@@ -780,7 +1060,8 @@ public class Call {
         }
 
         // otherwise compare call Numbers
-        return TextUtils.equals(call1.getNumber(), call2.getNumber());
+        return NumberNormalizer.getInstance(context).areSameNumber(call1.getNumber(),
+                call2.getNumber());
     }
 
     public int getSessionModificationState() {
@@ -801,7 +1082,7 @@ public class Call {
                 State.toString(getState()),
                 android.telecom.Call.Details
                         .capabilitiesToString(mTelecommCall.getDetails().getCallCapabilities()),
-                mChildCallIds,
+                mChildCallTracker.getChildIds(),
                 getParentId(),
                 this.mTelecommCall.getConferenceableCalls(),
                 VideoProfile.videoStateToString(mTelecommCall.getDetails().getVideoState()),
@@ -27,12 +27,11 @@ import android.os.Bundle;
 import android.telecom.Call.Details;
 import android.os.SystemClock;
 import android.telecom.DisconnectCause;
-import android.telecom.PhoneAccount;
-import android.telecom.PhoneAccountHandle;
 import android.telecom.StatusHints;
 import android.telecom.TelecomManager;
 import android.telecom.VideoProfile;
 import android.telephony.PhoneNumberUtils;
+import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.view.accessibility.AccessibilityManager;
 
@@ -231,10 +230,10 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         Log.d(this, "Secondary call: " + secondary);
 
         final boolean primaryChanged = !(Call.areSame(mPrimary, primary) &&
-                Call.areSameNumber(mPrimary, primary));
+                Call.areSameNumber(mContext, mPrimary, primary));
         final boolean primaryForwardedChanged = isForwarded(mPrimary) != isForwarded(primary);
         final boolean secondaryChanged = !(Call.areSame(mSecondary, secondary) &&
-                Call.areSameNumber(mSecondary, secondary));
+                Call.areSameNumber(mContext, mSecondary, secondary));
         final boolean shouldShowCallSubject = shouldShowCallSubject(mPrimary);
 
         mSecondary = secondary;
@@ -343,7 +342,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     }
 
     @Override
-    public void onCallChanged(Call call) {
+    public void onCallChanged(Call call, int changes) {
         // No-op; specific call updates handled elsewhere.
     }
 
@@ -398,13 +397,10 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         // If it's an emergency call, and they're not populating the callback number,
         // then try to fall back to the phone sub info (to hopefully get the SIM's
         // number directly from the telephony layer).
-        PhoneAccountHandle accountHandle = mPrimary.getAccountHandle();
-        if (accountHandle != null) {
-            TelecomManager mgr = InCallPresenter.getInstance().getTelecomManager();
-            PhoneAccount account = mgr.getPhoneAccount(accountHandle);
-            if (account != null) {
-                return getNumberFromHandle(account.getSubscriptionAddress());
-            }
+        final PhoneAccountCache.Entry account =
+                PhoneAccountCache.getInstance().get(mPrimary.getAccountHandle());
+        if (account != null) {
+            return getNumberFromHandle(account.getSubscriptionAddress());
         }
         return null;
     }
@@ -658,17 +654,10 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     }
 
     private int getSubscriptionId() {
-        PhoneAccountHandle accountHandle = mPrimary.getAccountHandle();
-        if (accountHandle != null) {
-            try{
-                return Integer.parseInt(accountHandle.getId());
-            } catch (NumberFormatException ex) {
-                // handle id is not an int, device might not have sim in it
-                Log.w(TAG, "Unable to parse phone account handle " + accountHandle.getId() + " as" +
-                        " an int");
-            }
-        }
-        return 0;
+        // The sub id is parsed from the phone account handle when the handle changes; it is
+        // invalid if the handle id is not an int, e.g. when the device has no sim in it.
+        final int subId = mPrimary.getAccountSubId();
+        return subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID ? 0 : subId;
     }
 
     private void updatePrimaryDisplayInfo() {
@@ -817,12 +806,8 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     /**
      * Gets the phone account to display for a call.
      */
-    private PhoneAccount getAccountForCall(Call call) {
-        PhoneAccountHandle accountHandle = call.getAccountHandle();
-        if (accountHandle == null) {
-            return null;
-        }
-        return InCallPresenter.getInstance().getTelecomManager().getPhoneAccount(accountHandle);
+    private PhoneAccountCache.Entry getAccountForCall(Call call) {
+        return PhoneAccountCache.getInstance().get(call.getAccountHandle());
     }
 
     /**
@@ -839,10 +824,9 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
      * Return the string label to represent the call provider
      */
     private String getCallProviderLabel(Call call) {
-        PhoneAccount account = getAccountForCall(call);
-        TelecomManager mgr = InCallPresenter.getInstance().getTelecomManager();
+        PhoneAccountCache.Entry account = getAccountForCall(call);
         if (account != null && !TextUtils.isEmpty(account.getLabel())
-                && mgr.getCallCapablePhoneAccounts().size() > 1) {
+                && PhoneAccountCache.getInstance().getCallCapableAccountCount() > 1) {
             return account.getLabel().toString();
         }
         return null;
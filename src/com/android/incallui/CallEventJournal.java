@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size journal of call lifecycle events, kept so that misbehaving calls can be diagnosed
+ * from a dumpsys of the in-call service. Records are stored in preallocated primitive arrays
+ * used as a ring buffer, so recording an event never allocates; once full, the oldest records
+ * are overwritten.
+ */
+public class CallEventJournal {
+
+    /* Event codes */
+    public static final int EVENT_CALL_ADDED = 1;
+    public static final int EVENT_CALL_UPDATED = 2;
+    public static final int EVENT_CALL_DISCONNECTED = 3;
+    public static final int EVENT_CALL_REMOVED = 4;
+    /** InCallPresenter.startOrFinishUi; states are {@link InCallPresenter.InCallState} ordinals. */
+    public static final int EVENT_UI_STATE = 5;
+
+    /** Call index used for events which do not concern a single call. */
+    public static final int NO_CALL = -1;
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private static CallEventJournal sInstance = new CallEventJournal(DEFAULT_CAPACITY);
+
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    private final int[] mCallIndices;
+    private final byte[] mEvents;
+    private final byte[] mOldStates;
+    private final byte[] mNewStates;
+    private final int[] mVideoStates;
+    /** Index the next record is written to. */
+    private int mHead;
+    /** Number of records written so far; the journal holds the last {@link #mCapacity}. */
+    private long mCount;
+
+    public static CallEventJournal getInstance() {
+        return sInstance;
+    }
+
+    CallEventJournal(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mCallIndices = new int[capacity];
+        mEvents = new byte[capacity];
+        mOldStates = new byte[capacity];
+        mNewStates = new byte[capacity];
+        mVideoStates = new int[capacity];
+    }
+
+    /**
+     * Records an event for a call.
+     */
+    public void record(int event, Call call, int oldState, int newState) {
+        record(event, call.getIndex(), oldState, newState,
+                call.getTelecommCall() == null ? 0 : call.getVideoState());
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param event One of the {@code EVENT_} constants.
+     * @param callIndex The {@link Call#getIndex()} of the call, or {@link #NO_CALL}.
+     * @param oldState The state before the event.
+     * @param newState The state after the event.
+     * @param videoState The video state of the call, if any.
+     */
+    public synchronized void record(int event, int callIndex, int oldState, int newState,
+            int videoState) {
+        final int i = mHead;
+        mTimestamps[i] = SystemClock.elapsedRealtime();
+        mCallIndices[i] = callIndex;
+        mEvents[i] = (byte) event;
+        mOldStates[i] = (byte) oldState;
+        mNewStates[i] = (byte) newState;
+        mVideoStates[i] = videoState;
+        mHead = (i + 1) % mCapacity;
+        mCount++;
+    }
+
+    /**
+     * @return The number of records currently held.
+     */
+    public synchronized int size() {
+        return (int) Math.min(mCount, mCapacity);
+    }
+
+    /**
+     * @return The total number of records written, including overwritten ones.
+     */
+    public synchronized long getTotalCount() {
+        return mCount;
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Writes the journal, oldest record first, one record per line:
+     * {@code <elapsed ms> <call index> <event> <old state>-><new state> v<video state>}.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        final int size = size();
+        pw.println("CallEventJournal: " + size + " of " + mCount + " records");
+        int i = (mHead - size + mCapacity) % mCapacity;
+        for (int n = 0; n < size; n++) {
+            pw.print(mTimestamps[i]);
+            pw.print(' ');
+            pw.print(mCallIndices[i]);
+            pw.print(' ');
+            pw.print(eventToString(mEvents[i]));
+            pw.print(' ');
+            pw.print(stateToString(mEvents[i], mOldStates[i]));
+            pw.print("->");
+            pw.print(stateToString(mEvents[i], mNewStates[i]));
+            pw.print(" v");
+            pw.println(mVideoStates[i]);
+            i = (i + 1) % mCapacity;
+        }
+    }
+
+    private static String eventToString(int event) {
+        switch (event) {
+            case EVENT_CALL_ADDED:
+                return "ADDED";
+            case EVENT_CALL_UPDATED:
+                return "UPDATED";
+            case EVENT_CALL_DISCONNECTED:
+                return "DISCONNECTED";
+            case EVENT_CALL_REMOVED:
+                return "REMOVED";
+            case EVENT_UI_STATE:
+                return "UI_STATE";
+            default:
+                return "UNKNOWN(" + event + ")";
+        }
+    }
+
+    private static String stateToString(int event, int state) {
+        if (event == EVENT_UI_STATE) {
+            final InCallPresenter.InCallState[] states = InCallPresenter.InCallState.values();
+            return state >= 0 && state < states.length ? states[state].name() : "UNKNOWN";
+        }
+        return Call.State.toString(state);
+    }
+}
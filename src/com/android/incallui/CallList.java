@@ -21,9 +21,7 @@ import android.os.Message;
 import android.os.Trace;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
-import android.telecom.PhoneAccountHandle;
 import android.telephony.SubscriptionManager;
-import android.text.TextUtils;
 
 import com.android.contacts.common.testing.NeededForTesting;
 import com.google.common.base.Preconditions;
@@ -59,20 +57,48 @@ public class CallList {
     private final HashMap<String, Call> mCallById = new HashMap<>();
     private final HashMap<android.telecom.Call, Call> mCallByTelecommCall = new HashMap<>();
     private final HashMap<String, List<String>> mCallTextReponsesMap = Maps.newHashMap();
+    /**
+     * Secondary index of {@link #mCallById}, bucketed by {@link Call.State}. Each bucket holds the
+     * calls in that state in the order they entered it, so state lookups neither scan the whole
+     * map nor depend on its iteration order.
+     */
+    private final ArrayList<ArrayList<Call>> mCallsByState = new ArrayList<>(Call.State.COUNT);
+    /** The state under which each call is currently filed in {@link #mCallsByState}. */
+    private final HashMap<String, Integer> mIndexedStateById = new HashMap<>();
+    /**
+     * Secondary index of {@link #mCallById}, bucketed by the subscription id of each call's phone
+     * account. Calls without a numeric subscription id are not indexed here.
+     */
+    private final HashMap<Integer, ArrayList<Call>> mCallsBySubId = new HashMap<>();
+    /** The subscription under which each call is currently filed in {@link #mCallsBySubId}. */
+    private final HashMap<String, Integer> mIndexedSubIdById = new HashMap<>();
+    private final ListenerList<Listener> mListeners = new ListenerList<>(Listener.class);
+    private final HashMap<String, List<CallUpdateListener>> mCallUpdateListenerMap = Maps
+            .newHashMap();
     /**
      * ConcurrentHashMap constructor params: 8 is initial table size, 0.9f is
      * load factor before resizing, 1 means we only expect a single thread to
      * access the map so make only a single shard
      */
-    private final Set<Listener> mListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<Listener, Boolean>(8, 0.9f, 1));
-    private final HashMap<String, List<CallUpdateListener>> mCallUpdateListenerMap = Maps
-            .newHashMap();
     private final Set<Call> mPendingDisconnectCalls = Collections.newSetFromMap(
             new ConcurrentHashMap<Call, Boolean>(8, 0.9f, 1));
     private int mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
     private final ArrayList<ActiveSubChangeListener> mActiveSubChangeListeners =
             Lists.newArrayList();
+    private CallLifecycleObserver mCallLifecycleObserver;
+
+    /**
+     * Incremented whenever a call is added, removed or updated in the map, or the active
+     * subscription changes. Used to tell whether {@link #mSnapshot} is still current.
+     */
+    private long mVersion;
+    private CallListSnapshot mSnapshot;
+
+    /**
+     * Coalesces the generic change notifications caused by a burst of call updates (e.g. a merge)
+     * into a single fan-out per frame.
+     */
+    private CoalescingDispatcher mChangeDispatcher;
 
     /**
      * Static singleton accessor method.
@@ -87,12 +113,44 @@ public class CallList {
      */
     @NeededForTesting
     CallList() {
+        for (int i = 0; i < Call.State.COUNT; i++) {
+            mCallsByState.add(new ArrayList<Call>());
+        }
+        setChangeDispatcherClock(new CoalescingDispatcher.HandlerClock(mHandler));
+    }
+
+    /**
+     * Replaces the clock driving coalesced change notifications. Any pending notification is
+     * dropped.
+     */
+    @NeededForTesting
+    void setChangeDispatcherClock(CoalescingDispatcher.Clock clock) {
+        if (mChangeDispatcher != null) {
+            mChangeDispatcher.cancel();
+        }
+        mChangeDispatcher = new CoalescingDispatcher(clock, new Runnable() {
+            @Override
+            public void run() {
+                notifyGenericListeners();
+            }
+        });
+    }
+
+    @NeededForTesting
+    CoalescingDispatcher getChangeDispatcher() {
+        return mChangeDispatcher;
     }
 
     public void onCallAdded(android.telecom.Call telecommCall) {
         Trace.beginSection("onCallAdded");
         Call call = new Call(telecommCall);
         Log.d(this, "onCallAdded: callState=" + call.getState());
+        CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_ADDED, call,
+                Call.State.INVALID, call.getState());
+        CallbackTrace.getInstance().record(CallbackTrace.OP_ADDED, call, Call.Change.ALL);
+        if (mCallLifecycleObserver != null) {
+            mCallLifecycleObserver.onCallAdded(call);
+        }
         if (call.getState() == Call.State.INCOMING ||
                 call.getState() == Call.State.CALL_WAITING) {
             onIncoming(call, call.getCannedSmsResponses());
@@ -104,14 +162,20 @@ public class CallList {
 
     public void onCallRemoved(android.telecom.Call telecommCall) {
         if (mCallByTelecommCall.containsKey(telecommCall)) {
-            Call call = mCallByTelecommCall.get(telecommCall);
-            if (updateCallInMap(call)) {
-                Log.w(this, "Removing call not previously disconnected " + call.getId());
-            }
-            updateCallTextMap(call, null);
+            onCallRemoved(mCallByTelecommCall.get(telecommCall));
         }
     }
 
+    void onCallRemoved(Call call) {
+        CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_REMOVED, call,
+                call.getState(), call.getState());
+        CallbackTrace.getInstance().record(CallbackTrace.OP_REMOVED, call, Call.Change.NONE);
+        if (updateCallInMap(call)) {
+            Log.w(this, "Removing call not previously disconnected " + call.getId());
+        }
+        updateCallTextMap(call, null);
+    }
+
     int getPhoneId(int subId) {
         int phoneId = SubscriptionManager.getPhoneId(subId);
         if (phoneId >= InCallServiceImpl.sPhoneCount || phoneId < 0) {
@@ -128,10 +192,17 @@ public class CallList {
      * Called when a single call disconnects.
      */
     public void onDisconnect(Call call) {
+        CallEventJournal.getInstance().record(CallEventJournal.EVENT_CALL_DISCONNECTED, call,
+                call.getState(), call.getState());
         if (updateCallInMap(call)) {
             Log.i(this, "onDisconnect: " + call);
+            if (mCallLifecycleObserver != null) {
+                mCallLifecycleObserver.onCallDisconnected(call);
+            }
             // notify those listening for changes on this specific change
-            notifyCallUpdateListeners(call);
+            notifyCallUpdateListeners(call, Call.Change.ALL);
+            // deliver any coalesced change first so listeners see events in order
+            mChangeDispatcher.flush();
             // notify those listening for all disconnects
             notifyListenersOfDisconnect(call);
         }
@@ -146,9 +217,9 @@ public class CallList {
         // Update active subscription from call object. it will be set by
         // Telecomm service for incoming call and whenever active sub changes.
         if (call.mIsActiveSub) {
-            int sub = Integer.parseInt(call.getAccountHandle().getId());
+            int sub = call.getAccountSubId();
             Log.d(this, "onIncoming - sub:" + sub + " mSubId:" + mSubId);
-            if (sub != mSubId) {
+            if (sub != SubscriptionManager.INVALID_SUBSCRIPTION_ID && sub != mSubId) {
                 setActiveSubId(sub);
             }
         }
@@ -158,37 +229,54 @@ public class CallList {
         }
         updateCallTextMap(call, textMessages);
 
-        for (Listener listener : mListeners) {
+        // Incoming calls are never delayed; deliver any coalesced change ahead of them.
+        mChangeDispatcher.flush();
+        final Listener[] listeners = mListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final Listener listener = listeners[i];
             listener.onIncomingCall(call);
         }
     }
 
     public void onUpgradeToVideo(Call call){
         Log.d(this, "onUpgradeToVideo call=" + call);
-        for (Listener listener : mListeners) {
+        final Listener[] listeners = mListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final Listener listener = listeners[i];
             listener.onUpgradeToVideo(call);
         }
     }
     /**
-     * Called when a single call has changed.
+     * Called when a single call has changed in an unspecified way.
      */
     public void onUpdate(Call call) {
+        onUpdate(call, Call.Change.ALL);
+    }
+
+    /**
+     * Called when a single call has changed.
+     *
+     * @param call The call.
+     * @param changes Bit mask of {@link Call.Change} values describing what changed. Updates
+     *      which changed nothing are dropped.
+     */
+    public void onUpdate(Call call, int changes) {
+        if (changes == Call.Change.NONE) {
+            Log.v(this, "onUpdate - ignoring update with no changes " + call.getId());
+            return;
+        }
         Trace.beginSection("onUpdate");
-        PhoneAccountHandle ph = call.getAccountHandle();
-        Log.d(this, "onUpdate - " + call  + " ph:" + ph);
-        try {
-            if (call.mIsActiveSub && ph != null) {
-                int sub = Integer.parseInt(ph.getId());
-                Log.d(this, "onUpdate - sub:" + sub + " mSubId:" + mSubId);
-                if(sub != mSubId) {
-                    setActiveSubId(sub);
-                }
+        Log.d(this, "onUpdate - " + call  + " ph:" + call.getAccountHandle()
+                + " changes:" + Call.Change.toString(changes));
+        if (call.mIsActiveSub) {
+            int sub = call.getAccountSubId();
+            Log.d(this, "onUpdate - sub:" + sub + " mSubId:" + mSubId);
+            if (sub != SubscriptionManager.INVALID_SUBSCRIPTION_ID && sub != mSubId) {
+                setActiveSubId(sub);
             }
-        } catch (NumberFormatException e) {
-                Log.w(this,"Sub Id is not a number " + e);
         }
-        onUpdateCall(call);
-        notifyGenericListeners();
+        onUpdateCall(call, changes);
+        mChangeDispatcher.requestDispatch();
         Trace.endSection();
     }
 
@@ -238,11 +326,11 @@ public class CallList {
         }
     }
 
-    public void notifyCallUpdateListeners(Call call) {
+    public void notifyCallUpdateListeners(Call call, int changes) {
         final List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(call.getId());
         if (listeners != null) {
             for (CallUpdateListener listener : listeners) {
-                listener.onCallChanged(call);
+                listener.onCallChanged(call, changes);
             }
         }
     }
@@ -422,6 +510,17 @@ public class CallList {
         return mCallTextReponsesMap.get(callId);
     }
 
+    /**
+     * Returns an immutable snapshot of the current call list. The snapshot is only rebuilt once
+     * the call list has changed, so all listeners notified of a change share the same instance.
+     */
+    public CallListSnapshot getSnapshot() {
+        if (mSnapshot == null || mSnapshot.getVersion() != mVersion) {
+            mSnapshot = new CallListSnapshot(this, mVersion);
+        }
+        return mSnapshot;
+    }
+
     /**
      * Returns first call found in the call map with the specified state.
      */
@@ -441,20 +540,19 @@ public class CallList {
             return getCallWithState(state, positionToFind, getActiveSubId());
         }
 
-        Call retval = null;
-        int position = 0;
-        for (Call call : mCallById.values()) {
-            if (call.getState() == state) {
-                if (position >= positionToFind) {
-                    retval = call;
-                    break;
-                } else {
-                    position++;
-                }
-            }
-        }
+        final List<Call> calls = getCallsWithState(state);
+        return positionToFind < calls.size() ? calls.get(positionToFind) : null;
+    }
 
-        return retval;
+    /**
+     * Returns the calls with the specified state, in the order they entered that state. The
+     * returned list is owned by the call list and must not be modified.
+     */
+    List<Call> getCallsWithState(int state) {
+        if (state < 0 || state >= Call.State.COUNT) {
+            return Collections.emptyList();
+        }
+        return mCallsByState.get(state);
     }
 
     /**
@@ -475,7 +573,7 @@ public class CallList {
                 updateCallInMap(call);
             }
         }
-        notifyGenericListeners();
+        mChangeDispatcher.dispatchNow();
     }
 
     /**
@@ -495,28 +593,34 @@ public class CallList {
      * Processes an update for a single call.
      *
      * @param call The call to update.
+     * @param changes Bit mask of {@link Call.Change} values describing what changed.
      */
-    private void onUpdateCall(Call call) {
+    private void onUpdateCall(Call call, int changes) {
         Log.d(this, "\t" + call);
         if (updateCallInMap(call)) {
             Log.i(this, "onUpdate - " + call);
         }
         updateCallTextMap(call, call.getCannedSmsResponses());
-        notifyCallUpdateListeners(call);
+        notifyCallUpdateListeners(call, changes);
     }
 
     /**
      * Sends a generic notification to all listeners that something has changed.
-     * It is up to the listeners to call back to determine what changed.
+     * It is up to the listeners to call back to determine what changed. Should only be called
+     * through {@link #mChangeDispatcher}.
      */
     private void notifyGenericListeners() {
-        for (Listener listener : mListeners) {
+        final Listener[] listeners = mListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final Listener listener = listeners[i];
             listener.onCallListChange(this);
         }
     }
 
     private void notifyListenersOfDisconnect(Call call) {
-        for (Listener listener : mListeners) {
+        final Listener[] listeners = mListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final Listener listener = listeners[i];
             listener.onDisconnect(call);
         }
     }
@@ -543,21 +647,91 @@ public class CallList {
 
                 mCallById.put(call.getId(), call);
                 mCallByTelecommCall.put(call.getTelecommCall(), call);
+                indexCallState(call);
+                indexCallSubId(call);
                 updated = true;
             }
         } else if (!isCallDead(call)) {
             mCallById.put(call.getId(), call);
             mCallByTelecommCall.put(call.getTelecommCall(), call);
+            indexCallState(call);
+            indexCallSubId(call);
             updated = true;
         } else if (mCallById.containsKey(call.getId())) {
             mCallById.remove(call.getId());
             mCallByTelecommCall.remove(call.getTelecommCall());
+            unindexCallState(call);
+            unindexCallSubId(call);
             updated = true;
         }
 
+        if (updated) {
+            mVersion++;
+        }
         return updated;
     }
 
+    /**
+     * Files the call under its current state in {@link #mCallsByState}, moving it out of the
+     * bucket for its previous state if needed.
+     */
+    private void indexCallState(Call call) {
+        final int state = call.getState();
+        final Integer indexedState = mIndexedStateById.get(call.getId());
+        if (indexedState != null) {
+            if (indexedState == state) {
+                return;
+            }
+            getCallsWithState(indexedState).remove(call);
+        }
+        if (state >= 0 && state < Call.State.COUNT) {
+            mCallsByState.get(state).add(call);
+            mIndexedStateById.put(call.getId(), state);
+        } else {
+            Log.w(this, "Not indexing call with unknown state " + state);
+            mIndexedStateById.remove(call.getId());
+        }
+    }
+
+    private void unindexCallState(Call call) {
+        final Integer indexedState = mIndexedStateById.remove(call.getId());
+        if (indexedState != null) {
+            getCallsWithState(indexedState).remove(call);
+        }
+    }
+
+    /**
+     * Files the call under its subscription in {@link #mCallsBySubId}, moving it out of the
+     * bucket for its previous subscription if its phone account changed.
+     */
+    private void indexCallSubId(Call call) {
+        final int subId = call.getAccountSubId();
+        final Integer indexedSubId = mIndexedSubIdById.get(call.getId());
+        if (indexedSubId != null && indexedSubId == subId) {
+            return;
+        }
+        unindexCallSubId(call);
+        if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            ArrayList<Call> calls = mCallsBySubId.get(subId);
+            if (calls == null) {
+                calls = new ArrayList<>();
+                mCallsBySubId.put(subId, calls);
+            }
+            calls.add(call);
+            mIndexedSubIdById.put(call.getId(), subId);
+        }
+    }
+
+    private void unindexCallSubId(Call call) {
+        final Integer indexedSubId = mIndexedSubIdById.remove(call.getId());
+        if (indexedSubId != null) {
+            final ArrayList<Call> calls = mCallsBySubId.get(indexedSubId);
+            if (calls != null) {
+                calls.remove(call);
+            }
+        }
+    }
+
     private int getDelayForDisconnect(Call call) {
         Preconditions.checkState(call.getState() == Call.State.DISCONNECTED);
 
@@ -612,7 +786,7 @@ public class CallList {
         }
         call.setState(Call.State.IDLE);
         updateCallInMap(call);
-        notifyGenericListeners();
+        mChangeDispatcher.dispatchNow();
     }
 
     /**
@@ -646,7 +820,7 @@ public class CallList {
                     break;
                 case EVENT_NOTIFY_CHANGE:
                     Log.d(this, "EVENT_NOTIFY_CHANGE: ");
-                    notifyGenericListeners();
+                    mChangeDispatcher.dispatchNow();
                     for (ActiveSubChangeListener listener : mActiveSubChangeListeners) {
                         listener.onActiveSubChanged(getActiveSubId());
                     }
@@ -681,6 +855,8 @@ public class CallList {
          * states, updating information, etc. This method will NOT be called for new incoming
          * calls and for calls that switch to disconnected state. Listeners must add actions
          * to those method implementations if they want to deal with those actions.
+         * Listeners that only need to read the call list should use
+         * {@link CallList#getSnapshot()}, which is shared by all listeners of the same change.
          */
         public void onCallListChange(CallList callList);
 
@@ -693,9 +869,31 @@ public class CallList {
 
     }
 
+    /**
+     * Observer of the lifetime of calls, told about each call before any {@link Listener} so that
+     * work for the call can start before the UI does, and stop as soon as the call is gone.
+     */
+    public interface CallLifecycleObserver {
+        public void onCallAdded(Call call);
+
+        public void onCallDisconnected(Call call);
+    }
+
+    /**
+     * Sets the observer of the lifetime of calls, or removes it if {@code null}.
+     */
+    public void setCallLifecycleObserver(CallLifecycleObserver observer) {
+        mCallLifecycleObserver = observer;
+    }
+
     public interface CallUpdateListener {
-        // TODO: refactor and limit arg to be call state.  Caller info is not needed.
-        public void onCallChanged(Call call);
+        /**
+         * Notifies of a change to the call.
+         *
+         * @param call The call.
+         * @param changes Bit mask of {@link Call.Change} values describing what changed.
+         */
+        public void onCallChanged(Call call, int changes);
 
         /**
          * Notifies of a change to the session modification state for a call.
@@ -738,6 +936,7 @@ public class CallList {
             Log.d(this, "setActiveSubId, oldActiveSubId = " + mSubId +
                     " newActiveSubId = " + subId);
             mSubId = subId;
+            mVersion++;
             final Message msg = mHandler.obtainMessage(EVENT_NOTIFY_CHANGE, null);
             mHandler.sendMessage(msg);
         }
@@ -747,16 +946,11 @@ public class CallList {
      * Returns true, if any voice call is ACTIVE on the provided subscription.
      */
     boolean hasAnyLiveCall(int subId) {
-        for (Call call : mCallById.values()) {
-            PhoneAccountHandle ph = call.getAccountHandle();
-            try {
-                if (!isCallDead(call) && ph != null && (Integer.parseInt(ph.getId()) == subId)) {
-                    Log.d(this, "hasAnyLiveCall sub = " + subId);
-                    return true;
-                }
-            } catch (NumberFormatException e) {
-                Log.w(this,"Sub Id is not a number " + e);
-            }
+        // Dead calls are dropped from the index, so any indexed call is live.
+        final ArrayList<Call> calls = mCallsBySubId.get(subId);
+        if (calls != null && !calls.isEmpty()) {
+            Log.d(this, "hasAnyLiveCall sub = " + subId);
+            return true;
         }
         Log.d(this, "no active call ");
         return false;
@@ -830,36 +1024,21 @@ public class CallList {
     Call getCallWithState(int state, int positionToFind, int subId) {
         Call retval = null;
         int position = 0;
-        for (Call call : mCallById.values()) {
-            PhoneAccountHandle ph = call.getAccountHandle();
-            try {
-                if ((call.getState() == state) && ((ph == null) ||
-                        (ph != null && (ph.getId() != null) &&
-                        (ph.getId().contains("sip") ||
-                        Integer.parseInt(ph.getId()) == subId)))) {
-                    if (position >= positionToFind) {
-                        retval = call;
-                        break;
-                    } else {
-                        position++;
-                    }
+        final List<Call> calls = getCallsWithState(state);
+        for (int i = 0; i < calls.size(); i++) {
+            final Call call = calls.get(i);
+            if (call.isVisibleOnSub(subId)) {
+                if (position >= positionToFind) {
+                    retval = call;
+                    break;
+                } else {
+                    position++;
                 }
-            } catch (NumberFormatException e) {
-                   Log.w(this,"Sub Id is not a number " + e);
             }
         }
         return retval;
     }
 
-     public Call getCallWithStateAndNumber(int state, String number) {
-         for (Call call : mCallById.values()) {
-             if (TextUtils.equals(call.getNumber(), number) && call.getState() == state) {
-                 return call;
-             }
-         }
-         return null;
-    }
-
     void addActiveSubChangeListener(ActiveSubChangeListener listener) {
         Preconditions.checkNotNull(listener);
         mActiveSubChangeListeners.add(listener);
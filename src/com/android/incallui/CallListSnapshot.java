@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable view of the {@link CallList} at a given version. Listeners of the call list can
+ * share a single snapshot per change instead of each re-running the same lookups, and are
+ * guaranteed to see a consistent set of calls even if the call list changes while they are being
+ * notified. The {@link Call} objects themselves are live and not copied.
+ */
+public final class CallListSnapshot {
+    private final long mVersion;
+    private final int mActiveSubId;
+    private final List<List<Call>> mCallsByState;
+
+    private final Call mIncomingCall;
+    private final Call mWaitingForAccountCall;
+    private final Call mPendingOutgoingCall;
+    private final Call mOutgoingCall;
+    private final Call mActiveCall;
+    private final Call mBackgroundCall;
+    private final Call mSecondBackgroundCall;
+    private final Call mDisconnectingCall;
+    private final Call mDisconnectedCall;
+    private final Call mPrimaryCall;
+    private final Call mSecondaryCall;
+
+    /**
+     * Captures the current contents of the call list.
+     *
+     * @param callList The call list to capture.
+     * @param version The version of the call list being captured.
+     */
+    CallListSnapshot(CallList callList, long version) {
+        mVersion = version;
+        mActiveSubId = callList.getActiveSubId();
+
+        final List<List<Call>> callsByState = new ArrayList<>(Call.State.COUNT);
+        for (int state = 0; state < Call.State.COUNT; state++) {
+            final List<Call> calls = callList.getCallsWithState(state);
+            callsByState.add(calls.isEmpty() ? Collections.<Call>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<>(calls)));
+        }
+        mCallsByState = Collections.unmodifiableList(callsByState);
+
+        mIncomingCall = callList.getIncomingCall();
+        mWaitingForAccountCall = callList.getWaitingForAccountCall();
+        mPendingOutgoingCall = callList.getPendingOutgoingCall();
+        mOutgoingCall = callList.getOutgoingCall();
+        mActiveCall = callList.getActiveCall();
+        mBackgroundCall = callList.getBackgroundCall();
+        mSecondBackgroundCall = callList.getSecondBackgroundCall();
+        mDisconnectingCall = callList.getDisconnectingCall();
+        mDisconnectedCall = callList.getDisconnectedCall();
+
+        mPrimaryCall = findPrimaryCall();
+        mSecondaryCall = findSecondaryCall(mPrimaryCall);
+    }
+
+    /**
+     * @return The version of the call list this snapshot was taken at. Versions increase every
+     *      time a call is added, removed or updated, or the active subscription changes.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The active subscription at the time of the snapshot.
+     */
+    public int getActiveSubId() {
+        return mActiveSubId;
+    }
+
+    /**
+     * @return The calls with the specified state, in the order they entered that state.
+     */
+    public List<Call> getCallsWithState(int state) {
+        if (state < 0 || state >= Call.State.COUNT) {
+            return Collections.emptyList();
+        }
+        return mCallsByState.get(state);
+    }
+
+    public Call getIncomingCall() {
+        return mIncomingCall;
+    }
+
+    public Call getWaitingForAccountCall() {
+        return mWaitingForAccountCall;
+    }
+
+    public Call getPendingOutgoingCall() {
+        return mPendingOutgoingCall;
+    }
+
+    public Call getOutgoingCall() {
+        return mOutgoingCall;
+    }
+
+    public Call getActiveCall() {
+        return mActiveCall;
+    }
+
+    public Call getBackgroundCall() {
+        return mBackgroundCall;
+    }
+
+    public Call getSecondBackgroundCall() {
+        return mSecondBackgroundCall;
+    }
+
+    public Call getDisconnectingCall() {
+        return mDisconnectingCall;
+    }
+
+    public Call getDisconnectedCall() {
+        return mDisconnectedCall;
+    }
+
+    public Call getActiveOrBackgroundCall() {
+        return mActiveCall != null ? mActiveCall : mBackgroundCall;
+    }
+
+    /**
+     * @return The call which should be shown most prominently: an incoming call, then an
+     *      outgoing call, then the highest priority call in progress.
+     */
+    public Call getPrimaryCall() {
+        return mPrimaryCall;
+    }
+
+    /**
+     * @return The highest priority connected call other than the primary call, or {@code null}.
+     *      Disconnecting and disconnected calls are never secondary.
+     */
+    public Call getSecondaryCall() {
+        return mSecondaryCall;
+    }
+
+    public boolean hasLiveCall() {
+        return mPrimaryCall != null && mPrimaryCall != mDisconnectingCall
+                && mPrimaryCall != mDisconnectedCall;
+    }
+
+    private Call findPrimaryCall() {
+        if (mIncomingCall != null) {
+            return mIncomingCall;
+        }
+        if (mOutgoingCall != null) {
+            return mOutgoingCall;
+        }
+        if (mPendingOutgoingCall != null) {
+            return mPendingOutgoingCall;
+        }
+        return firstNotIgnored(null, mActiveCall, mDisconnectingCall, mDisconnectedCall,
+                mBackgroundCall, mSecondBackgroundCall);
+    }
+
+    private Call findSecondaryCall(Call primary) {
+        return firstNotIgnored(primary, mActiveCall, mBackgroundCall, mSecondBackgroundCall);
+    }
+
+    private static Call firstNotIgnored(Call ignore, Call... candidates) {
+        for (Call call : candidates) {
+            if (call != null && call != ignore) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "[CallListSnapshot v" + mVersion + ", sub:" + mActiveSubId
+                + ", primary:" + mPrimaryCall + ", secondary:" + mSecondaryCall + "]";
+    }
+}
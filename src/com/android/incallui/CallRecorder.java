@@ -55,6 +55,8 @@ public class CallRecorder implements CallList.Listener {
 
     private Context mContext;
     private boolean mInitialized = false;
+    /** Version of the last call list snapshot processed in {@link #onCallListChange}. */
+    private long mLastSnapshotVersion = -1;
     private ICallRecorderService mService = null;
 
     private HashSet<RecordingProgressListener> mProgressListeners =
@@ -104,6 +106,7 @@ public class CallRecorder implements CallList.Listener {
         if (mInitialized) {
             mContext.unbindService(mConnection);
             mInitialized = false;
+            mLastSnapshotVersion = -1;
         }
     }
 
@@ -202,19 +205,27 @@ public class CallRecorder implements CallList.Listener {
 
     @Override
     public void onCallListChange(final CallList callList) {
-        if (!mInitialized && callList.getActiveCall() != null) {
+        final CallListSnapshot snapshot = callList.getSnapshot();
+        if (snapshot.getVersion() == mLastSnapshotVersion) {
+            // Nothing changed since the last notification.
+            return;
+        }
+        mLastSnapshotVersion = snapshot.getVersion();
+
+        if (!mInitialized && snapshot.getActiveCall() != null) {
             // we'll come here if this is the first active call
             initialize();
         } else {
             // we can come down this branch to resume a call that was on hold
             CallRecording active = getActiveRecording();
             if (active != null) {
-                Call call = callList.getCallWithStateAndNumber(Call.State.ONHOLD,
-                        active.phoneNumber);
-                if (call != null) {
-                    // The call associated with the active recording has been placed
-                    // on hold, so stop the recording.
-                    finishRecording();
+                for (Call call : snapshot.getCallsWithState(Call.State.ONHOLD)) {
+                    if (TextUtils.equals(call.getNumber(), active.phoneNumber)) {
+                        // The call associated with the active recording has been placed
+                        // on hold, so stop the recording.
+                        finishRecording();
+                        break;
+                    }
                 }
             }
         }
@@ -30,8 +30,6 @@ package com.android.incallui;
 
 import org.codeaurora.QtiVideoCallConstants;
 import android.os.Bundle;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.List;
 
 import com.google.common.base.Preconditions;
 import com.android.incallui.InCallPresenter.InCallDetailsListener;
@@ -45,8 +43,8 @@ import com.android.incallui.InCallPresenter.InCallDetailsListener;
  */
 public class CallSubstateNotifier implements InCallDetailsListener {
 
-    private final List<InCallSubstateListener> mCallSubstateListeners =
-            new CopyOnWriteArrayList<>();
+    private final ListenerList<InCallSubstateListener> mCallSubstateListeners =
+            new ListenerList<>(InCallSubstateListener.class);
 
     private static CallSubstateNotifier sCallSubstateNotifier;
     private int mCallSubstate = QtiVideoCallConstants.CALL_SUBSTATE_NONE;
@@ -106,7 +104,9 @@ public class CallSubstateNotifier implements InCallDetailsListener {
         if (callSubstate != mCallSubstate) {
             mCallSubstate = callSubstate;
             Preconditions.checkNotNull(mCallSubstateListeners);
-            for (InCallSubstateListener listener : mCallSubstateListeners) {
+            final InCallSubstateListener[] listeners = mCallSubstateListeners.snapshot();
+            for (int i = 0; i < listeners.length; i++) {
+                final InCallSubstateListener listener = listeners[i];
                 listener.onCallSubstateChanged(call, mCallSubstate);
             }
         }
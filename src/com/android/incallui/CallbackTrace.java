@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Records the telecom events which reach {@link CallList} so that a call storm seen on a device
+ * can be replayed off-device. Recording is off by default and is controlled through the dump of
+ * {@link InCallServiceImpl}:
+ *
+ * <pre>
+ *     adb shell dumpsys activity service .InCallServiceImpl trace-start
+ *     adb shell dumpsys activity service .InCallServiceImpl trace-stop > calls.trace
+ * </pre>
+ *
+ * Each event is recorded as the state of the call after the update together with the
+ * {@link Call.Change} mask reported to the call list, which is everything needed to drive a
+ * call list with calls that have no telecom counterpart. The conference topology and the call
+ * capabilities are recorded too, since they decide how conferences are shown. Events are kept
+ * in preallocated arrays; once full, recording stops so that the trace stays contiguous.
+ *
+ * The trace is written as text, one event per line after a header:
+ * {@code <op> <elapsed ns> <call index> <state> <changes> <sub id> <flags> <capabilities>
+ * <parent index> <child indices>}, where a missing parent is {@code -1} and the child indices
+ * are separated by commas, or {@code -} if there are none.
+ */
+public class CallbackTrace {
+
+    public static final String HEADER = "# incallui callback trace v2";
+
+    /* Operations */
+    /** A call was added by telecom. */
+    public static final char OP_ADDED = 'A';
+    /** A call was updated from its telecom callback. */
+    public static final char OP_UPDATED = 'U';
+    /** An update moved a call to {@link Call.State#DISCONNECTED}. */
+    public static final char OP_DISCONNECTED = 'D';
+    /** A call was removed by telecom. */
+    public static final char OP_REMOVED = 'R';
+
+    /* Flags */
+    public static final int FLAG_ACTIVE_SUB = 1;
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    /** Child indices kept per event on average; conference updates are a minority. */
+    private static final int CHILDREN_PER_EVENT = 2;
+
+    private static CallbackTrace sInstance = new CallbackTrace(DEFAULT_CAPACITY);
+
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    private final char[] mOps;
+    private final int[] mCallIndices;
+    private final int[] mStates;
+    private final int[] mChanges;
+    private final int[] mSubIds;
+    private final int[] mFlags;
+    private final int[] mCapabilities;
+    private final int[] mParentIndices;
+    /** Where the children of each event start in {@link #mChildIndices}. */
+    private final int[] mChildStarts;
+    private final int[] mChildCounts;
+    private final int[] mChildIndices;
+    private int mChildSize;
+    private int mSize;
+    private int mDropped;
+    private volatile boolean mRecording;
+
+    public static CallbackTrace getInstance() {
+        return sInstance;
+    }
+
+    CallbackTrace(int capacity) {
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mOps = new char[capacity];
+        mCallIndices = new int[capacity];
+        mStates = new int[capacity];
+        mChanges = new int[capacity];
+        mSubIds = new int[capacity];
+        mFlags = new int[capacity];
+        mCapabilities = new int[capacity];
+        mParentIndices = new int[capacity];
+        mChildStarts = new int[capacity];
+        mChildCounts = new int[capacity];
+        mChildIndices = new int[capacity * CHILDREN_PER_EVENT];
+    }
+
+    /**
+     * Discards any previous trace and starts recording.
+     */
+    public synchronized void start() {
+        mSize = 0;
+        mChildSize = 0;
+        mDropped = 0;
+        mRecording = true;
+    }
+
+    public void stop() {
+        mRecording = false;
+    }
+
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    /**
+     * Records an event for a call, if recording.
+     *
+     * @param op One of the {@code OP_} constants.
+     * @param call The call, in its state after the event.
+     * @param changes The {@link Call.Change} mask reported for the event.
+     */
+    public void record(char op, Call call, int changes) {
+        if (!mRecording) {
+            return;
+        }
+        final List<String> childIds = call.getChildCallIds();
+        synchronized (this) {
+            if (mSize == mCapacity || mChildSize + childIds.size() > mChildIndices.length) {
+                mDropped++;
+                return;
+            }
+            final int i = mSize++;
+            mTimestamps[i] = SystemClock.elapsedRealtimeNanos();
+            mOps[i] = op;
+            mCallIndices[i] = call.getIndex();
+            mStates[i] = call.getState();
+            mChanges[i] = changes;
+            mSubIds[i] = call.getAccountSubId();
+            mFlags[i] = call.mIsActiveSub ? FLAG_ACTIVE_SUB : 0;
+            mCapabilities[i] = call.getCallCapabilities();
+            mParentIndices[i] = Call.getIndexFromId(call.getParentId());
+            mChildStarts[i] = mChildSize;
+            mChildCounts[i] = childIds.size();
+            for (int j = 0; j < childIds.size(); j++) {
+                mChildIndices[mChildSize++] = Call.getIndexFromId(childIds.get(j));
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Writes the recorded trace in the format read by the replayer.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(HEADER);
+        if (mDropped > 0) {
+            pw.println("# dropped " + mDropped + " events after the trace filled up");
+        }
+        for (int i = 0; i < mSize; i++) {
+            pw.print(mOps[i]);
+            pw.print(' ');
+            pw.print(mTimestamps[i]);
+            pw.print(' ');
+            pw.print(mCallIndices[i]);
+            pw.print(' ');
+            pw.print(mStates[i]);
+            pw.print(' ');
+            pw.print(mChanges[i]);
+            pw.print(' ');
+            pw.print(mSubIds[i]);
+            pw.print(' ');
+            pw.print(mFlags[i]);
+            pw.print(' ');
+            pw.print(mCapabilities[i]);
+            pw.print(' ');
+            pw.print(mParentIndices[i]);
+            pw.print(' ');
+            if (mChildCounts[i] == 0) {
+                pw.print('-');
+            }
+            for (int j = 0; j < mChildCounts[i]; j++) {
+                if (j > 0) {
+                    pw.print(',');
+                }
+                pw.print(mChildIndices[mChildStarts[i] + j]);
+            }
+            pw.println();
+        }
+    }
+}
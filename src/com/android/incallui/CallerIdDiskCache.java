@@ -0,0 +1,618 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.google.common.base.Objects;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Persistent caller id cache keyed by E.164 number, so that a call from a frequent caller can be
+ * labelled as soon as it arrives, before the contact and remote lookups for it complete.
+ *
+ * Records are mirrored in memory so that reads never touch the disk; the mirror is loaded in the
+ * background when the cache is created and every write goes to the database in the background.
+ * Each record remembers which source produced it, since the sources go stale at different rates:
+ * a fresh record lets the caller skip the remote lookup for its source, while a stale one is
+ * still shown until the lookup replaces it.
+ *
+ * The cache also remembers misses, i.e. sources which found nothing for a number, so that
+ * lookups which keep failing for repeat unknown callers are not repeated until the miss expires.
+ */
+public class CallerIdDiskCache {
+
+    private static final String TAG = CallerIdDiskCache.class.getSimpleName();
+
+    /* Sources, in decreasing order of priority */
+    public static final int SOURCE_CONTACTS = 1;
+    public static final int SOURCE_PHONE_NUMBER_SERVICE = 2;
+    public static final int SOURCE_LOOKUP_PROVIDER = 3;
+
+    private static final long TTL_CONTACTS = DateUtils.DAY_IN_MILLIS;
+    private static final long TTL_PHONE_NUMBER_SERVICE = 7 * DateUtils.DAY_IN_MILLIS;
+    private static final long TTL_LOOKUP_PROVIDER = 3 * DateUtils.DAY_IN_MILLIS;
+    /** Spam reports change quickly, so spam records are revalidated sooner. */
+    private static final long TTL_SPAM = DateUtils.DAY_IN_MILLIS;
+    /** Records older than this are no longer shown and are deleted on the next load. */
+    private static final long MAX_AGE = 30 * DateUtils.DAY_IN_MILLIS;
+    /** Also the most numbers misses are remembered for. */
+    static final int MAX_RECORDS = 1000;
+    /**
+     * Once over {@link #MAX_RECORDS}, the oldest records or misses are dropped down to this many,
+     * so that the next puts do not have to trim again.
+     */
+    private static final int TRIMMED_RECORDS = MAX_RECORDS * 9 / 10;
+    /** Contact misses are also dropped whenever the contacts change. */
+    private static final long TTL_MISS_CONTACTS = DateUtils.DAY_IN_MILLIS;
+    /** Remote misses may come from transient failures, so they are retried sooner. */
+    private static final long TTL_MISS_REMOTE = 6 * DateUtils.HOUR_IN_MILLIS;
+
+    private static final String DATABASE_NAME = "caller_id_cache.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "caller_id";
+    private static final String COLUMN_NUMBER = "number";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_LABEL = "label";
+    private static final String COLUMN_LOCATION = "location";
+    private static final String COLUMN_PROVIDER = "lookup_provider";
+    private static final String COLUMN_SPAM_COUNT = "spam_count";
+    private static final String COLUMN_IS_SPAM = "is_spam";
+    private static final String COLUMN_PHOTO_URI = "photo_uri";
+    private static final String COLUMN_SOURCE = "source";
+    private static final String COLUMN_UPDATED = "updated";
+
+    private static final String[] PROJECTION = new String[] {
+            COLUMN_NUMBER, COLUMN_NAME, COLUMN_LABEL, COLUMN_LOCATION, COLUMN_PROVIDER,
+            COLUMN_SPAM_COUNT, COLUMN_IS_SPAM, COLUMN_PHOTO_URI, COLUMN_SOURCE, COLUMN_UPDATED
+    };
+
+    private static final String TABLE_MISSES = "misses";
+    private static final String[] MISSES_PROJECTION = new String[] {
+            COLUMN_NUMBER, COLUMN_SOURCE, COLUMN_LOCATION, COLUMN_UPDATED
+    };
+
+    /**
+     * Caller id for one number.
+     */
+    public static final class Record {
+        public final String numberE164;
+        public final String name;
+        public final String label;
+        public final String location;
+        public final String lookupProviderName;
+        public final int spamCount;
+        public final boolean isSpam;
+        /** Content or remote URI of the photo, or {@code null}. */
+        public final String photoUri;
+        /** One of the {@code SOURCE_} constants. */
+        public final int source;
+        /** Time the record was written, in ms since the epoch. */
+        public final long updatedMillis;
+
+        public Record(String numberE164, String name, String label, String location,
+                String lookupProviderName, int spamCount, boolean isSpam, String photoUri,
+                int source, long updatedMillis) {
+            this.numberE164 = numberE164;
+            this.name = name;
+            this.label = label;
+            this.location = location;
+            this.lookupProviderName = lookupProviderName;
+            this.spamCount = spamCount;
+            this.isSpam = isSpam;
+            this.photoUri = photoUri;
+            this.source = source;
+            this.updatedMillis = updatedMillis;
+        }
+
+        /**
+         * @return {@code true} if the record is recent enough that its source need not be asked
+         *      again.
+         */
+        public boolean isFresh(long nowMillis) {
+            final long age = nowMillis - updatedMillis;
+            return age >= 0 && age < getTtl();
+        }
+
+        /**
+         * @return {@code true} if the record is too old to be shown at all.
+         */
+        public boolean isExpired(long nowMillis) {
+            return nowMillis - updatedMillis >= MAX_AGE;
+        }
+
+        private long getTtl() {
+            if (isSpam) {
+                return TTL_SPAM;
+            }
+            switch (source) {
+                case SOURCE_CONTACTS:
+                    return TTL_CONTACTS;
+                case SOURCE_PHONE_NUMBER_SERVICE:
+                    return TTL_PHONE_NUMBER_SERVICE;
+                case SOURCE_LOOKUP_PROVIDER:
+                    return TTL_LOOKUP_PROVIDER;
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("number", Log.pii(numberE164))
+                    .add("name", Log.pii(name))
+                    .add("source", source)
+                    .add("isSpam", isSpam)
+                    .add("updated", updatedMillis)
+                    .toString();
+        }
+    }
+
+    /**
+     * The sources which found nothing for one number, and when.
+     */
+    private static final class Miss {
+        /** Time of the last miss of each source, indexed by source; 0 if none. */
+        final long[] updatedMillis;
+        /** Geographical description of the number, remembered with the contacts miss. */
+        final String location;
+
+        Miss(long[] updatedMillis, String location) {
+            this.updatedMillis = updatedMillis;
+            this.location = location;
+        }
+
+        /**
+         * @return A copy of this miss with the given source added or removed.
+         */
+        Miss with(int source, long updatedMillis, String location) {
+            final long[] updated = this.updatedMillis.clone();
+            updated[source] = updatedMillis;
+            return new Miss(updated, source == SOURCE_CONTACTS ? location : this.location);
+        }
+
+        boolean isFresh(int source, long nowMillis) {
+            final long age = nowMillis - updatedMillis[source];
+            return updatedMillis[source] != 0 && age >= 0 && age < getMissTtl(source);
+        }
+
+        /**
+         * @return The time of the latest miss of any source.
+         */
+        long getLastUpdatedMillis() {
+            long last = 0;
+            for (long updated : updatedMillis) {
+                last = Math.max(last, updated);
+            }
+            return last;
+        }
+
+        static Miss empty() {
+            return new Miss(new long[SOURCE_LOOKUP_PROVIDER + 1], null);
+        }
+    }
+
+    private static long getMissTtl(int source) {
+        return source == SOURCE_CONTACTS ? TTL_MISS_CONTACTS : TTL_MISS_REMOTE;
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + COLUMN_NUMBER + " TEXT PRIMARY KEY, "
+                    + COLUMN_NAME + " TEXT, "
+                    + COLUMN_LABEL + " TEXT, "
+                    + COLUMN_LOCATION + " TEXT, "
+                    + COLUMN_PROVIDER + " TEXT, "
+                    + COLUMN_SPAM_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                    + COLUMN_IS_SPAM + " INTEGER NOT NULL DEFAULT 0, "
+                    + COLUMN_PHOTO_URI + " TEXT, "
+                    + COLUMN_SOURCE + " INTEGER NOT NULL, "
+                    + COLUMN_UPDATED + " INTEGER NOT NULL)");
+            db.execSQL("CREATE TABLE " + TABLE_MISSES + " ("
+                    + COLUMN_NUMBER + " TEXT NOT NULL, "
+                    + COLUMN_SOURCE + " INTEGER NOT NULL, "
+                    + COLUMN_LOCATION + " TEXT, "
+                    + COLUMN_UPDATED + " INTEGER NOT NULL, "
+                    + "PRIMARY KEY (" + COLUMN_NUMBER + ", " + COLUMN_SOURCE + "))");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // The cache can always be rebuilt from its sources.
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_MISSES);
+            onCreate(db);
+        }
+    }
+
+    private final DatabaseHelper mHelper;
+    private final Executor mExecutor;
+    private final ConcurrentHashMap<String, Record> mRecords = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Miss> mMisses = new ConcurrentHashMap<>();
+    private volatile boolean mLoaded;
+
+    public CallerIdDiskCache(Context context) {
+        this(context, DATABASE_NAME, CallerIdExecutor.getInstance().newSerialExecutor(
+                CallerIdExecutor.PRIORITY_BACKGROUND));
+    }
+
+    CallerIdDiskCache(Context context, String databaseName, Executor executor) {
+        mHelper = new DatabaseHelper(context, databaseName);
+        mExecutor = executor;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return {@code true} once the records written by earlier sessions are available.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * @return The record for the number, or {@code null} if there is none or it has expired.
+     */
+    public Record get(String numberE164) {
+        if (TextUtils.isEmpty(numberE164)) {
+            return null;
+        }
+        final Record record = mRecords.get(numberE164);
+        if (record != null && record.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Stores a record, replacing any previous record for its number unless that record comes from
+     * a source of higher priority and is still fresh. A miss of the source of the record for the
+     * number is forgotten either way.
+     *
+     * @return {@code true} if the record was stored.
+     */
+    public boolean put(final Record record) {
+        if (TextUtils.isEmpty(record.numberE164)) {
+            return false;
+        }
+        removeMiss(record.numberE164, record.source);
+        final Record oldRecord = mRecords.get(record.numberE164);
+        if (oldRecord != null && oldRecord.source < record.source
+                && oldRecord.isFresh(System.currentTimeMillis())) {
+            Log.d(TAG, "Keeping record of source " + oldRecord.source + " over source "
+                    + record.source);
+            return false;
+        }
+        mRecords.put(record.numberE164, record);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(record);
+            }
+        });
+        trimRecords();
+        return true;
+    }
+
+    public void remove(final String numberE164) {
+        if (TextUtils.isEmpty(numberE164)) {
+            return;
+        }
+        mRecords.remove(numberE164);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.getWritableDatabase().delete(TABLE, COLUMN_NUMBER + "=?",
+                            new String[] { numberE164 });
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Unable to remove caller id", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remembers that a source found nothing for a number.
+     *
+     * @param location Geographical description of the number, kept with contacts misses so that
+     *      it need not be computed again when the contacts query is skipped. May be null.
+     */
+    public void putMiss(final String numberE164, final int source, final String location) {
+        if (TextUtils.isEmpty(numberE164)) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final Miss miss = mMisses.get(numberE164);
+        mMisses.put(numberE164, (miss == null ? Miss.empty() : miss).with(source, now, location));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ContentValues values = new ContentValues();
+                values.put(COLUMN_NUMBER, numberE164);
+                values.put(COLUMN_SOURCE, source);
+                values.put(COLUMN_LOCATION, location);
+                values.put(COLUMN_UPDATED, now);
+                try {
+                    mHelper.getWritableDatabase().insertWithOnConflict(TABLE_MISSES, null,
+                            values, SQLiteDatabase.CONFLICT_REPLACE);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Unable to store caller id miss", e);
+                }
+            }
+        });
+        trimMisses();
+    }
+
+    /**
+     * @return {@code true} if the source recently found nothing for the number.
+     */
+    public boolean isKnownMiss(String numberE164, int source) {
+        if (TextUtils.isEmpty(numberE164)) {
+            return false;
+        }
+        final Miss miss = mMisses.get(numberE164);
+        return miss != null && miss.isFresh(source, System.currentTimeMillis());
+    }
+
+    /**
+     * @return The geographical description remembered with the contacts miss for the number, or
+     *      {@code null}.
+     */
+    public String getMissLocation(String numberE164) {
+        if (TextUtils.isEmpty(numberE164)) {
+            return null;
+        }
+        final Miss miss = mMisses.get(numberE164);
+        return miss == null ? null : miss.location;
+    }
+
+    /**
+     * Forgets the misses of a source for all numbers, e.g. the contacts misses when too many
+     * contacts change to forget the misses of their numbers one by one.
+     */
+    public void clearMisses(final int source) {
+        for (String number : mMisses.keySet()) {
+            removeMiss(number, source, false);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.getWritableDatabase().delete(TABLE_MISSES, COLUMN_SOURCE + "=?",
+                            new String[] { String.valueOf(source) });
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Unable to clear caller id misses", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets a miss of a source for a number, e.g. the contacts miss of a number which has been
+     * added to a contact.
+     */
+    public void removeMiss(String numberE164, int source) {
+        if (TextUtils.isEmpty(numberE164)) {
+            return;
+        }
+        removeMiss(numberE164, source, true);
+    }
+
+    private void removeMiss(final String numberE164, final int source, boolean write) {
+        final Miss miss = mMisses.get(numberE164);
+        if (miss == null || miss.updatedMillis[source] == 0) {
+            return;
+        }
+        mMisses.put(numberE164, miss.with(source, 0, miss.location));
+        if (!write) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.getWritableDatabase().delete(TABLE_MISSES,
+                            COLUMN_NUMBER + "=? AND " + COLUMN_SOURCE + "=?",
+                            new String[] { numberE164, String.valueOf(source) });
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Unable to remove caller id miss", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the least recently updated records once there are more than {@link #MAX_RECORDS}.
+     */
+    private void trimRecords() {
+        if (mRecords.size() <= MAX_RECORDS) {
+            return;
+        }
+        synchronized (mRecords) {
+            if (mRecords.size() <= MAX_RECORDS) {
+                return;
+            }
+            final List<Record> records = new ArrayList<>(mRecords.values());
+            Collections.sort(records, new Comparator<Record>() {
+                @Override
+                public int compare(Record lhs, Record rhs) {
+                    return Long.compare(lhs.updatedMillis, rhs.updatedMillis);
+                }
+            });
+            for (int i = 0; i < records.size() - TRIMMED_RECORDS; i++) {
+                mRecords.remove(records.get(i).numberE164, records.get(i));
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deleteOldestRecords(mHelper.getWritableDatabase(), TRIMMED_RECORDS);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Unable to trim caller ids", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the misses of the numbers which missed least recently once misses are remembered for
+     * more than {@link #MAX_RECORDS} numbers.
+     */
+    private void trimMisses() {
+        if (mMisses.size() <= MAX_RECORDS) {
+            return;
+        }
+        synchronized (mMisses) {
+            if (mMisses.size() <= MAX_RECORDS) {
+                return;
+            }
+            final List<Map.Entry<String, Miss>> misses = new ArrayList<>(mMisses.entrySet());
+            Collections.sort(misses, new Comparator<Map.Entry<String, Miss>>() {
+                @Override
+                public int compare(Map.Entry<String, Miss> lhs, Map.Entry<String, Miss> rhs) {
+                    return Long.compare(lhs.getValue().getLastUpdatedMillis(),
+                            rhs.getValue().getLastUpdatedMillis());
+                }
+            });
+            for (int i = 0; i < misses.size() - TRIMMED_RECORDS; i++) {
+                mMisses.remove(misses.get(i).getKey(), misses.get(i).getValue());
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.getWritableDatabase().delete(TABLE_MISSES, COLUMN_NUMBER
+                            + " NOT IN (SELECT " + COLUMN_NUMBER + " FROM " + TABLE_MISSES
+                            + " GROUP BY " + COLUMN_NUMBER + " ORDER BY MAX(" + COLUMN_UPDATED
+                            + ") DESC LIMIT " + TRIMMED_RECORDS + ")", null);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Unable to trim caller id misses", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps only the most recently updated records in the database.
+     */
+    private static void deleteOldestRecords(SQLiteDatabase db, int count) {
+        db.delete(TABLE, COLUMN_NUMBER + " NOT IN (SELECT " + COLUMN_NUMBER + " FROM "
+                + TABLE + " ORDER BY " + COLUMN_UPDATED + " DESC LIMIT " + count + ")", null);
+    }
+
+    private void load() {
+        final long now = System.currentTimeMillis();
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.delete(TABLE, COLUMN_UPDATED + "<?", new String[] { String.valueOf(now - MAX_AGE) });
+            deleteOldestRecords(db, MAX_RECORDS);
+
+            final Cursor cursor = db.query(TABLE, PROJECTION, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final Record record = new Record(cursor.getString(0), cursor.getString(1),
+                            cursor.getString(2), cursor.getString(3), cursor.getString(4),
+                            cursor.getInt(5), cursor.getInt(6) != 0, cursor.getString(7),
+                            cursor.getInt(8), cursor.getLong(9));
+                    // Records written since the cache was created are newer.
+                    mRecords.putIfAbsent(record.numberE164, record);
+                }
+            } finally {
+                cursor.close();
+            }
+            loadMisses(db, now);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to load caller id cache", e);
+        }
+        mLoaded = true;
+        Log.d(TAG, "Loaded " + mRecords.size() + " caller ids");
+    }
+
+    private void loadMisses(SQLiteDatabase db, long now) {
+        db.delete(TABLE_MISSES, COLUMN_UPDATED + "<?",
+                new String[] { String.valueOf(now - TTL_MISS_CONTACTS) });
+        final Cursor cursor = db.query(TABLE_MISSES, MISSES_PROJECTION, null, null, null, null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                final String number = cursor.getString(0);
+                final int source = cursor.getInt(1);
+                if (source < SOURCE_CONTACTS || source > SOURCE_LOOKUP_PROVIDER) {
+                    continue;
+                }
+                final Miss miss = mMisses.get(number);
+                if (miss != null && miss.updatedMillis[source] != 0) {
+                    // Misses recorded since the cache was created are newer.
+                    continue;
+                }
+                mMisses.put(number, (miss == null ? Miss.empty() : miss)
+                        .with(source, cursor.getLong(3), cursor.getString(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void write(Record record) {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_NUMBER, record.numberE164);
+        values.put(COLUMN_NAME, record.name);
+        values.put(COLUMN_LABEL, record.label);
+        values.put(COLUMN_LOCATION, record.location);
+        values.put(COLUMN_PROVIDER, record.lookupProviderName);
+        values.put(COLUMN_SPAM_COUNT, record.spamCount);
+        values.put(COLUMN_IS_SPAM, record.isSpam ? 1 : 0);
+        values.put(COLUMN_PHOTO_URI, record.photoUri);
+        values.put(COLUMN_SOURCE, record.source);
+        values.put(COLUMN_UPDATED, record.updatedMillis);
+        try {
+            mHelper.getWritableDatabase().insertWithOnConflict(TABLE, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to store caller id", e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Process;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small pool of background threads dedicated to caller id work (contact photos, plugin info,
+ * caches), so that it neither waits behind nor delays the rest of the process on the shared
+ * AsyncTask executor. Queued work runs in priority order, so that the lookup for a ringing call
+ * is never stuck behind the lookups for held calls or conference participants; work of equal
+ * priority runs in submission order.
+ */
+public class CallerIdExecutor {
+
+    /* Priorities, most urgent first */
+    /** Work for an incoming or waiting call. */
+    public static final int PRIORITY_INCOMING = 0;
+    /** Work for the active or outgoing call. */
+    public static final int PRIORITY_PRIMARY = 1;
+    /** Work for other calls, e.g. held calls. */
+    public static final int PRIORITY_SECONDARY = 2;
+    /** Work for conference participants. */
+    public static final int PRIORITY_CONFERENCE = 3;
+    /** Work nobody is waiting for, e.g. cache maintenance. */
+    public static final int PRIORITY_BACKGROUND = 4;
+
+    private static final int THREAD_COUNT = 2;
+
+    private static CallerIdExecutor sInstance;
+
+    /**
+     * Queued work, ordered by priority then submission order.
+     */
+    private static final class PrioritizedTask
+            implements Runnable, Comparable<PrioritizedTask> {
+        final int mPriority;
+        final long mSequence;
+        final Runnable mTask;
+
+        PrioritizedTask(int priority, long sequence, Runnable task) {
+            mPriority = priority;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Runs its tasks one at a time, in order, on the pool.
+     */
+    private final class SerialExecutor implements Executor {
+        private final int mPriority;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private Runnable mActive;
+
+        SerialExecutor(int priority) {
+            mPriority = priority;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable task) {
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if (mActive != null) {
+                CallerIdExecutor.this.execute(mPriority, mActive);
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor mPool;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    public static synchronized CallerIdExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallerIdExecutor();
+        }
+        return sInstance;
+    }
+
+    private CallerIdExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mPool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "CallerIdWorker #" + threadCount.incrementAndGet());
+                    }
+                });
+        // Threads are only kept while there is caller id work.
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param priority One of the {@code PRIORITY_} constants.
+     */
+    public void execute(int priority, Runnable task) {
+        mPool.execute(new PrioritizedTask(priority, mSequence.getAndIncrement(), task));
+        final int depth = mPool.getQueue().size();
+        int max;
+        while (depth > (max = mMaxQueueDepth.get())
+                && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            // Retry until the high water mark is at least the current depth.
+        }
+    }
+
+    /**
+     * @return An executor queueing its tasks at the given priority, e.g. for
+     *      {@link android.os.AsyncTask#executeOnExecutor}.
+     */
+    public Executor forPriority(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                CallerIdExecutor.this.execute(priority, task);
+            }
+        };
+    }
+
+    /**
+     * @return An executor running its tasks one at a time in submission order, at the given
+     *      priority.
+     */
+    public Executor newSerialExecutor(int priority) {
+        return new SerialExecutor(priority);
+    }
+
+    /**
+     * @return The number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return mPool.getQueue().size();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("CallerIdExecutor: queued=" + getQueueDepth()
+                + " maxQueued=" + mMaxQueueDepth.get()
+                + " active=" + mPool.getActiveCount()
+                + " completed=" + mPool.getCompletedTaskCount());
+    }
+}
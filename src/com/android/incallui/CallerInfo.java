@@ -23,7 +23,6 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.Bundle;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
@@ -31,13 +30,14 @@ import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.RawContacts;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LongSparseArray;
 
 import com.google.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
-import com.google.i18n.phonenumbers.NumberParseException;
-import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.Objects;
 
 /**
  * Looks up caller information for the given phone number.
@@ -47,9 +47,6 @@ import java.util.Locale;
 public class CallerInfo {
     private static final String TAG = "CallerInfo";
 
-    private static final Uri CONTENT_URI = Uri.parse("content://geocoded_location/location");
-    private static final String METHOD_GET_LOCATION = "getLocation";
-    private static final String RESULT_LOCATION = "location";
     /**
      * Please note that, any one of these member variables can be null,
      * and any accesses to them should be prepared to handle such a case.
@@ -169,6 +166,16 @@ public class CallerInfo {
      * number. The returned CallerInfo is null if no number is supplied.
      */
     public static CallerInfo getCallerInfo(Context context, Uri contactRef, Cursor cursor) {
+        return getCallerInfo(context, contactRef, getPersonIdColumnName(contactRef), cursor);
+    }
+
+    /**
+     * getCallerInfo given a Cursor, for callers which know what kind of URI they queried.
+     * @param personIdColumn the column holding the contact id in cursors returned for the URI,
+     *        or null if there is none
+     */
+    static CallerInfo getCallerInfo(Context context, Uri contactRef, String personIdColumn,
+            Cursor cursor) {
         CallerInfo info = new CallerInfo();
         info.photoResource = 0;
         info.phoneLabel = null;
@@ -186,55 +193,46 @@ public class CallerInfo {
                 // care of here. Maybe we should store it in the
                 // CallerInfo object as well.
 
-                int columnIndex;
+                final ColumnPlan plan = ColumnPlan.get(personIdColumn, cursor);
 
                 // Look for the name
-                columnIndex = cursor.getColumnIndex(PhoneLookup.DISPLAY_NAME);
-                if (columnIndex != -1) {
-                    info.name = cursor.getString(columnIndex);
+                if (plan.mDisplayName != -1) {
+                    info.name = cursor.getString(plan.mDisplayName);
                 }
 
                 // Look for the number
-                columnIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
-                if (columnIndex != -1) {
-                    info.phoneNumber = cursor.getString(columnIndex);
+                if (plan.mNumber != -1) {
+                    info.phoneNumber = cursor.getString(plan.mNumber);
                 }
 
                 // Look for the normalized number
-                columnIndex = cursor.getColumnIndex(PhoneLookup.NORMALIZED_NUMBER);
-                if (columnIndex != -1) {
-                    info.normalizedNumber = cursor.getString(columnIndex);
+                if (plan.mNormalizedNumber != -1) {
+                    info.normalizedNumber = cursor.getString(plan.mNormalizedNumber);
                 }
 
                 // Look for the label/type combo
-                columnIndex = cursor.getColumnIndex(PhoneLookup.LABEL);
-                if (columnIndex != -1) {
-                    int typeColumnIndex = cursor.getColumnIndex(PhoneLookup.TYPE);
-                    if (typeColumnIndex != -1) {
-                        info.numberType = cursor.getInt(typeColumnIndex);
-                        info.numberLabel = cursor.getString(columnIndex);
-                        info.phoneLabel = Phone.getTypeLabel(context.getResources(),
-                                info.numberType, info.numberLabel)
-                                .toString();
-                    }
+                if (plan.mLabel != -1 && plan.mType != -1) {
+                    info.numberType = cursor.getInt(plan.mType);
+                    info.numberLabel = cursor.getString(plan.mLabel);
+                    info.phoneLabel = Phone.getTypeLabel(context.getResources(),
+                            info.numberType, info.numberLabel)
+                            .toString();
                 }
 
                 // Look for the person_id.
-                columnIndex = getColumnIndexForPersonId(contactRef, cursor);
-                if (columnIndex != -1) {
-                    final long contactId = cursor.getLong(columnIndex);
+                if (plan.mPersonId != -1) {
+                    final long contactId = cursor.getLong(plan.mPersonId);
                     if (contactId != 0 && !Contacts.isEnterpriseContactId(contactId)) {
                         info.contactIdOrZero = contactId;
                         Log.v(TAG, "==> got info.contactIdOrZero: " + info.contactIdOrZero);
 
                         // cache the lookup key for later use with person_id to create lookup URIs
-                        columnIndex = cursor.getColumnIndex(PhoneLookup.LOOKUP_KEY);
-                        if (columnIndex != -1) {
-                            info.lookupKeyOrNull = cursor.getString(columnIndex);
+                        if (plan.mLookupKey != -1) {
+                            info.lookupKeyOrNull = cursor.getString(plan.mLookupKey);
                         }
                     }
                 } else {
-                    // No valid columnIndex, so we can't look up person_id.
+                    // No valid column, so we can't look up person_id.
                     Log.v(TAG, "Couldn't find contactId column for " + contactRef);
                     // Watch out: this means that anything that depends on
                     // person_id will be broken (like contact photo lookups in
@@ -242,27 +240,20 @@ public class CallerInfo {
                 }
 
                 // Display photo URI.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.PHOTO_URI);
-                if ((columnIndex != -1) && (cursor.getString(columnIndex) != null)) {
-                    info.contactDisplayPhotoUri = Uri.parse(cursor.getString(columnIndex));
-                } else {
-                    info.contactDisplayPhotoUri = null;
-                }
+                final String photoUri =
+                        plan.mPhotoUri != -1 ? cursor.getString(plan.mPhotoUri) : null;
+                info.contactDisplayPhotoUri = photoUri != null ? Uri.parse(photoUri) : null;
 
                 // look for the custom ringtone, create from the string stored
                 // in the database.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.CUSTOM_RINGTONE);
-                if ((columnIndex != -1) && (cursor.getString(columnIndex) != null)) {
-                    info.contactRingtoneUri = Uri.parse(cursor.getString(columnIndex));
-                } else {
-                    info.contactRingtoneUri = null;
-                }
+                final String ringtoneUri =
+                        plan.mCustomRingtone != -1 ? cursor.getString(plan.mCustomRingtone) : null;
+                info.contactRingtoneUri = ringtoneUri != null ? Uri.parse(ringtoneUri) : null;
 
                 // look for the send to voicemail flag, set it to true only
                 // under certain circumstances.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.SEND_TO_VOICEMAIL);
-                info.shouldSendToVoicemail = (columnIndex != -1) &&
-                        ((cursor.getInt(columnIndex)) == 1);
+                info.shouldSendToVoicemail = (plan.mSendToVoicemail != -1) &&
+                        ((cursor.getInt(plan.mSendToVoicemail)) == 1);
                 info.contactExists = true;
             }
             cursor.close();
@@ -279,16 +270,166 @@ public class CallerInfo {
      * getCallerInfo given a URI, look up in the call-log database
      * for the uri unique key.
      * @param context the context used to get the ContentResolver
-     * @param contactRef the URI used to lookup caller id
+     * @param contactRef the {@link PhoneLookup} URI used to lookup caller id
      * @return the CallerInfo which contains the caller id for the given
      * number. The returned CallerInfo is null if no number is supplied.
      */
     private static CallerInfo getCallerInfo(Context context, Uri contactRef) {
 
-        return getCallerInfo(context, contactRef,
+        return getCallerInfo(context, contactRef, PHONE_LOOKUP_PERSON_ID_COLUMN,
                 context.getContentResolver().query(contactRef, null, null, null, null));
     }
 
+    /**
+     * Column holding the contact id in cursors returned by {@link PhoneLookup}, for callers
+     * which only query it.
+     */
+    static final String PHONE_LOOKUP_PERSON_ID_COLUMN = PhoneLookup._ID;
+
+    /**
+     * Indexes of the columns read by {@link #getCallerInfo(Context, Uri, Cursor)}, or -1 for
+     * missing columns. Looking columns up by name is a linear search of the cursor's columns,
+     * so plans are cached by the person id column and the columns of the cursor, which are
+     * the same for every lookup through PhoneLookup. Plans are found by the number of columns
+     * and a hash of their names, and reused only if the names are equal; a cursor read again
+     * is matched on the identity of its column array alone.
+     */
+    static final class ColumnPlan {
+        /** Cursor shapes seen in practice are few; this only guards against unbounded growth. */
+        private static final int MAX_PLANS = 8;
+        private static final LongSparseArray<ColumnPlan> sPlans = new LongSparseArray<>();
+        private static String[] sLastColumnNames;
+        private static String sLastPersonIdColumn;
+        private static ColumnPlan sLastPlan;
+
+        private final String mPersonIdColumn;
+        private final String[] mColumnNames;
+        final int mDisplayName;
+        final int mNumber;
+        final int mNormalizedNumber;
+        final int mLabel;
+        final int mType;
+        final int mPersonId;
+        final int mLookupKey;
+        final int mPhotoUri;
+        final int mCustomRingtone;
+        final int mSendToVoicemail;
+
+        private ColumnPlan(String personIdColumn, Cursor cursor) {
+            mPersonIdColumn = personIdColumn;
+            mColumnNames = cursor.getColumnNames();
+            mDisplayName = cursor.getColumnIndex(PhoneLookup.DISPLAY_NAME);
+            mNumber = cursor.getColumnIndex(PhoneLookup.NUMBER);
+            mNormalizedNumber = cursor.getColumnIndex(PhoneLookup.NORMALIZED_NUMBER);
+            mLabel = cursor.getColumnIndex(PhoneLookup.LABEL);
+            mType = cursor.getColumnIndex(PhoneLookup.TYPE);
+            mPersonId = personIdColumn != null ? cursor.getColumnIndex(personIdColumn) : -1;
+            mLookupKey = cursor.getColumnIndex(PhoneLookup.LOOKUP_KEY);
+            mPhotoUri = cursor.getColumnIndex(PhoneLookup.PHOTO_URI);
+            mCustomRingtone = cursor.getColumnIndex(PhoneLookup.CUSTOM_RINGTONE);
+            mSendToVoicemail = cursor.getColumnIndex(PhoneLookup.SEND_TO_VOICEMAIL);
+        }
+
+        /**
+         * @param personIdColumn The column holding the contact id, as returned by
+         *      {@link #getPersonIdColumnName} for the URI queried.
+         * @return The plan for the cursor, resolving it only if no cursor of the same shape
+         *      has been seen before.
+         */
+        static ColumnPlan get(String personIdColumn, Cursor cursor) {
+            final String[] columnNames = cursor.getColumnNames();
+            synchronized (sPlans) {
+                if (columnNames == sLastColumnNames
+                        && TextUtils.equals(personIdColumn, sLastPersonIdColumn)) {
+                    return sLastPlan;
+                }
+                final int hash = 31 * Objects.hashCode(personIdColumn)
+                        + Arrays.hashCode(columnNames);
+                final long key = ((long) columnNames.length << 32) | (hash & 0xffffffffL);
+                ColumnPlan plan = sPlans.get(key);
+                if (plan == null || !plan.matches(personIdColumn, columnNames)) {
+                    if (sPlans.size() >= MAX_PLANS) {
+                        sPlans.clear();
+                    }
+                    plan = new ColumnPlan(personIdColumn, cursor);
+                    sPlans.put(key, plan);
+                }
+                sLastColumnNames = columnNames;
+                sLastPersonIdColumn = personIdColumn;
+                sLastPlan = plan;
+                return plan;
+            }
+        }
+
+        private boolean matches(String personIdColumn, String[] columnNames) {
+            return TextUtils.equals(personIdColumn, mPersonIdColumn)
+                    && Arrays.equals(columnNames, mColumnNames);
+        }
+
+        /**
+         * @return A plan resolved from scratch, bypassing the cache.
+         */
+        static ColumnPlan resolve(String personIdColumn, Cursor cursor) {
+            return new ColumnPlan(personIdColumn, cursor);
+        }
+    }
+
+    /**
+     * Columns of {@link Phone#CONTENT_URI} read by {@link #getCallerInfoForPhoneRow}.
+     */
+    static final String[] PHONE_PROJECTION = new String[] {
+            Phone.CONTACT_ID,
+            Phone.DISPLAY_NAME,
+            Phone.NUMBER,
+            Phone.NORMALIZED_NUMBER,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone.LOOKUP_KEY,
+            Phone.PHOTO_URI,
+            Phone.CUSTOM_RINGTONE,
+            Phone.SEND_TO_VOICEMAIL,
+    };
+    private static final int PHONE_CONTACT_ID = 0;
+    private static final int PHONE_DISPLAY_NAME = 1;
+    private static final int PHONE_NUMBER = 2;
+    static final int PHONE_NORMALIZED_NUMBER = 3;
+    private static final int PHONE_TYPE = 4;
+    private static final int PHONE_LABEL = 5;
+    private static final int PHONE_LOOKUP_KEY = 6;
+    private static final int PHONE_PHOTO_URI = 7;
+    private static final int PHONE_CUSTOM_RINGTONE = 8;
+    private static final int PHONE_SEND_TO_VOICEMAIL = 9;
+
+    /**
+     * getCallerInfo given the current row of a {@link Phone#CONTENT_URI} cursor queried with
+     * {@link #PHONE_PROJECTION}. Unlike {@link #getCallerInfo(Context, Uri, Cursor)} the cursor
+     * is neither moved nor closed, so that the rows for several numbers can be read in one pass.
+     * @param context the context used to retrieve string constants
+     * @param cursor the cursor, positioned on the row to read
+     * @return the CallerInfo for the contact owning the row
+     */
+    static CallerInfo getCallerInfoForPhoneRow(Context context, Cursor cursor) {
+        CallerInfo info = new CallerInfo();
+        info.name = normalize(cursor.getString(PHONE_DISPLAY_NAME));
+        info.phoneNumber = cursor.getString(PHONE_NUMBER);
+        info.normalizedNumber = cursor.getString(PHONE_NORMALIZED_NUMBER);
+        info.numberType = cursor.getInt(PHONE_TYPE);
+        info.numberLabel = cursor.getString(PHONE_LABEL);
+        info.phoneLabel = Phone.getTypeLabel(context.getResources(), info.numberType,
+                info.numberLabel).toString();
+        info.contactIdOrZero = cursor.getLong(PHONE_CONTACT_ID);
+        info.lookupKeyOrNull = cursor.getString(PHONE_LOOKUP_KEY);
+        final String photoUri = cursor.getString(PHONE_PHOTO_URI);
+        info.contactDisplayPhotoUri = photoUri == null ? null : Uri.parse(photoUri);
+        final String ringtoneUri = cursor.getString(PHONE_CUSTOM_RINGTONE);
+        info.contactRingtoneUri = ringtoneUri == null ? null : Uri.parse(ringtoneUri);
+        info.shouldSendToVoicemail = cursor.getInt(PHONE_SEND_TO_VOICEMAIL) == 1;
+        info.contactExists = true;
+        info.needUpdate = false;
+        info.contactRefUri = Phone.CONTENT_URI;
+        return info;
+    }
+
     /**
      * Performs another lookup if previous lookup fails and it's a SIP call
      * and the peer's username is all numeric. Look up the username as it
@@ -305,9 +446,12 @@ public class CallerInfo {
                 && PhoneNumberHelper.isUriNumber(number)) {
             String username = PhoneNumberHelper.getUsernameFromUriNumber(number);
             if (PhoneNumberUtils.isGlobalPhoneNumber(username)) {
+                final long start = LookupLatencyStats.start();
                 previousResult = getCallerInfo(context,
                         Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
                                 Uri.encode(username)));
+                LookupLatencyStats.getInstance().record(LookupLatencyStats.STAGE_SECONDARY_LOOKUP,
+                        start, previousResult.contactExists);
             }
         }
         return previousResult;
@@ -392,9 +536,8 @@ public class CallerInfo {
     }
 
     /**
-     * Returns the column index to use to find the "person_id" field in
-     * the specified cursor, based on the contact URI that was originally
-     * queried.
+     * Returns the name of the column to use to find the "person_id" field
+     * in a cursor, based on the contact URI that was originally queried.
      *
      * This is a helper function for the getCallerInfo() method that takes
      * a Cursor.  Looking up the person_id is nontrivial (compared to all
@@ -404,8 +547,8 @@ public class CallerInfo {
      * Watch out: be sure to not do any database access in this method, since
      * it's run from the UI thread (see comments below for more info.)
      *
-     * @return the columnIndex to use (with cursor.getLong()) to get the
-     * person_id, or -1 if we couldn't figure out what colum to use.
+     * @return the column to use (with cursor.getLong()) to get the
+     * person_id, or null if we couldn't figure out what colum to use.
      *
      * TODO: Add a unittest for this method.  (This is a little tricky to
      * test, since we'll need a live contacts database to test against,
@@ -415,13 +558,13 @@ public class CallerInfo {
      * can at least make sure we handle all the URI patterns we claim to,
      * and that the mime types match what we expect...)
      */
-    private static int getColumnIndexForPersonId(Uri contactRef, Cursor cursor) {
+    private static String getPersonIdColumnName(Uri contactRef) {
         // TODO: This is pretty ugly now, see bug 2269240 for
         // more details. The column to use depends upon the type of URL:
         // - content://com.android.contacts/data/phones ==> use the "contact_id" column
         // - content://com.android.contacts/phone_lookup ==> use the "_ID" column
         // - content://com.android.contacts/data ==> use the "contact_id" column
-        // If it's none of the above, we leave columnIndex=-1 which means
+        // If it's none of the above, we leave columnName=null which means
         // that the person_id field will be left unset.
         //
         // The logic here *used* to be based on the mime type of contactRef
@@ -434,7 +577,7 @@ public class CallerInfo {
         // So instead, figure out the column to use for person_id by just
         // looking at the URI itself.
 
-        Log.v(TAG, "- getColumnIndexForPersonId: contactRef URI = '"
+        Log.v(TAG, "- getPersonIdColumnName: contactRef URI = '"
                 + contactRef + "'...");
         // Warning: Do not enable the following logging (due to ANR risk.)
         // if (VDBG) Rlog.v(TAG, "- MIME type: "
@@ -462,10 +605,8 @@ public class CallerInfo {
         } else {
             Log.v(TAG, "Unexpected prefix for contactRef '" + url + "'");
         }
-        int columnIndex = (columnName != null) ? cursor.getColumnIndex(columnName) : -1;
-        Log.v(TAG, "==> Using column '" + columnName
-                + "' (columnIndex = " + columnIndex + ") for person_id lookup...");
-        return columnIndex;
+        Log.v(TAG, "==> Using column '" + columnName + "' for person_id lookup...");
+        return columnName;
     }
 
     /**
@@ -482,45 +623,25 @@ public class CallerInfo {
      */
     public void updateGeoDescription(Context context, String fallbackNumber) {
         String number = TextUtils.isEmpty(phoneNumber) ? fallbackNumber : phoneNumber;
-        String address = null;
-        if (context.getResources().getBoolean(R.bool.enable_home_location)) {
-            if (context.getContentResolver().acquireProvider(CONTENT_URI) != null) {
-                Bundle result = context.getContentResolver().call(CONTENT_URI, METHOD_GET_LOCATION,
-                        number, null);
-                if (result != null) {
-                    address = result.getString(RESULT_LOCATION);
-                }
-            }
-        }
-        geoDescription = (address == null ? getGeoDescription(context, number) : address);
+        geoDescription = GeoDescriptionCache.getInstance(context).getDescription(number);
     }
 
     /**
      * @return a geographical description string for the specified number.
      * @see com.android.i18n.phonenumbers.PhoneNumberOfflineGeocoder
      */
-    private static String getGeoDescription(Context context, String number) {
+    static String getGeoDescription(Context context, String number) {
         Log.v(TAG, "getGeoDescription('" + number + "')...");
 
         if (TextUtils.isEmpty(number)) {
             return null;
         }
 
-        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         PhoneNumberOfflineGeocoder geocoder = PhoneNumberOfflineGeocoder.getInstance();
 
         Locale locale = context.getResources().getConfiguration().locale;
-        String countryIso = TelephonyManagerUtils.getCurrentCountryIso(context, locale);
-        PhoneNumber pn = null;
-        try {
-            Log.v(TAG, "parsing '" + number
-                    + "' for countryIso '" + countryIso + "'...");
-            pn = util.parse(number, countryIso);
-            Log.v(TAG, "- parsed number: " + pn);
-        } catch (NumberParseException e) {
-            Log.v(TAG, "getGeoDescription: NumberParseException for incoming number '" +
-                    number + "'");
-        }
+        PhoneNumber pn = NumberNormalizer.getInstance(context).getParsedNumber(number);
+        Log.v(TAG, "- parsed number: " + pn);
 
         if (pn != null) {
             String description = geocoder.getDescriptionForNumber(pn, locale);
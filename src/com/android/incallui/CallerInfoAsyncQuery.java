@@ -31,10 +31,8 @@ import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
 import com.android.contacts.common.util.PhoneNumberHelper;
-import com.android.contacts.common.util.TelephonyManagerUtils;
 
 import java.util.Arrays;
-import java.util.Locale;
 
 /**
  * Helper class to make it easier to run asynchronous caller-id lookup queries.
@@ -79,6 +77,8 @@ public class CallerInfoAsyncQuery {
         public Object cookie;
         public int event;
         public String number;
+        /** When the query was started, for {@link LookupLatencyStats}. */
+        public long startNanos;
     }
 
 
@@ -262,8 +262,13 @@ public class CallerInfoAsyncQuery {
                     } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
                         mCallerInfo = new CallerInfo().markAsVoiceMail(mQueryContext);
                     } else {
-                        mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri, cursor);
+                        // Every query made here goes through PhoneLookup.
+                        mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri,
+                                CallerInfo.PHONE_LOOKUP_PERSON_ID_COLUMN, cursor);
                         Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
+                        LookupLatencyStats.getInstance().record(
+                                LookupLatencyStats.STAGE_LOCAL_QUERY, cw.startNanos,
+                                mCallerInfo.contactExists);
 
                         CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
                                 mQueryContext, cw.number, mCallerInfo);
@@ -291,16 +296,18 @@ public class CallerInfoAsyncQuery {
                                 // the CallerInfo object is totally blank here (i.e. no name
                                 // *or* phoneNumber).  So we need to pass in cw.number as
                                 // a fallback number.
+                                final long geoStart = LookupLatencyStats.start();
                                 mCallerInfo.updateGeoDescription(mQueryContext, cw.number);
+                                LookupLatencyStats.getInstance().record(
+                                        LookupLatencyStats.STAGE_GEO_DESCRIPTION, geoStart,
+                                        !TextUtils.isEmpty(mCallerInfo.geoDescription));
                             }
                         }
 
                         // Use the number entered by the user for display.
                         if (!TextUtils.isEmpty(cw.number)) {
-                            mCallerInfo.phoneNumber = PhoneNumberHelper.formatNumber(cw.number,
-                                    mCallerInfo.normalizedNumber,
-                                    TelephonyManagerUtils.getCurrentCountryIso(mQueryContext,
-                                            Locale.getDefault()));
+                            mCallerInfo.phoneNumber = NumberNormalizer.getInstance(mQueryContext)
+                                    .getDisplayNumber(cw.number);
                         }
                     }
 
@@ -370,6 +377,7 @@ public class CallerInfoAsyncQuery {
         cw.listener = listener;
         cw.cookie = cookie;
         cw.number = info.phoneNumber;
+        cw.startNanos = LookupLatencyStats.start();
 
         // check to see if these are recognized numbers, and use shortcuts if we can.
         if (PhoneNumberUtils.isLocalEmergencyNumber(context, info.phoneNumber)) {
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.text.TextUtils;
+
+import com.android.contacts.common.util.PhoneNumberHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up the contacts for several phone numbers in a single contacts provider query, e.g. for
+ * the participants of a conference call. Numbers are matched on their E164 form, which is exact
+ * but stricter than the fuzzy matching of {@link CallerInfoAsyncQuery}; callers should look up
+ * the numbers missing from the result individually, as {@link #startQuery} does.
+ */
+public class CallerInfoBatchQuery {
+    private static final String LOG_TAG = "CallerInfoBatchQuery";
+
+    /** Stays well below the number of arguments SQLite allows in one statement. */
+    private static final int MAX_NUMBERS_PER_QUERY = 100;
+    private static final int QUERY_TOKEN = -1;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Looks up several callers with a single batch query on a {@link CallerIdExecutor} thread.
+     * The callers it cannot match are then looked up one by one on the main thread with
+     * {@link CallerInfoAsyncQuery}, which matches numbers loosely.
+     *
+     * @param infos The caller info of each caller, with the number to look up.
+     * @param cookies The cookie passed to the listener for each caller, in the order of
+     *      {@code infos}.
+     * @param priority One of the {@link CallerIdExecutor} priorities.
+     * @param listener Called on the main thread once for every caller.
+     */
+    public static void startQuery(final Context context, List<CallerInfo> infos,
+            List<?> cookies, int priority,
+            final CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
+        final List<CallerInfo> infoList = new ArrayList<>(infos);
+        final List<Object> cookieList = new ArrayList<Object>(cookies);
+        final List<String> numbers = new ArrayList<>(infoList.size());
+        for (CallerInfo info : infoList) {
+            numbers.add(info.phoneNumber);
+        }
+        CallerIdExecutor.getInstance().execute(priority, new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, CallerInfo> result = query(context, numbers);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < infoList.size(); i++) {
+                            final CallerInfo info = result.get(infoList.get(i).phoneNumber);
+                            if (info != null) {
+                                listener.onQueryComplete(QUERY_TOKEN, cookieList.get(i), info);
+                            } else {
+                                CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context,
+                                        infoList.get(i), listener, cookieList.get(i));
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Queries the numbers on the calling thread.
+     *
+     * @return The caller info of every number which matched a contact, keyed by the number as
+     *      passed in.
+     */
+    public static Map<String, CallerInfo> query(Context context, Collection<String> numbers) {
+        final long startNanos = LookupLatencyStats.start();
+        final NumberNormalizer normalizer = NumberNormalizer.getInstance(context);
+        final HashMap<String, List<String>> numbersByE164 = new HashMap<>();
+        for (String number : numbers) {
+            if (TextUtils.isEmpty(number) || PhoneNumberHelper.isUriNumber(number)) {
+                continue;
+            }
+            final String numberE164 = normalizer.getE164(number);
+            if (numberE164 == null) {
+                continue;
+            }
+            List<String> sameNumbers = numbersByE164.get(numberE164);
+            if (sameNumbers == null) {
+                sameNumbers = new ArrayList<>(1);
+                numbersByE164.put(numberE164, sameNumbers);
+            }
+            sameNumbers.add(number);
+        }
+
+        final HashMap<String, CallerInfo> result = new HashMap<>();
+        final List<String> allE164 = new ArrayList<>(numbersByE164.keySet());
+        for (int start = 0; start < allE164.size(); start += MAX_NUMBERS_PER_QUERY) {
+            final List<String> chunk = allE164.subList(start,
+                    Math.min(start + MAX_NUMBERS_PER_QUERY, allE164.size()));
+            queryChunk(context, chunk, numbersByE164, normalizer, result);
+        }
+
+        Log.d(LOG_TAG, "Batch query of " + numbers.size() + " numbers matched "
+                + result.size());
+        LookupLatencyStats.getInstance().record(LookupLatencyStats.STAGE_BATCH_QUERY, startNanos,
+                !result.isEmpty());
+        return result;
+    }
+
+    private static void queryChunk(Context context, List<String> numbersE164,
+            Map<String, List<String>> numbersByE164, NumberNormalizer normalizer,
+            Map<String, CallerInfo> result) {
+        final StringBuilder selection = new StringBuilder(Phone.NORMALIZED_NUMBER).append(" IN (");
+        for (int i = 0; i < numbersE164.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+
+        final Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(Phone.CONTENT_URI,
+                    CallerInfo.PHONE_PROJECTION, selection.toString(),
+                    numbersE164.toArray(new String[numbersE164.size()]), null);
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Batch query failed", e);
+            return;
+        }
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final List<String> numbers = numbersByE164.get(
+                        cursor.getString(CallerInfo.PHONE_NORMALIZED_NUMBER));
+                if (numbers == null) {
+                    continue;
+                }
+                for (String number : numbers) {
+                    // The first contact found for a number wins, as with PhoneLookup.
+                    if (result.containsKey(number)) {
+                        continue;
+                    }
+                    final CallerInfo info = CallerInfo.getCallerInfoForPhoneRow(context, cursor);
+                    // Use the number of the call for display.
+                    info.phoneNumber = normalizer.getDisplayNumber(number);
+                    result.put(number, info);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
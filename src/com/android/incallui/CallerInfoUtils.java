@@ -42,13 +42,22 @@ public class CallerInfoUtils {
         // TODO: Have phoneapp send a Uri when it knows the contact that triggered this call.
 
         if (info.numberPresentation == TelecomManager.PRESENTATION_ALLOWED) {
-            // Start the query with the number provided from the call.
-            Log.d(TAG, "==> Actually starting CallerInfoAsyncQuery.startQuery()...");
-            CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context, info, listener, call);
+            startQuery(context, call, info, listener);
         }
         return info;
     }
 
+    /**
+     * Starts the contacts query for caller info built by {@link #buildCallerInfo}. The result is
+     * returned to the OnQueryCompleteListener.
+     */
+    public static void startQuery(Context context, Call call, CallerInfo info,
+            CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
+        // Start the query with the number provided from the call.
+        Log.d(TAG, "==> Actually starting CallerInfoAsyncQuery.startQuery()...");
+        CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context, info, listener, call);
+    }
+
     public static CallerInfo buildCallerInfo(Context context, Call call) {
         CallerInfo info = new CallerInfo();
 
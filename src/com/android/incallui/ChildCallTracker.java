@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tracks the ids of the children of a conference call. Children are only resolved to ids when
+ * they join, so an update which does not change membership costs a single pass of identity
+ * comparisons, and the id list handed out is rebuilt only when membership changes.
+ *
+ * @param <T> The type identifying a child, e.g. {@link android.telecom.Call}. Children are
+ *      expected to be compared by identity.
+ */
+class ChildCallTracker<T> {
+
+    /**
+     * Maps a child to the id of the corresponding call.
+     */
+    interface Resolver<T> {
+        /** @return The id of the call for {@code child}, or {@code null} if not known yet. */
+        String resolve(T child);
+    }
+
+    private final Resolver<T> mResolver;
+    private final ArrayList<T> mChildren = new ArrayList<>();
+    private HashMap<T, String> mIdsByChild = new HashMap<>();
+    private List<String> mChildIds = Collections.emptyList();
+    private boolean mResolved = true;
+
+    ChildCallTracker(Resolver<T> resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Updates the set of children.
+     *
+     * @param children The current children, in display order.
+     * @return {@code true} if the list of child ids changed.
+     */
+    boolean setChildren(List<T> children) {
+        if (mResolved && isSameChildren(children)) {
+            return false;
+        }
+
+        final HashMap<T, String> idsByChild = new HashMap<>(children.size() * 2);
+        final ArrayList<String> childIds = new ArrayList<>(children.size());
+        boolean resolved = true;
+        for (int i = 0; i < children.size(); i++) {
+            final T child = children.get(i);
+            String id = mIdsByChild.get(child);
+            if (id == null) {
+                id = mResolver.resolve(child);
+            }
+            if (id == null) {
+                // The call for this child has not been added yet; retry on the next update.
+                resolved = false;
+                continue;
+            }
+            idsByChild.put(child, id);
+            childIds.add(id);
+        }
+
+        mChildren.clear();
+        mChildren.addAll(children);
+        mIdsByChild = idsByChild;
+        mResolved = resolved;
+        if (childIds.equals(mChildIds)) {
+            return false;
+        }
+        mChildIds = Collections.unmodifiableList(childIds);
+        return true;
+    }
+
+    /**
+     * @return {@code true} if every child passed to the last {@link #setChildren} call could be
+     *      resolved to a call id.
+     */
+    boolean isResolved() {
+        return mResolved;
+    }
+
+    /**
+     * @return An immutable list of the child call ids.
+     */
+    List<String> getChildIds() {
+        return mChildIds;
+    }
+
+    private boolean isSameChildren(List<T> children) {
+        if (children.size() != mChildren.size()) {
+            return false;
+        }
+        for (int i = 0; i < children.size(); i++) {
+            if (children.get(i) != mChildren.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Collapses bursts of change requests into a single dispatch. The first request starts a window
+ * of one UI frame; further requests within that window are absorbed and the target runs once when
+ * the window closes. Callers that must not be delayed can force a dispatch with
+ * {@link #dispatchNow()}, which also cancels the pending one.
+ *
+ * Time and deferred execution come from a {@link Clock} so the dispatcher can be driven by a fake
+ * clock in tests.
+ */
+public class CoalescingDispatcher {
+
+    /** Length of the coalescing window, roughly one frame at 60fps. */
+    public static final long FRAME_INTERVAL_MS = 16;
+
+    /**
+     * Source of time and deferred execution for the dispatcher.
+     */
+    public interface Clock {
+        /** @return The current time in milliseconds, on the same base as {@link #postAtTime}. */
+        long uptimeMillis();
+
+        /** Runs {@code r} once the clock reaches {@code uptimeMillis}. */
+        void postAtTime(Runnable r, long uptimeMillis);
+
+        /** Cancels a previously posted runnable. */
+        void removeCallbacks(Runnable r);
+    }
+
+    /**
+     * {@link Clock} backed by {@link SystemClock} and a {@link Handler} on the current looper.
+     */
+    public static class HandlerClock implements Clock {
+        private final Handler mHandler;
+
+        public HandlerClock(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void postAtTime(Runnable r, long uptimeMillis) {
+            mHandler.postAtTime(r, uptimeMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            mHandler.removeCallbacks(r);
+        }
+    }
+
+    private final Clock mClock;
+    private final Runnable mTarget;
+    private final long mWindowMs;
+    private boolean mPending;
+    private int mRequestCount;
+    private int mDispatchCount;
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mPending) {
+                dispatch();
+            }
+        }
+    };
+
+    public CoalescingDispatcher(Clock clock, Runnable target) {
+        this(clock, target, FRAME_INTERVAL_MS);
+    }
+
+    public CoalescingDispatcher(Clock clock, Runnable target, long windowMs) {
+        mClock = clock;
+        mTarget = target;
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Requests a dispatch at the end of the current window, starting a new window if none is
+     * open.
+     */
+    public void requestDispatch() {
+        mRequestCount++;
+        if (mPending) {
+            return;
+        }
+        mPending = true;
+        mClock.postAtTime(mDispatchRunnable, mClock.uptimeMillis() + mWindowMs);
+    }
+
+    /**
+     * Dispatches immediately, absorbing any pending request.
+     */
+    public void dispatchNow() {
+        mRequestCount++;
+        dispatch();
+    }
+
+    /**
+     * Dispatches immediately if a request is pending, so that work which must be ordered after
+     * earlier changes does not overtake them.
+     */
+    public void flush() {
+        if (mPending) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Drops any pending request without dispatching it.
+     */
+    public void cancel() {
+        if (mPending) {
+            mPending = false;
+            mClock.removeCallbacks(mDispatchRunnable);
+        }
+    }
+
+    public boolean isPending() {
+        return mPending;
+    }
+
+    /** @return The number of dispatches requested, whether coalesced or not. */
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /** @return The number of times the target actually ran. */
+    public int getDispatchCount() {
+        return mDispatchCount;
+    }
+
+    private void dispatch() {
+        cancel();
+        mDispatchCount++;
+        mTarget.run();
+    }
+}
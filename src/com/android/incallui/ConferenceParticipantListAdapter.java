@@ -438,6 +438,7 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
         final ContactInfoCache cache = ContactInfoCache.getInstance(mContext);
         boolean newParticipantAdded = false;
         HashSet<String> newCallIds = new HashSet<>(conferenceParticipants.size());
+        List<Call> unknownCalls = new ArrayList<>();
 
         // Update or add conference participant info.
         for (Call call : conferenceParticipants) {
@@ -447,6 +448,7 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
             if (contactCache == null) {
                 contactCache = ContactInfoCache.buildCacheEntryFromCall(mContext, call,
                         call.getState() == Call.State.INCOMING);
+                unknownCalls.add(call);
             }
 
             if (mParticipantsByCallId.containsKey(callId)) {
@@ -461,6 +463,11 @@ public class ConferenceParticipantListAdapter extends BaseAdapter {
             }
         }
 
+        // Look up the new participants together rather than one row at a time.
+        if (!unknownCalls.isEmpty()) {
+            cache.findInfoBatch(unknownCalls, new ContactLookupCallback(this));
+        }
+
         // Remove any participants that no longer exist.
         Iterator<Map.Entry<String, ParticipantInfo>> it =
                 mParticipantsByCallId.entrySet().iterator();
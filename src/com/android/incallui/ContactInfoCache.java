@@ -21,17 +21,17 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Pair;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.DisplayNameSources;
 import android.telecom.TelecomManager;
 import android.telephony.PhoneNumberUtils;
-import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import com.android.contacts.common.testing.NeededForTesting;
 import com.android.contacts.common.util.PhoneNumberHelper;
 import com.android.contacts.common.util.UriUtils;
 import com.android.dialer.calllog.ContactInfo;
@@ -58,11 +58,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -73,19 +74,70 @@ import org.json.JSONObject;
  * that it currently has cached from previous queries. This class always gets called from the UI
  * thread so it does not need thread protection.
  */
-public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadCompleteListener {
+public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadCompleteListener,
+        CallList.CallLifecycleObserver {
 
     private static final String TAG = ContactInfoCache.class.getSimpleName();
     private static final int TOKEN_UPDATE_PHOTO_FOR_CALL_STATE = 0;
+    /** Estimated size of an entry excluding its bitmaps. */
+    private static final int ENTRY_OVERHEAD_BYTES = 512;
+    private static final long MAX_CACHE_BYTES =
+            Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+    /**
+     * Time after the local query answers after which a lookup stops being shown as in progress,
+     * even if remote sources have not answered.
+     */
+    public static final long DEFAULT_LOOKUP_DEADLINE_MS = 3000;
+    /** Time after which a remote request is abandoned and its result dropped. */
+    private static final long REQUEST_TIMEOUT_MS = 15000;
+
+    /* Priorities of the sources of caller id; a result never replaces one of higher priority. */
+    private static final int PRIORITY_NONE = -1;
+    private static final int PRIORITY_NUMBER = 0;
+    private static final int PRIORITY_CNAP = 1;
+    private static final int PRIORITY_DISK_CACHE = 2;
+    private static final int PRIORITY_LOOKUP_PROVIDER = 3;
+    private static final int PRIORITY_PHONE_NUMBER_SERVICE = 4;
+    /** A contact remembered by the disk cache, shown until the local query confirms it. */
+    private static final int PRIORITY_CACHED_CONTACT = 5;
+    private static final int PRIORITY_LOCAL = 6;
 
     private final Context mContext;
     private final PhoneNumberService mPhoneNumberService;
     private final CachedNumberLookupService mCachedNumberLookupService;
     private final LookupProvider mLookupProvider;
-    private final ConcurrentHashMap<String, ContactCacheEntry> mInfoMap = new ConcurrentHashMap();
+    private final CallerIdDiskCache mDiskCache;
+    /** Null in tests, which do not track the contacts provider. */
+    private ContactsChangeTracker mContactsChangeTracker;
+    private final LruMemoryCache<String, ContactCacheEntry> mInfoMap;
     private final HashMap<String, Set<ContactInfoCacheCallback>> mCallBacks = Maps.newHashMap();
-    private InCallPluginInfoAsyncTask mPluginInfoAsyncTask;
-    private Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * In-flight lookups by {@link #getLookupKey lookup key}, mapped to the id of the call which
+     * started the lookup. Other calls for the same number wait on that lookup instead of starting
+     * their own.
+     */
+    private final HashMap<String, String> mLeaderByLookupKey = Maps.newHashMap();
+    private final HashMap<String, String> mLookupKeyByLeader = Maps.newHashMap();
+    /** Ids of the calls waiting on the lookup of each leading call. */
+    private final HashMap<String, Set<String>> mFollowersByLeader = Maps.newHashMap();
+    /** Lookups in flight, by the id of the call which started them. */
+    private final HashMap<String, PendingLookup> mPendingLookups = Maps.newHashMap();
+    /** Priority of the source of the entry stored for each call. */
+    private final HashMap<String, Integer> mEntryPriorities = Maps.newHashMap();
+    /** Cancellation tokens of the lookups started for calls which are still alive. */
+    private final HashMap<String, LookupToken> mTokens = Maps.newHashMap();
+    /** Local queries deferred by {@link #findInfoBatch} while it runs, null otherwise. */
+    private List<BatchedQuery> mBatchedQueries;
+    private long mLookupDeadlineMs = DEFAULT_LOOKUP_DEADLINE_MS;
+    private int mLookupCount;
+    private int mCoalescedLookupCount;
+    private int mDeadlineCount;
+    private int mRequestTimeoutCount;
+    private int mCancelCount;
+    /** Plugin info lookups in flight, by call id. */
+    private final HashMap<String, InCallPluginInfoAsyncTask> mPluginInfoTasks =
+            Maps.newHashMap();
+    private final Handler mMainHandler;
 
     private static ContactInfoCache sCache = null;
 
@@ -100,11 +152,62 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     }
 
     private ContactInfoCache(Context context) {
+        this(context, new CallerIdDiskCache(context),
+                ObjectFactory.newPhoneNumberService(context),
+                LookupProviderImpl.INSTANCE.get(context), new Handler(Looper.getMainLooper()));
+        mContactsChangeTracker = new ContactsChangeTracker(context,
+                new ContactsChangeTracker.Listener() {
+                    @Override
+                    public void onContactsChanged(Set<Long> contactIds,
+                            Set<String> numbersE164) {
+                        final ContactPhotoCache photoCache =
+                                ContactPhotoCache.getInstance(mContext);
+                        if (contactIds == null) {
+                            mDiskCache.clearMisses(CallerIdDiskCache.SOURCE_CONTACTS);
+                            photoCache.invalidateContactPhotos();
+                            return;
+                        }
+                        // A number which was not a contact may have been added to one.
+                        for (String numberE164 : numbersE164) {
+                            mDiskCache.removeMiss(numberE164,
+                                    CallerIdDiskCache.SOURCE_CONTACTS);
+                        }
+                        for (long contactId : contactIds) {
+                            photoCache.invalidateContact(contactId);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @param mainHandler Handler of the main thread, which runs the lookup deadlines and the
+     *      timeouts of remote requests.
+     */
+    @NeededForTesting
+    ContactInfoCache(Context context, CallerIdDiskCache diskCache,
+            PhoneNumberService phoneNumberService, LookupProvider lookupProvider,
+            Handler mainHandler) {
         mContext = context;
-        mPhoneNumberService = ObjectFactory.newPhoneNumberService(context);
+        mPhoneNumberService = phoneNumberService;
         mCachedNumberLookupService =
                 com.android.dialerbind.ObjectFactory.newCachedNumberLookupService();
-        mLookupProvider = LookupProviderImpl.INSTANCE.get(context);
+        mLookupProvider = lookupProvider;
+        mDiskCache = diskCache;
+        mMainHandler = mainHandler;
+        mInfoMap = new LruMemoryCache<>(TAG, MAX_CACHE_BYTES,
+                new LruMemoryCache.Sizer<ContactCacheEntry>() {
+                    @Override
+                    public int sizeOf(ContactCacheEntry entry) {
+                        return getEntrySize(entry);
+                    }
+                },
+                new LruMemoryCache.Pinning<String>() {
+                    @Override
+                    public boolean isPinned(String callId) {
+                        // Never drop the info of a call which is still shown.
+                        return CallList.getInstance().getCallById(callId) != null;
+                    }
+                });
     }
 
     public void tearDown() {
@@ -141,14 +244,15 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     public void maybeInsertCnapInformationIntoCache(Context context, final Call call,
             final CallerInfo info) {
         if (mCachedNumberLookupService == null || TextUtils.isEmpty(info.cnapName)
-                || mInfoMap.get(call.getId()) != null) {
+                || mInfoMap.peek(call.getId()) != null) {
             return;
         }
         final Context applicationContext = context.getApplicationContext();
         Log.i(TAG, "Found contact with CNAP name - inserting into cache");
-        new AsyncTask<Void, Void, Void>() {
+        CallerIdExecutor.getInstance().execute(CallerIdExecutor.PRIORITY_BACKGROUND,
+                new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 ContactInfo contactInfo = new ContactInfo();
                 CachedContactInfo cacheInfo = mCachedNumberLookupService.buildCachedContactInfo(
                         contactInfo);
@@ -170,9 +274,24 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                     Log.w(TAG, "Creation of lookup key failed when caching CNAP information");
                 }
                 mCachedNumberLookupService.addContact(applicationContext, cacheInfo);
-                return null;
             }
-        }.execute();
+        });
+    }
+
+    /**
+     * Starts the lookup for a new call before any presenter asks for it, so that the name and
+     * photo are ready when the UI is first drawn. Presenters calling {@link #findInfo} later
+     * join the lookup in flight.
+     */
+    @Override
+    public void onCallAdded(Call call) {
+        if (call.isConferenceCall()) {
+            // Conference calls show generic info.
+            return;
+        }
+        final boolean isIncoming = call.getState() == Call.State.INCOMING
+                || call.getState() == Call.State.CALL_WAITING;
+        findInfo(call, isIncoming, null);
     }
 
     private class FindInfoCallback implements CallerInfoAsyncQuery.OnQueryCompleteListener {
@@ -193,12 +312,19 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
      * Returns the data through callback.  If callback is null, no response is made, however the
      * query is still performed and cached.
      *
+     * What is known locally, from the disk cache, CNAP and a prefetched contact photo, is shown
+     * while the contacts query runs. Remote sources are only asked once the number is known not
+     * to be a contact, so that the numbers of contacts are never sent to them. Each result is
+     * shown as it arrives unless a source of higher priority has already answered. The
+     * callbacks are released once every source is done or the call is removed. Remote sources
+     * still running when the lookup deadline passes keep updating the callbacks, but the lookup
+     * is no longer shown as in progress.
+     *
      * @param callback The function to call back when the call is found. Can be null.
      */
     public void findInfo(final Call call, final boolean isIncoming,
             ContactInfoCacheCallback callback) {
         Preconditions.checkState(Looper.getMainLooper().getThread() == Thread.currentThread());
-        Preconditions.checkNotNull(callback);
 
         final String callId = call.getId();
         final ContactCacheEntry cacheEntry = mInfoMap.get(callId);
@@ -208,7 +334,9 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         if (cacheEntry != null) {
             Log.d(TAG, "Contact lookup. In memory cache hit; lookup "
                     + (callBacks == null ? "complete" : "still running"));
-            callback.onContactInfoComplete(callId, cacheEntry);
+            if (callback != null) {
+                callback.onContactInfoComplete(callId, cacheEntry);
+            }
             // If no other callbacks are in flight, we're done.
             if (callBacks == null) {
                 return;
@@ -217,14 +345,71 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
         // If the entry already exists, add callback
         if (callBacks != null) {
-            callBacks.add(callback);
+            if (callback != null) {
+                callBacks.add(callback);
+            }
             return;
         }
+        // If another call for the same number is being looked up, wait for its result
+        final String lookupKey = getLookupKey(call, isIncoming);
+        final String leaderId = lookupKey == null ? null : mLeaderByLookupKey.get(lookupKey);
+        if (leaderId != null) {
+            Log.d(TAG, "Contact lookup. Joining lookup in flight for " + leaderId);
+            mCoalescedLookupCount++;
+            callBacks = Sets.newHashSet();
+            if (callback != null) {
+                callBacks.add(callback);
+            }
+            mCallBacks.put(callId, callBacks);
+            Set<String> followers = mFollowersByLeader.get(leaderId);
+            if (followers == null) {
+                followers = Sets.newHashSet();
+                mFollowersByLeader.put(leaderId, followers);
+            }
+            followers.add(callId);
+
+            final ContactCacheEntry leaderEntry = mInfoMap.peek(leaderId);
+            if (leaderEntry != null) {
+                mInfoMap.put(callId, leaderEntry);
+                if (callback != null) {
+                    callback.onContactInfoComplete(callId, leaderEntry);
+                }
+            }
+            return;
+        }
+
         Log.d(TAG, "Contact lookup. In memory cache miss; searching provider.");
         // New lookup
+        mLookupCount++;
+        // An empty set still marks the lookup as in flight.
         callBacks = Sets.newHashSet();
-        callBacks.add(callback);
+        if (callback != null) {
+            callBacks.add(callback);
+        }
         mCallBacks.put(callId, callBacks);
+        if (lookupKey != null) {
+            mLeaderByLookupKey.put(lookupKey, callId);
+            mLookupKeyByLeader.put(callId, lookupKey);
+        }
+        final PendingLookup lookup = new PendingLookup(callId);
+        mPendingLookups.put(callId, lookup);
+        // Requests left over from an earlier lookup for the call are superseded.
+        cancelLookup(callId);
+        mTokens.put(callId, new LookupToken());
+
+        // Show what we learnt about the number on an earlier call while the lookups run.
+        final CallerIdDiskCache.Record record = mDiskCache.get(getNumberE164(call.getNumber()));
+        if (cacheEntry == null && record != null
+                && call.getNumberPresentation() == TelecomManager.PRESENTATION_ALLOWED) {
+            Log.d(TAG, "Contact lookup. Disk cache hit from source " + record.source);
+            final boolean isContact = record.source == CallerIdDiskCache.SOURCE_CONTACTS;
+            publishEntry(callId, buildEntryFromRecord(record, call.getNumber()),
+                    isContact ? PRIORITY_CACHED_CONTACT : PRIORITY_DISK_CACHE);
+            if (isContact && record.photoUri != null) {
+                // Decode the contact photo while the contact is looked up again.
+                startContactPhotoLoad(callId, Uri.parse(record.photoUri));
+            }
+        }
 
         /**
          * Performs a query for caller information.
@@ -232,92 +417,425 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
          * for any data that we do not already have. Some queries, such as those for voicemail and
          * emergency call information, will not perform an additional asynchronous query.
          */
-        final CallerInfo callerInfo = CallerInfoUtils.getCallerInfoForCall(
-                mContext, call, new FindInfoCallback(isIncoming));
+        final CallerInfo callerInfo = buildCallerInfo(call);
+        boolean localQueryStarted = false;
+        if (callerInfo.numberPresentation == TelecomManager.PRESENTATION_ALLOWED) {
+            final String numberE164 = getNumberE164(call.getNumber());
+            if (!callerInfo.isVoiceMailNumber() && !hasWorkProfile()
+                    && mDiskCache.isKnownMiss(numberE164, CallerIdDiskCache.SOURCE_CONTACTS)
+                    && !PhoneNumberUtils.isLocalEmergencyNumber(mContext, call.getNumber())) {
+                Log.d(TAG, "Contact lookup. Known not to be a contact; skipping local query");
+                callerInfo.geoDescription = mDiskCache.getMissLocation(numberE164);
+            } else if (mBatchedQueries != null && !callerInfo.isVoiceMailNumber()
+                    && !PhoneNumberHelper.isUriNumber(callerInfo.phoneNumber)
+                    && !PhoneNumberUtils.isLocalEmergencyNumber(mContext, call.getNumber())) {
+                mBatchedQueries.add(new BatchedQuery(call, callerInfo, isIncoming));
+                localQueryStarted = true;
+            } else {
+                // The local query only runs for allowed numbers.
+                startLocalQuery(call, callerInfo, new FindInfoCallback(isIncoming));
+                localQueryStarted = true;
+            }
+        }
 
+        if (localQueryStarted) {
+            lookup.mPendingSources++;
+        } else {
+            // No local query, so the remote sources are timed from now.
+            mMainHandler.postDelayed(lookup, mLookupDeadlineMs);
+        }
         findInfoQueryComplete(call, callerInfo, isIncoming, false);
+
+        if (!localQueryStarted) {
+            // Otherwise the remote sources and the plugins are asked once the local query has
+            // answered. Without a local query, the number is a fresh contacts miss.
+            startRemoteLookups(call, callerInfo, isIncoming);
+            final ContactCacheEntry entry = mInfoMap.peek(callId);
+            if (entry != null) {
+                lookupPluginInfo(callId, entry, null);
+            }
+        }
+
+        if (lookup.mPendingSources == 0) {
+            finishLookup(callId);
+        }
+    }
+
+    /**
+     * @return What the call itself tells about the caller, before the contacts are queried.
+     */
+    @NeededForTesting
+    CallerInfo buildCallerInfo(Call call) {
+        return CallerInfoUtils.buildCallerInfo(mContext, call);
+    }
+
+    /**
+     * Queries the contacts for the caller, delivering the result to the listener with the call
+     * as the cookie.
+     */
+    @NeededForTesting
+    void startLocalQuery(Call call, CallerInfo callerInfo,
+            CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
+        CallerInfoUtils.startQuery(mContext, call, callerInfo, listener);
+    }
+
+    private boolean hasWorkProfile() {
+        return mContactsChangeTracker != null && mContactsChangeTracker.hasWorkProfile();
+    }
+
+    /**
+     * Requests contact data for several calls, e.g. the participants of a conference, like
+     * {@link #findInfo} does for each of them, except that their local queries are made in a
+     * single contacts provider query. Calls the batch query cannot match are then looked up
+     * individually.
+     *
+     * @param callback The function to call back for each call. Can be null.
+     */
+    public void findInfoBatch(List<Call> calls, ContactInfoCacheCallback callback) {
+        Preconditions.checkState(Looper.getMainLooper().getThread() == Thread.currentThread());
+
+        final List<BatchedQuery> queries = new ArrayList<>();
+        mBatchedQueries = queries;
+        try {
+            for (Call call : calls) {
+                findInfo(call, call.getState() == Call.State.INCOMING
+                        || call.getState() == Call.State.CALL_WAITING, callback);
+            }
+        } finally {
+            mBatchedQueries = null;
+        }
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "Contact lookup. Batch query for " + queries.size() + " calls");
+        final List<CallerInfo> infos = new ArrayList<>(queries.size());
+        for (BatchedQuery query : queries) {
+            infos.add(query.mCallerInfo);
+        }
+        // Calls the batch query cannot match fall back to the fuzzy PhoneLookup.
+        CallerInfoBatchQuery.startQuery(mContext, infos, queries,
+                getExecutorPriority(queries.get(0).mCall.getId()),
+                new CallerInfoAsyncQuery.OnQueryCompleteListener() {
+                    @Override
+                    public void onQueryComplete(int token, Object cookie, CallerInfo info) {
+                        final BatchedQuery query = (BatchedQuery) cookie;
+                        findInfoQueryComplete(query.mCall, info, query.mIsIncoming, true);
+                    }
+                });
+    }
+
+    /**
+     * A local query deferred by {@link #findInfoBatch}.
+     */
+    private static class BatchedQuery {
+        final Call mCall;
+        final CallerInfo mCallerInfo;
+        final boolean mIsIncoming;
+
+        BatchedQuery(Call call, CallerInfo callerInfo, boolean isIncoming) {
+            mCall = call;
+            mCallerInfo = callerInfo;
+            mIsIncoming = isIncoming;
+        }
     }
 
     private void findInfoQueryComplete(Call call, CallerInfo callerInfo, boolean isIncoming,
             boolean didLocalLookup) {
         final String callId = call.getId();
         int presentationMode = call.getNumberPresentation();
-        if (callerInfo.contactExists || callerInfo.isEmergencyNumber() ||
-                callerInfo.isVoiceMailNumber()) {
+        final boolean isLocal = callerInfo.contactExists || callerInfo.isEmergencyNumber()
+                || callerInfo.isVoiceMailNumber();
+        if (isLocal) {
             presentationMode = TelecomManager.PRESENTATION_ALLOWED;
         }
 
-        ContactCacheEntry cacheEntry = mInfoMap.get(callId);
-        // Ensure we always have a cacheEntry. Replace the existing entry if
-        // it has no name or if we found a local contact.
-        if (cacheEntry == null || TextUtils.isEmpty(cacheEntry.name) ||
-                callerInfo.contactExists) {
-            cacheEntry = buildEntry(mContext, callId, callerInfo, presentationMode, isIncoming);
-            mInfoMap.put(callId, cacheEntry);
+        final String numberE164 = getNumberE164(call.getNumber());
+        final CallerIdDiskCache.Record record = mDiskCache.get(numberE164);
+        if (didLocalLookup && record != null
+                && record.source == CallerIdDiskCache.SOURCE_CONTACTS
+                && !callerInfo.contactExists) {
+            // The contact shown from the disk cache has been deleted since.
+            Log.d(TAG, "Contact lookup. Dropping cached contact which no longer exists");
+            mDiskCache.remove(numberE164);
+            if (getEntryPriority(callId) == PRIORITY_CACHED_CONTACT) {
+                mEntryPriorities.remove(callId);
+            }
         }
 
-        sendInfoNotifications(callId, cacheEntry);
+        final int priority = isLocal ? PRIORITY_LOCAL
+                : !TextUtils.isEmpty(callerInfo.cnapName) ? PRIORITY_CNAP : PRIORITY_NUMBER;
+        final ContactCacheEntry cacheEntry =
+                buildEntry(mContext, callId, callerInfo, presentationMode, isIncoming);
+        // Ensure we always have a cacheEntry, unless a better source has answered already.
+        final boolean shown = publishEntry(callId, cacheEntry, priority);
 
         if (didLocalLookup) {
-            boolean clearCallbacks = true;
-
-            // Before issuing a request for more data from other services, we only check that the
-            // contact wasn't found in the local DB.  We don't check the if the cache entry already
-            // has a name because we allow overriding cnap data with data from other services.
-            if (!callerInfo.contactExists &&
-                    !callerInfo.isEmergencyNumber() &&
-                    mPhoneNumberService != null) {
-                Log.d(TAG, "Contact lookup. Local contacts miss, checking remote");
-                final PhoneNumberServiceListener listener = new PhoneNumberServiceListener(callId);
-                mPhoneNumberService.getPhoneNumberInfo(cacheEntry.number, listener, listener,
-                        isIncoming);
-                clearCallbacks = false;
-            }
-
-            if (!callerInfo.contactExists &&
-                    !callerInfo.isEmergencyNumber() &&
-                    mLookupProvider.isEnabled()) {
+            // Edits of work contacts are not tracked, so their misses could not be cleared.
+            if (!isLocal && !hasWorkProfile()) {
+                mDiskCache.putMiss(numberE164, CallerIdDiskCache.SOURCE_CONTACTS,
+                        callerInfo.geoDescription);
+            }
+            if (callerInfo.contactExists && !callerInfo.isEmergencyNumber()) {
+                mDiskCache.put(new CallerIdDiskCache.Record(numberE164, cacheEntry.name,
+                        cacheEntry.label, cacheEntry.location, null, 0, false,
+                        cacheEntry.displayPhotoUri == null
+                                ? null : cacheEntry.displayPhotoUri.toString(),
+                        CallerIdDiskCache.SOURCE_CONTACTS, System.currentTimeMillis()));
+            }
+
+            if (shown && cacheEntry.displayPhotoUri != null) {
+                final PendingLookup lookup = mPendingLookups.get(callId);
+                if (lookup != null && cacheEntry.displayPhotoUri.equals(lookup.mPhotoUri)) {
+                    // The photo was prefetched for the cached contact.
+                    if (lookup.mPhotoLoaded) {
+                        cacheEntry.photo = lookup.mPhoto;
+                        mInfoMap.put(callId, cacheEntry);
+                        sendImageNotifications(callId, cacheEntry);
+                    }
+                } else {
+                    Log.d(TAG, "Contact lookup. Local contact found, starting image load");
+                    startContactPhotoLoad(callId, cacheEntry.displayPhotoUri);
+                }
+            }
+
+            final PendingLookup lookup = mPendingLookups.get(callId);
+            if (lookup != null) {
+                // The remote sources are only timed once the local query has answered.
+                mMainHandler.postDelayed(lookup, mLookupDeadlineMs);
+            }
+            if (!isLocal && lookup != null) {
+                // Not a contact, so the remote sources may know the number.
+                startRemoteLookups(call, callerInfo, isIncoming);
+            }
+
+            final ContactCacheEntry entry = mInfoMap.peek(callId);
+            if (entry != null) {
+                lookupPluginInfo(callId, entry, null);
+            }
+
+            Log.d(TAG, "Contact lookup. Local query done, contact "
+                    + (callerInfo.contactExists ? "found" : "not found"));
+            completeSource(callId);
+        }
+    }
+
+    /**
+     * Starts the remote lookups for a call whose number is not a contact: the local query has
+     * just missed, or the number is a fresh contacts miss of the disk cache.
+     */
+    private void startRemoteLookups(Call call, CallerInfo callerInfo, boolean isIncoming) {
+        final String callId = call.getId();
+        final String number = callerInfo.phoneNumber;
+        if (call.getNumberPresentation() != TelecomManager.PRESENTATION_ALLOWED
+                || TextUtils.isEmpty(number)
+                || callerInfo.isEmergencyNumber() || callerInfo.isVoiceMailNumber()) {
+            return;
+        }
+
+        final String numberE164 = getNumberE164(call.getNumber());
+        final CallerIdDiskCache.Record record = mDiskCache.get(numberE164);
+        if (record != null && record.source != CallerIdDiskCache.SOURCE_CONTACTS
+                && record.isFresh(System.currentTimeMillis())) {
+            Log.d(TAG, "Contact lookup. Disk cache is fresh, skipping remote lookups");
+            if (record.photoUri != null) {
+                loadRemotePhoto(callId, record.photoUri);
+            }
+            return;
+        }
+
+        if (mPhoneNumberService != null && !mDiskCache.isKnownMiss(numberE164,
+                CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE)) {
+            Log.d(TAG, "Contact lookup. Checking remote");
+            final PhoneNumberServiceListener listener =
+                    new PhoneNumberServiceListener(callId, numberE164);
+            mPhoneNumberService.getPhoneNumberInfo(number, listener, listener, isIncoming);
+        }
+
+        if (mLookupProvider.isEnabled() && !mDiskCache.isKnownMiss(numberE164,
+                CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER)) {
+            mPendingLookups.get(callId).mLookupProviderPending = true;
+            final ContactCacheEntry cacheEntry = mInfoMap.peek(callId);
+            if (cacheEntry != null && getEntryPriority(callId) < PRIORITY_LOOKUP_PROVIDER) {
                 cacheEntry.isLookupInProgress = true;
                 cacheEntry.lookupProviderName = mLookupProvider.getDisplayName();
-                String countryIso = ((TelephonyManager) mContext.getSystemService(
-                        Context.TELEPHONY_SERVICE)).getSimCountryIso().toUpperCase();
-                String numberE164 =
-                        PhoneNumberUtils.formatNumberToE164(cacheEntry.number, countryIso);
-                RequestOrigin origin = isIncoming ? RequestOrigin.INCOMING_CALL :
-                        RequestOrigin.OUTGOING_CALL;
-                LookupRequest request = new LookupRequest(numberE164,
-                        new LookupResultCallback(callId),
-                        origin);
-                mLookupProvider.fetchInfo(request);
                 sendInfoNotifications(callId, cacheEntry);
-                clearCallbacks = false;
             }
+            RequestOrigin origin = isIncoming ? RequestOrigin.INCOMING_CALL :
+                    RequestOrigin.OUTGOING_CALL;
+            LookupRequest request = new LookupRequest(numberE164,
+                    new LookupResultCallback(callId, numberE164),
+                    origin);
+            mLookupProvider.fetchInfo(request);
+        }
+    }
 
-            if (cacheEntry.displayPhotoUri != null) {
-                Log.d(TAG, "Contact lookup. Local contact found, starting image load");
-                // Load the image with a callback to update the image state.
-                // When the load is finished, onImageLoadComplete() will be called.
-                ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
-                        mContext, cacheEntry.displayPhotoUri, ContactInfoCache.this, callId);
-                clearCallbacks = false;
-            }
+    /**
+     * Stores and shows an entry, unless the entry shown for the call comes from a source of
+     * higher priority.
+     *
+     * @return {@code true} if the entry was stored.
+     */
+    private boolean publishEntry(String callId, ContactCacheEntry entry, int priority) {
+        if (priority < getEntryPriority(callId)) {
+            Log.d(TAG, "Contact lookup. Ignoring result of priority " + priority);
+            return false;
+        }
+        final ContactCacheEntry oldEntry = mInfoMap.peek(callId);
+        if (oldEntry != null && entry.inCallPluginInfoList == null) {
+            entry.inCallPluginInfoList = oldEntry.inCallPluginInfoList;
+        }
+        final PendingLookup lookup = mPendingLookups.get(callId);
+        if (lookup != null && lookup.mLookupProviderPending
+                && priority < PRIORITY_LOOKUP_PROVIDER) {
+            entry.isLookupInProgress = true;
+            entry.lookupProviderName = mLookupProvider.getDisplayName();
+        }
+        mEntryPriorities.put(callId, priority);
+        mInfoMap.put(callId, entry);
+        sendInfoNotifications(callId, entry);
+        return true;
+    }
 
-            if (clearCallbacks) {
-                if (callerInfo.contactExists) {
-                    Log.d(TAG, "Contact lookup done. Local contact found, no image.");
-                } else {
-                    Log.d(TAG, "Contact lookup done. Local contact not found and"
-                            + " no remote lookup service available.");
-                }
-                clearCallbacks(callId);
+    /**
+     * @return The priority of the source of the entry stored for the call.
+     */
+    private int getEntryPriority(String callId) {
+        final Integer priority = mEntryPriorities.get(callId);
+        return priority == null ? PRIORITY_NONE : priority;
+    }
+
+    private void startSource(String callId) {
+        final PendingLookup lookup = mPendingLookups.get(callId);
+        if (lookup != null) {
+            lookup.mPendingSources++;
+        }
+    }
+
+    /**
+     * Called when a source has answered, successfully or not. The lookup finishes with the last
+     * source.
+     */
+    private void completeSource(String callId) {
+        final PendingLookup lookup = mPendingLookups.get(callId);
+        if (lookup == null) {
+            // Already finished because the call was removed.
+            return;
+        }
+        if (--lookup.mPendingSources <= 0) {
+            Log.d(TAG, "Contact lookup done.");
+            finishLookup(callId);
+        }
+    }
+
+    /**
+     * Shows the final result of a lookup and releases its callbacks.
+     */
+    private void finishLookup(String callId) {
+        final PendingLookup lookup = mPendingLookups.remove(callId);
+        if (lookup != null) {
+            mMainHandler.removeCallbacks(lookup);
+        }
+        final ContactCacheEntry entry = mInfoMap.peek(callId);
+        if (entry != null && entry.isLookupInProgress) {
+            entry.isLookupInProgress = false;
+            sendInfoNotifications(callId, entry);
+        }
+        clearCallbacks(callId);
+    }
+
+    /**
+     * Sets the time after which a lookup stops being shown as waiting for its remote sources.
+     */
+    public void setLookupDeadlineMillis(long deadlineMs) {
+        mLookupDeadlineMs = deadlineMs;
+    }
+
+    /**
+     * A lookup in flight. Runs at its deadline, when the lookup stops being shown as in progress
+     * if its remote sources are too slow; their results are still delivered when they arrive.
+     */
+    private class PendingLookup implements Runnable {
+        private final String mCallId;
+        /** Number of sources which have not answered yet. */
+        private int mPendingSources;
+        private boolean mLookupProviderPending;
+        /** Contact photo being loaded for the call, and the result once it is loaded. */
+        private Uri mPhotoUri;
+        private Drawable mPhoto;
+        private boolean mPhotoLoaded;
+
+        PendingLookup(String callId) {
+            mCallId = callId;
+        }
+
+        @Override
+        public void run() {
+            Log.d(TAG, "Contact lookup deadline passed with " + mPendingSources
+                    + " sources pending");
+            mDeadlineCount++;
+            mLookupProviderPending = false;
+            final ContactCacheEntry entry = mInfoMap.peek(mCallId);
+            if (entry != null && entry.isLookupInProgress) {
+                entry.isLookupInProgress = false;
+                sendInfoNotifications(mCallId, entry);
             }
         }
     }
 
+    /**
+     * Cancellation token of the lookup for a call, shared by its remote requests.
+     */
+    private static class LookupToken {
+        private final ArrayList<RemoteRequest> mRequests = new ArrayList<>();
+        private boolean mCancelled;
+    }
+
+    /**
+     * Abandons the lookup for a call which has gone away. Remote requests still running stop
+     * counting, and their results are dropped rather than cached for a call nobody shows.
+     */
+    @Override
+    public void onCallDisconnected(Call call) {
+        final String callId = call.getId();
+        if (mFollowersByLeader.containsKey(callId)) {
+            // Other calls still wait on this lookup.
+            return;
+        }
+        final InCallPluginInfoAsyncTask pluginInfoTask = mPluginInfoTasks.remove(callId);
+        if (pluginInfoTask != null) {
+            pluginInfoTask.cancel(true);
+        }
+        if (cancelLookup(callId)) {
+            finishLookup(callId);
+        }
+    }
+
+    /**
+     * @return {@code true} if the call had a lookup to cancel.
+     */
+    private boolean cancelLookup(String callId) {
+        final LookupToken token = mTokens.remove(callId);
+        if (token == null) {
+            return false;
+        }
+        token.mCancelled = true;
+        for (RemoteRequest request : token.mRequests) {
+            mMainHandler.removeCallbacks(request);
+        }
+        if (!token.mRequests.isEmpty()) {
+            Log.d(TAG, "Contact lookup. Cancelled " + token.mRequests.size()
+                    + " remote requests for " + callId);
+            mCancelCount++;
+        }
+        token.mRequests.clear();
+        return true;
+    }
+
     public void refreshPluginInfo(final Call call, ContactInfoCacheCallback callback) {
         if (call != null) {
             final String callId = call.getId();
-            ContactCacheEntry entry = mInfoMap.get(callId);
+            ContactCacheEntry entry = mInfoMap.peek(callId);
             if (entry == null) {
                 findInfo(call, call.getState() == Call.State.INCOMING, callback);
             } else {
@@ -330,18 +848,21 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             ContactInfoCacheCallback cacheCallback) {
         if (!cacheEntry.isEmergencyNumber &&
                 (cacheEntry.lookupUri != null || !TextUtils.isEmpty(cacheEntry.number))) {
-            if (mPluginInfoAsyncTask != null) {
-                mPluginInfoAsyncTask.cancel(true);
-                mPluginInfoAsyncTask = null;
+            // Only the latest lookup for the call matters; those of other calls go on.
+            final InCallPluginInfoAsyncTask oldTask = mPluginInfoTasks.remove(callId);
+            if (oldTask != null) {
+                oldTask.cancel(true);
             }
 
             final InCallPluginInfoAsyncTask.IInCallPostExecute callback =
                     new InCallPluginInfoCallback(callId, cacheCallback);
             final InCallContactInfo contactInfo = new InCallContactInfo(cacheEntry.name,
                     cacheEntry.number, cacheEntry.lookupUri);
-            mPluginInfoAsyncTask =
+            final InCallPluginInfoAsyncTask task =
                     new InCallPluginInfoAsyncTask(mContext, contactInfo, callback);
-            mPluginInfoAsyncTask.execute();
+            mPluginInfoTasks.put(callId, task);
+            task.executeOnExecutor(
+                    CallerIdExecutor.getInstance().forPriority(getExecutorPriority(callId)));
             return true;
         }
         return false;
@@ -360,8 +881,9 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
         @Override
         public void onPostExecuteTask(List<InCallPluginInfo> inCallPluginInfoList) {
+            mPluginInfoTasks.remove(mCallId);
             synchronized (mInfoMap) {
-                final ContactCacheEntry oldEntry = mInfoMap.get(mCallId);
+                final ContactCacheEntry oldEntry = mInfoMap.peek(mCallId);
                 ContactCacheEntry entry = new ContactCacheEntry(oldEntry);
                 entry.inCallPluginInfoList = inCallPluginInfoList;
 
@@ -372,27 +894,86 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                     if (callback != null) {
                         callback.onContactInfoComplete(mCallId, entry);
                     }
+                } else {
+                    // Started by findInfo, so the lookup callbacks want the result.
+                    sendInfoNotifications(mCallId, entry);
                 }
             }
         }
     }
 
-    class PhoneNumberServiceListener implements PhoneNumberService.NumberLookupListener,
-                                     PhoneNumberService.ImageLookupListener {
-        private final String mCallId;
+    /**
+     * A request to a remote source on behalf of a lookup. The request counts as a source of the
+     * lookup until it finishes, times out or the lookup is cancelled; results arriving after
+     * that are dropped.
+     */
+    private abstract class RemoteRequest implements Runnable {
+        protected final String mCallId;
+        private final LookupToken mToken;
+        private boolean mDone;
 
-        PhoneNumberServiceListener(String callId) {
+        RemoteRequest(String callId) {
             mCallId = callId;
+            mToken = mTokens.get(callId);
+            if (mToken != null) {
+                mToken.mRequests.add(this);
+            }
+            startSource(callId);
+            mMainHandler.postDelayed(this, REQUEST_TIMEOUT_MS);
+        }
+
+        /**
+         * @return {@code true} if the request finished, timed out or was cancelled, in which case
+         *      its results must be dropped.
+         */
+        boolean isAbandoned() {
+            return mDone || mToken == null || mToken.mCancelled;
+        }
+
+        void finish() {
+            if (!mDone) {
+                mDone = true;
+                mMainHandler.removeCallbacks(this);
+                if (mToken != null) {
+                    mToken.mRequests.remove(this);
+                }
+                completeSource(mCallId);
+            }
+        }
+
+        /** Called on timeout. */
+        @Override
+        public void run() {
+            Log.d(TAG, "Contact lookup. Remote request for " + mCallId + " timed out");
+            mRequestTimeoutCount++;
+            finish();
+        }
+    }
+
+    class PhoneNumberServiceListener extends RemoteRequest
+            implements PhoneNumberService.NumberLookupListener,
+                       PhoneNumberService.ImageLookupListener {
+        private final String mNumberE164;
+        private final long mStartNanos = LookupLatencyStats.start();
+
+        PhoneNumberServiceListener(String callId, String numberE164) {
+            super(callId);
+            mNumberE164 = numberE164;
         }
 
         @Override
         public void onPhoneNumberInfoComplete(
                 final PhoneNumberService.PhoneNumberInfo info) {
-            // If we got a miss, this is the end of the lookup pipeline,
-            // so clear the callbacks and return.
+            LookupLatencyStats.getInstance().record(LookupLatencyStats.STAGE_PHONE_NUMBER_SERVICE,
+                    mStartNanos, info != null);
+            if (isAbandoned()) {
+                return;
+            }
             if (info == null) {
-                Log.d(TAG, "Contact lookup done. Remote contact not found.");
-                clearCallbacks(mCallId);
+                Log.d(TAG, "Contact lookup. Remote contact not found.");
+                mDiskCache.putMiss(mNumberE164, CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE,
+                        null);
+                finish();
                 return;
             }
 
@@ -408,111 +989,147 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                         mContext.getResources(), type, label);
                 entry.label = typeStr == null ? null : typeStr.toString();
             }
-            synchronized (mInfoMap) {
-                final ContactCacheEntry oldEntry = mInfoMap.get(mCallId);
-                if (oldEntry != null) {
-                    // Location is only obtained from local lookup so persist
-                    // the value for remote lookups. Once we have a name this
-                    // field is no longer used; it is persisted here in case
-                    // the UI is ever changed to use it.
-                    entry.location = oldEntry.location;
-                    entry.inCallPluginInfoList = oldEntry.inCallPluginInfoList;
-                }
+            final ContactCacheEntry oldEntry = mInfoMap.peek(mCallId);
+            if (oldEntry != null) {
+                // Location is only obtained from local lookup so persist
+                // the value for remote lookups. Once we have a name this
+                // field is no longer used; it is persisted here in case
+                // the UI is ever changed to use it.
+                entry.location = oldEntry.location;
+            }
 
-                // If no image and it's a business, switch to using the default business avatar.
-                if (info.getImageUrl() == null && info.isBusiness()) {
-                    Log.d(TAG, "Business has no image. Using default.");
-                    entry.photo = mContext.getResources().getDrawable(R.drawable.img_business);
-                }
+            // If no image and it's a business, switch to using the default business avatar.
+            if (info.getImageUrl() == null && info.isBusiness()) {
+                Log.d(TAG, "Business has no image. Using default.");
+                entry.photo = mContext.getResources().getDrawable(R.drawable.img_business);
+            }
 
-                // Add the contact info to the cache.
-                mInfoMap.put(mCallId, entry);
+            final boolean shown = publishEntry(mCallId, entry, PRIORITY_PHONE_NUMBER_SERVICE);
+            if (shown) {
+                mDiskCache.put(new CallerIdDiskCache.Record(mNumberE164, entry.name, entry.label,
+                        entry.location, null, 0, false, info.getImageUrl(),
+                        CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE,
+                        System.currentTimeMillis()));
             }
-            sendInfoNotifications(mCallId, entry);
 
             // If there is no image then we should not expect another callback.
-            if (info.getImageUrl() == null) {
-                // We're done, so clear callbacks
-                clearCallbacks(mCallId);
+            if (!shown || info.getImageUrl() == null) {
+                finish();
             }
         }
 
         @Override
         public void onImageFetchComplete(Bitmap bitmap) {
-            onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE, null, bitmap, mCallId);
+            if (isAbandoned()) {
+                return;
+            }
+            applyRemotePhoto(mCallId, PRIORITY_PHONE_NUMBER_SERVICE, bitmap);
+            finish();
         }
     }
 
-    class LookupResultCallback implements LookupRequest.Callback {
+    class LookupResultCallback extends RemoteRequest implements LookupRequest.Callback {
 
-        private String mCallId;
-        private ImageUtils.BitmapLoadRequest mBitmapLoadRequest;
+        private String mNumberE164;
+        private final long mStartNanos = LookupLatencyStats.start();
 
-        public LookupResultCallback(String callId) {
-            mCallId = callId;
+        public LookupResultCallback(String callId, String numberE164) {
+            super(callId);
+            mNumberE164 = numberE164;
+        }
+
+        @Override
+        public void run() {
+            clearLookupInProgress();
+            super.run();
         }
 
         @Override
         public void onNewInfo(LookupRequest lookupRequest, final LookupResponse response) {
-            final ContactCacheEntry oldEntry = mInfoMap.get(mCallId);
-            if (oldEntry == null || response == null) {
-                // not interested in updates for this call anymore
+            LookupLatencyStats.getInstance().record(LookupLatencyStats.STAGE_LOOKUP_PROVIDER,
+                    mStartNanos, response != null && response.mStatusCode == StatusCode.SUCCESS);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLookupResult(response);
+                }
+            });
+        }
+
+        private void clearLookupInProgress() {
+            final PendingLookup lookup = mPendingLookups.get(mCallId);
+            if (lookup != null) {
+                lookup.mLookupProviderPending = false;
+            }
+            final ContactCacheEntry entry = mInfoMap.peek(mCallId);
+            if (entry != null && entry.isLookupInProgress) {
+                entry.isLookupInProgress = false;
+                sendInfoNotifications(mCallId, entry);
+            }
+        }
+
+        private void onLookupResult(final LookupResponse response) {
+            if (isAbandoned()) {
                 return;
             }
-            oldEntry.isLookupInProgress = false;
-            oldEntry.lookupStatus = response.mStatusCode;
+            final PendingLookup lookup = mPendingLookups.get(mCallId);
+            if (lookup != null) {
+                lookup.mLookupProviderPending = false;
+            }
 
             if (response == null || response.mStatusCode != StatusCode.SUCCESS) {
-                oldEntry.lookupProviderName = mLookupProvider.getDisplayName();
-                oldEntry.lookupStatus = StatusCode.FAIL;
-                mMainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        sendInfoNotifications(mCallId, oldEntry);
-                        clearCallbacks(mCallId);
-                    }
-                });
-
-            } else {
-                final ContactCacheEntry newEntry = new ContactCacheEntry();
-                newEntry.lookupProviderBadge = response.mAttributionLogo;
-                newEntry.lookupProviderName = response.mProviderName;
-
-                if (response.mStatusCode == StatusCode.SUCCESS) {
-                    newEntry.lookupStatus = StatusCode.SUCCESS;
-                    newEntry.name = response.mName;
-                    newEntry.number = response.mNumber;
-                    newEntry.location = response.mAddress;
-                    newEntry.spamCount = response.mSpamCount;
-                    newEntry.isSpam = response.mIsSpam;
-                    if (!TextUtils.isEmpty(response.mPhotoUrl)) {
-                        newEntry.displayPhotoUri = Uri.parse(response.mPhotoUrl);
-                    }
+                if (response != null) {
+                    mDiskCache.putMiss(mNumberE164, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER,
+                            null);
+                }
+                final ContactCacheEntry oldEntry = mInfoMap.peek(mCallId);
+                if (oldEntry != null && getEntryPriority(mCallId) < PRIORITY_LOOKUP_PROVIDER) {
+                    oldEntry.isLookupInProgress = false;
+                    oldEntry.lookupProviderName = mLookupProvider.getDisplayName();
+                    oldEntry.lookupStatus = StatusCode.FAIL;
+                    sendInfoNotifications(mCallId, oldEntry);
                 }
+                finish();
+                return;
+            }
 
-                mMainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mInfoMap.put(mCallId, newEntry);
-                        sendInfoNotifications(mCallId, newEntry);
-
-                        if (TextUtils.isEmpty(response.mPhotoUrl) || newEntry.isSpam) {
-                            // don't expect another callback if there is no image or if spam
-                            clearCallbacks(mCallId);
-                        } else {
-                            mBitmapLoadRequest = ImageUtils.getBitmapFromUrl(mContext, response.mPhotoUrl,
-                                    new ImageUtils.ImageLoadCallback<Bitmap>() {
-                                        @Override
-                                        public void onCompleted(Exception e, Bitmap result) {
-                                            if (result != null) {
-                                                onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
-                                                        null, result, mCallId);
-                                            }
-                                        }
-                                    });
-                        }
-                    }
-                });
+            final ContactCacheEntry newEntry = new ContactCacheEntry();
+            newEntry.lookupProviderBadge = response.mAttributionLogo;
+            newEntry.lookupProviderName = response.mProviderName;
+            newEntry.lookupStatus = StatusCode.SUCCESS;
+            newEntry.name = response.mName;
+            newEntry.number = response.mNumber;
+            newEntry.location = response.mAddress;
+            newEntry.spamCount = response.mSpamCount;
+            newEntry.isSpam = response.mIsSpam;
+            if (!TextUtils.isEmpty(response.mPhotoUrl)) {
+                newEntry.displayPhotoUri = Uri.parse(response.mPhotoUrl);
+            }
+
+            final boolean shown = publishEntry(mCallId, newEntry, PRIORITY_LOOKUP_PROVIDER);
+            if (shown) {
+                mDiskCache.put(new CallerIdDiskCache.Record(mNumberE164, newEntry.name,
+                        null, newEntry.location, newEntry.lookupProviderName,
+                        newEntry.spamCount, newEntry.isSpam, response.mPhotoUrl,
+                        CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER,
+                        System.currentTimeMillis()));
+            }
+
+            if (!shown || TextUtils.isEmpty(response.mPhotoUrl) || newEntry.isSpam) {
+                // don't expect another callback if there is no image or if spam
+                finish();
+            } else {
+                getBitmapFromUrl(mCallId, response.mPhotoUrl,
+                        new ImageUtils.ImageLoadCallback<Bitmap>() {
+                            @Override
+                            public void onCompleted(Exception e, Bitmap result) {
+                                if (isAbandoned()) {
+                                    return;
+                                }
+                                applyRemotePhoto(mCallId, PRIORITY_LOOKUP_PROVIDER, result);
+                                finish();
+                            }
+                        });
             }
         }
     }
@@ -522,43 +1139,232 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
      * make sure that the call state is reflected after the image is loaded.
      */
     @Override
+    @SuppressWarnings("unchecked")
     public void onImageLoadComplete(int token, Drawable photo, Bitmap photoIcon, Object cookie) {
         Log.d(this, "Image load complete with context: ", mContext);
         // TODO: may be nice to update the image view again once the newer one
         // is available on contacts database.
 
-        final String callId = (String) cookie;
-        final ContactCacheEntry entry = mInfoMap.get(callId);
-
-        if (entry == null) {
-            Log.e(this, "Image Load received for empty search entry.");
-            clearCallbacks(callId);
-            return;
-        }
-        Log.d(this, "setting photo for entry: ", entry);
+        final Pair<String, Uri> request = (Pair<String, Uri>) cookie;
+        final String callId = request.first;
 
         // Conference call icons are being handled in CallCardPresenter.
+        final Drawable drawable;
         if (photo != null) {
             Log.v(this, "direct drawable: ", photo);
-            entry.photo = photo;
+            drawable = photo;
         } else if (photoIcon != null) {
             Log.v(this, "photo icon: ", photoIcon);
-            entry.photo = new BitmapDrawable(mContext.getResources(), photoIcon);
+            drawable = new BitmapDrawable(mContext.getResources(), photoIcon);
         } else {
             Log.v(this, "unknown photo");
-            entry.photo = null;
+            drawable = null;
+        }
+        final PendingLookup lookup = mPendingLookups.get(callId);
+        if (lookup != null && request.second.equals(lookup.mPhotoUri)) {
+            lookup.mPhoto = drawable;
+            lookup.mPhotoLoaded = true;
+        }
+
+        final ContactCacheEntry entry = mInfoMap.peek(callId);
+        if (entry == null) {
+            Log.e(this, "Image Load received for empty search entry.");
+            completeSource(callId);
+            return;
+        }
+        if (!request.second.equals(entry.displayPhotoUri)) {
+            Log.d(this, "Contact photo is not for the entry shown");
+            completeSource(callId);
+            return;
         }
+        Log.d(this, "setting photo for entry: ", entry);
+        entry.photo = drawable;
+        // Account for the size of the new photo.
+        mInfoMap.put(callId, entry);
 
         sendImageNotifications(callId, entry);
-        clearCallbacks(callId);
+        completeSource(callId);
+    }
+
+    /**
+     * Loads a contact photo, delivering it through {@link #onImageLoadComplete}.
+     */
+    private void startContactPhotoLoad(String callId, Uri photoUri) {
+        final PendingLookup lookup = mPendingLookups.get(callId);
+        if (lookup != null) {
+            lookup.mPhotoUri = photoUri;
+            lookup.mPhoto = null;
+            lookup.mPhotoLoaded = false;
+        }
+        startSource(callId);
+        // Load the image with a callback to update the image state.
+        ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE, mContext,
+                photoUri, ContactInfoCache.this, Pair.create(callId, photoUri),
+                getExecutorPriority(callId));
+    }
+
+    /**
+     * @return The {@link CallerIdExecutor} priority of background work for the call, so that a
+     *      ringing call is served before the active call, which in turn is served before held
+     *      calls and conference participants.
+     */
+    private static int getExecutorPriority(String callId) {
+        final CallList callList = CallList.getInstance();
+        final Call call = callList.getCallById(callId);
+        if (call == null) {
+            return CallerIdExecutor.PRIORITY_SECONDARY;
+        }
+        final int state = call.getState();
+        if (state == Call.State.INCOMING || state == Call.State.CALL_WAITING) {
+            return CallerIdExecutor.PRIORITY_INCOMING;
+        }
+        if (call.getParentId() != null) {
+            return CallerIdExecutor.PRIORITY_CONFERENCE;
+        }
+        if (call == callList.getOutgoingOrActive()) {
+            return CallerIdExecutor.PRIORITY_PRIMARY;
+        }
+        return CallerIdExecutor.PRIORITY_SECONDARY;
+    }
+
+    /**
+     * Sets a photo fetched by a remote source, provided the entry shown for the call still comes
+     * from that source.
+     */
+    private void applyRemotePhoto(String callId, int priority, Bitmap bitmap) {
+        final ContactCacheEntry entry = mInfoMap.peek(callId);
+        if (bitmap == null || entry == null || getEntryPriority(callId) != priority) {
+            return;
+        }
+        entry.photo = new BitmapDrawable(mContext.getResources(), bitmap);
+        // Account for the size of the new photo.
+        mInfoMap.put(callId, entry);
+        sendImageNotifications(callId, entry);
+    }
+
+    /**
+     * Builds an entry from what the disk cache remembers about a number.
+     */
+    private ContactCacheEntry buildEntryFromRecord(CallerIdDiskCache.Record record,
+            String number) {
+        final ContactCacheEntry entry = new ContactCacheEntry();
+        entry.name = record.name;
+        entry.number = number;
+        entry.label = record.label;
+        entry.location = record.location;
+        entry.photo = getDefaultContactPhotoDrawable();
+        entry.spamCount = record.spamCount;
+        entry.isSpam = record.isSpam;
+        if (record.source == CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER) {
+            entry.lookupProviderName = record.lookupProviderName;
+            entry.lookupStatus = StatusCode.SUCCESS;
+        } else if (record.source == CallerIdDiskCache.SOURCE_CONTACTS
+                && record.photoUri != null) {
+            entry.displayPhotoUri = Uri.parse(record.photoUri);
+        }
+        return entry;
+    }
+
+    /**
+     * Loads the photo remembered by the disk cache for a call whose remote lookups are skipped.
+     */
+    private void loadRemotePhoto(final String callId, String url) {
+        final RemoteRequest request = new RemoteRequest(callId) {};
+        getBitmapFromUrl(callId, url, new ImageUtils.ImageLoadCallback<Bitmap>() {
+            @Override
+            public void onCompleted(Exception e, Bitmap result) {
+                if (request.isAbandoned()) {
+                    return;
+                }
+                applyRemotePhoto(callId, PRIORITY_DISK_CACHE, result);
+                request.finish();
+            }
+        });
+    }
+
+    /**
+     * Fetches a remote photo for a call, from the {@link ContactPhotoCache} if it has the photo,
+     * otherwise from the network, in which case the photo is cached.
+     */
+    private void getBitmapFromUrl(String callId, final String url,
+            final ImageUtils.ImageLoadCallback<Bitmap> callback) {
+        final ContactPhotoCache photoCache = ContactPhotoCache.getInstance(mContext);
+        photoCache.load(url, getExecutorPriority(callId), new ContactPhotoCache.LoadCallback() {
+            @Override
+            public void onLoaded(Bitmap bitmap) {
+                if (bitmap != null) {
+                    callback.onCompleted(null, bitmap);
+                    return;
+                }
+                ImageUtils.getBitmapFromUrl(mContext, url,
+                        new ImageUtils.ImageLoadCallback<Bitmap>() {
+                            @Override
+                            public void onCompleted(Exception e, Bitmap result) {
+                                photoCache.put(url, result);
+                                callback.onCompleted(e, result);
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * @return The number in E.164 format for the current country, or {@code null} if it
+     *      cannot be formatted.
+     */
+    private String getNumberE164(String number) {
+        return NumberNormalizer.getInstance(mContext).getE164(number);
+    }
+
+    /**
+     * @return The memory held by an entry, counting bitmaps which are not shared with other
+     *      entries.
+     */
+    private int getEntrySize(ContactCacheEntry entry) {
+        int size = ENTRY_OVERHEAD_BYTES;
+        if (entry.photo != mDefaultContactPhotoDrawable
+                && entry.photo != mConferencePhotoDrawable) {
+            size += LruMemoryCache.sizeOf(entry.photo);
+        }
+        size += LruMemoryCache.sizeOf(entry.lookupProviderBadge);
+        if (entry.inCallPluginInfoList != null) {
+            for (InCallPluginInfo info : entry.inCallPluginInfoList) {
+                size += LruMemoryCache.sizeOf(info.getPluginBrandIcon());
+                size += LruMemoryCache.sizeOf(info.getPluginVideoIcon());
+            }
+        }
+        return size;
+    }
+
+    public void dump(PrintWriter pw) {
+        mInfoMap.dump(pw);
+        pw.println(TAG + ": lookups=" + mLookupCount + " coalesced=" + mCoalescedLookupCount
+                + " inFlight=" + mLeaderByLookupKey.size() + " deadlineMs=" + mLookupDeadlineMs
+                + " pastDeadline=" + mDeadlineCount + " timedOut=" + mRequestTimeoutCount
+                + " cancelled=" + mCancelCount);
     }
 
     /**
      * Blows away the stored cache values.
      */
     public void clearCache() {
+        for (String callId : new ArrayList<>(mTokens.keySet())) {
+            cancelLookup(callId);
+        }
+        for (InCallPluginInfoAsyncTask task : mPluginInfoTasks.values()) {
+            task.cancel(true);
+        }
+        mPluginInfoTasks.clear();
         mInfoMap.clear();
         mCallBacks.clear();
+        mLeaderByLookupKey.clear();
+        mLookupKeyByLeader.clear();
+        mFollowersByLeader.clear();
+        for (PendingLookup lookup : mPendingLookups.values()) {
+            mMainHandler.removeCallbacks(lookup);
+        }
+        mPendingLookups.clear();
+        mEntryPriorities.clear();
     }
 
     private ContactCacheEntry buildEntry(Context context, String callId,
@@ -722,19 +1528,78 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
                 callBack.onContactInfoComplete(callId, entry);
             }
         }
+
+        // Calls waiting on this lookup share its result.
+        final Set<String> followers = mFollowersByLeader.get(callId);
+        if (followers != null) {
+            for (String followerId : followers) {
+                mInfoMap.put(followerId, entry);
+                final Set<ContactInfoCacheCallback> followerCallBacks =
+                        mCallBacks.get(followerId);
+                if (followerCallBacks != null) {
+                    for (ContactInfoCacheCallback callBack : followerCallBacks) {
+                        callBack.onContactInfoComplete(followerId, entry);
+                    }
+                }
+            }
+        }
     }
 
     private void sendImageNotifications(String callId, ContactCacheEntry entry) {
+        if (entry.photo == null) {
+            return;
+        }
         final Set<ContactInfoCacheCallback> callBacks = mCallBacks.get(callId);
-        if (callBacks != null && entry.photo != null) {
+        if (callBacks != null) {
             for (ContactInfoCacheCallback callBack : callBacks) {
                 callBack.onImageLoadComplete(callId, entry);
             }
         }
+
+        final Set<String> followers = mFollowersByLeader.get(callId);
+        if (followers != null) {
+            for (String followerId : followers) {
+                mInfoMap.put(followerId, entry);
+                final Set<ContactInfoCacheCallback> followerCallBacks =
+                        mCallBacks.get(followerId);
+                if (followerCallBacks != null) {
+                    for (ContactInfoCacheCallback callBack : followerCallBacks) {
+                        callBack.onImageLoadComplete(followerId, entry);
+                    }
+                }
+            }
+        }
     }
 
     private void clearCallbacks(String callId) {
         mCallBacks.remove(callId);
+
+        // The lookup is complete, so the calls waiting on it are done too.
+        final Set<String> followers = mFollowersByLeader.remove(callId);
+        if (followers != null) {
+            for (String followerId : followers) {
+                mCallBacks.remove(followerId);
+            }
+        }
+        final String lookupKey = mLookupKeyByLeader.remove(callId);
+        if (lookupKey != null) {
+            mLeaderByLookupKey.remove(lookupKey);
+        }
+    }
+
+    /**
+     * @return The key identifying lookups which give the same result as the lookup for the call,
+     *      or {@code null} if the call has no number.
+     */
+    private String getLookupKey(Call call, boolean isIncoming) {
+        final String number = call.getNumber();
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final String numberE164 = getNumberE164(number);
+        // Presentation and direction affect what is displayed for the number.
+        return (isIncoming ? "in:" : "out:") + call.getNumberPresentation() + ":"
+                + (numberE164 != null ? numberE164 : number);
     }
 
     /**
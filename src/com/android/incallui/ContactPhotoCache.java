@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DisplayPhoto;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+
+/**
+ * Caches caller photos by the URI or URL they were loaded from, so that the photo of a repeat
+ * caller appears without decoding it again or fetching it over the network. Decoded bitmaps are
+ * kept in a byte-bounded memory LRU; a scaled down copy of each is also written to disk, where
+ * it survives the process.
+ *
+ * Display photos of contacts get a new URI whenever they change, so they never go stale. The
+ * thumbnails of contacts without a display photo may change behind the same URI, so they are
+ * dropped with {@link #invalidateContact} when their contact is edited.
+ */
+public class ContactPhotoCache {
+    private static final String TAG = "ContactPhotoCache";
+
+    /**
+     * Callback for {@link #load}.
+     */
+    public interface LoadCallback {
+        /**
+         * Called on the main thread.
+         *
+         * @param bitmap The cached photo, or null if it is not cached.
+         */
+        void onLoaded(Bitmap bitmap);
+    }
+
+    private static final String DIRECTORY_NAME = "caller_photos";
+    /** File name prefix of contact photos which may change behind the same URI. */
+    private static final String CONTACT_PREFIX = "c_";
+    private static final String DISPLAY_PHOTO_PREFIX = "d_";
+    private static final String REMOTE_PREFIX = "r_";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * Room for about eight photos of {@link #DISK_PHOTO_SIZE}. Photos shown for calls are shared
+     * with the entries of {@link ContactInfoCache}, so they are not held twice.
+     */
+    private static final long MAX_MEMORY_BYTES =
+            Math.min(Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024);
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+    /** Longest edge of the copies written to disk; the size of a contacts display photo. */
+    private static final int DISK_PHOTO_SIZE = 720;
+    private static final int JPEG_QUALITY = 90;
+
+    private static ContactPhotoCache sInstance;
+
+    private final File mDirectory;
+    private final Executor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LruMemoryCache<String, Bitmap> mMemoryCache;
+    private int mDiskHitCount;
+    private int mDiskMissCount;
+
+    public static synchronized ContactPhotoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactPhotoCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME),
+                    CallerIdExecutor.getInstance().newSerialExecutor(
+                            CallerIdExecutor.PRIORITY_BACKGROUND));
+        }
+        return sInstance;
+    }
+
+    ContactPhotoCache(File directory, Executor executor) {
+        mDirectory = directory;
+        mExecutor = executor;
+        mMemoryCache = new LruMemoryCache<>(TAG, MAX_MEMORY_BYTES,
+                new LruMemoryCache.Sizer<Bitmap>() {
+                    @Override
+                    public int sizeOf(Bitmap bitmap) {
+                        return bitmap.getAllocationByteCount();
+                    }
+                }, null);
+    }
+
+    /**
+     * @return The photo if it is in memory, or null.
+     */
+    public Bitmap getFromMemory(String key) {
+        return TextUtils.isEmpty(key) ? null : mMemoryCache.get(key);
+    }
+
+    /**
+     * Looks a photo up in memory, then on disk. Reads the disk on the calling thread.
+     *
+     * @return The photo, or null if it is not cached.
+     */
+    public Bitmap get(String key) {
+        Bitmap bitmap = getFromMemory(key);
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        if (bitmap != null) {
+            touch(key);
+            return bitmap;
+        }
+        final File file = getFile(key);
+        bitmap = file.exists() ? BitmapFactory.decodeFile(file.getPath()) : null;
+        synchronized (this) {
+            if (bitmap != null) {
+                mDiskHitCount++;
+            } else {
+                mDiskMissCount++;
+            }
+        }
+        if (bitmap != null) {
+            // Keep the photos of frequent callers when the disk tier is trimmed.
+            file.setLastModified(System.currentTimeMillis());
+            mMemoryCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Looks a photo up like {@link #get}, answering from memory right away and reading the disk
+     * on a {@link CallerIdExecutor} thread.
+     *
+     * @param priority One of the {@link CallerIdExecutor} priorities.
+     */
+    public void load(final String key, int priority, final LoadCallback callback) {
+        final Bitmap bitmap = getFromMemory(key);
+        if (bitmap != null || TextUtils.isEmpty(key)) {
+            if (bitmap != null) {
+                touch(key);
+            }
+            callback.onLoaded(bitmap);
+            return;
+        }
+        CallerIdExecutor.getInstance().execute(priority, new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = get(key);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLoaded(bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stores a photo in memory, and schedules writing a scaled down copy of it to disk.
+     */
+    public void put(final String key, final Bitmap bitmap) {
+        if (TextUtils.isEmpty(key) || bitmap == null) {
+            return;
+        }
+        mMemoryCache.put(key, bitmap);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(key, bitmap);
+            }
+        });
+    }
+
+    /**
+     * Drops the photo stored for a key, e.g. because it is known to have changed.
+     */
+    public void invalidate(final String key) {
+        if (TextUtils.isEmpty(key)) {
+            return;
+        }
+        mMemoryCache.remove(key);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getFile(key).delete();
+            }
+        });
+    }
+
+    /**
+     * Drops the photo of an edited contact, if it may have changed behind the same URI.
+     */
+    public void invalidateContact(long contactId) {
+        invalidate(Uri.withAppendedPath(ContentUris.withAppendedId(Contacts.CONTENT_URI,
+                contactId), Contacts.Photo.CONTENT_DIRECTORY).toString());
+    }
+
+    /**
+     * Drops the contact photos which may have changed behind the same URI, e.g. when too many
+     * contacts were edited to invalidate them one by one. Display photos and photos fetched from
+     * remote sources are kept.
+     */
+    public void invalidateContactPhotos() {
+        for (String key : mMemoryCache.keys()) {
+            if (isContactPhoto(key) && !isDisplayPhoto(key)) {
+                mMemoryCache.remove(key);
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = mDirectory.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (file.getName().startsWith(CONTACT_PREFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks the photo stored on disk for a key as recently used, in the background.
+     */
+    private void touch(final String key) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File file = getFile(key);
+                if (file.exists()) {
+                    file.setLastModified(System.currentTimeMillis());
+                }
+            }
+        });
+    }
+
+    public void dump(PrintWriter pw) {
+        mMemoryCache.dump(pw);
+        synchronized (this) {
+            pw.println(TAG + ": diskHits=" + mDiskHitCount + " diskMisses=" + mDiskMissCount);
+        }
+    }
+
+    private void write(String key, Bitmap bitmap) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        final Bitmap scaled = scaleForDisk(bitmap);
+        final File file = getFile(key);
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            if (!scaled.compress(scaled.hasAlpha()
+                    ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                    JPEG_QUALITY, out)) {
+                throw new IOException("Unable to compress photo");
+            }
+            out.close();
+            out = null;
+            // Readers never see a partially written photo.
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write photo: " + e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore, the photo was not written anyway.
+                }
+            }
+        }
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently used photos until the disk tier is within budget. Photos are
+     * marked as used when they are written or read.
+     */
+    private void trimDisk() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        if (bytes <= MAX_DISK_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && bytes > MAX_DISK_BYTES; i++) {
+            bytes -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static Bitmap scaleForDisk(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int longerEdge = Math.max(width, height);
+        if (longerEdge <= DISK_PHOTO_SIZE) {
+            return bitmap;
+        }
+        final float ratio = (float) DISK_PHOTO_SIZE / longerEdge;
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * ratio)),
+                Math.max(1, Math.round(height * ratio)), true);
+    }
+
+    private File getFile(String key) {
+        final String prefix = !isContactPhoto(key) ? REMOTE_PREFIX
+                : isDisplayPhoto(key) ? DISPLAY_PHOTO_PREFIX : CONTACT_PREFIX;
+        return new File(mDirectory, prefix + hash(key));
+    }
+
+    private static boolean isContactPhoto(String key) {
+        return key.startsWith("content:");
+    }
+
+    private static boolean isDisplayPhoto(String key) {
+        return key.startsWith(DisplayPhoto.CONTENT_URI.toString() + "/");
+    }
+
+    private static String hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform provides SHA-1.
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -21,14 +21,14 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
 import android.provider.ContactsContract.Contacts;
+import android.util.DisplayMetrics;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -60,6 +60,30 @@ public class ContactsAsyncHelper {
     // constants
     private static final int EVENT_LOAD_IMAGE = 1;
 
+    /** Initial size of the buffer photos are read into; it grows to fit larger photos. */
+    private static final int INITIAL_PHOTO_BUFFER_SIZE = 64 * 1024;
+    /** Larger read buffers are dropped after use rather than kept for the next photo. */
+    private static final int MAX_RETAINED_PHOTO_BUFFER_SIZE = 1024 * 1024;
+    /** Size of the decoder's scratch buffer, as recommended by {@link BitmapFactory.Options}. */
+    private static final int DECODE_TEMP_STORAGE_SIZE = 16 * 1024;
+
+    /**
+     * Buffers reused by the photo decodes of a worker thread, so that a decode does not allocate
+     * more than the bitmap it returns.
+     */
+    private static class DecodeBuffers {
+        byte[] data = new byte[INITIAL_PHOTO_BUFFER_SIZE];
+        final byte[] tempStorage = new byte[DECODE_TEMP_STORAGE_SIZE];
+    }
+
+    private static final ThreadLocal<DecodeBuffers> sDecodeBuffers =
+            new ThreadLocal<DecodeBuffers>() {
+                @Override
+                protected DecodeBuffers initialValue() {
+                    return new DecodeBuffers();
+                }
+            };
+
     private final Handler mResultHandler = new Handler() {
         /** Called when loading is done. */
         @Override
@@ -79,9 +103,6 @@ public class ContactsAsyncHelper {
         }
     };
 
-    /** Handler run on a worker thread to load photo asynchronously. */
-    private static Handler sThreadHandler;
-
     /** For forcing the system to call its constructor */
     @SuppressWarnings("unused")
     private static ContactsAsyncHelper sInstance;
@@ -100,20 +121,36 @@ public class ContactsAsyncHelper {
     }
 
     /**
-     * Thread worker class that handles the task of opening the stream and loading
-     * the images.
+     * Task run on a {@link CallerIdExecutor} thread that handles the task of opening the stream
+     * and loading the images.
      */
-    private class WorkerHandler extends Handler {
-        public WorkerHandler(Looper looper) {
-            super(looper);
+    private class Worker implements Runnable {
+        private final Message msg;
+
+        public Worker(Message msg) {
+            this.msg = msg;
         }
 
         @Override
-        public void handleMessage(Message msg) {
+        public void run() {
             WorkerArgs args = (WorkerArgs) msg.obj;
 
             switch (msg.arg1) {
                 case EVENT_LOAD_IMAGE:
+                    final long start = LookupLatencyStats.start();
+                    final ContactPhotoCache photoCache =
+                            ContactPhotoCache.getInstance(args.context);
+                    final String key = args.displayPhotoUri.toString();
+                    final Bitmap cached = photoCache.get(key);
+                    if (cached != null) {
+                        args.photo = new BitmapDrawable(args.context.getResources(), cached);
+                        args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo);
+                        Log.d(ContactsAsyncHelper.this, "Cached image: " + msg.arg1 +
+                                " token: " + msg.what + " image URI: " + args.displayPhotoUri);
+                        LookupLatencyStats.getInstance().record(
+                                LookupLatencyStats.STAGE_IMAGE_LOAD, start, true);
+                        break;
+                    }
                     InputStream inputStream = null;
                     try {
                         try {
@@ -124,12 +161,10 @@ public class ContactsAsyncHelper {
                         }
 
                         if (inputStream != null) {
-                            args.photo = Drawable.createFromStream(inputStream,
-                                    args.displayPhotoUri.toString());
-
-                            // This assumes Drawable coming from contact database is usually
-                            // BitmapDrawable and thus we can have (down)scaled version of it.
-                            args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo);
+                            decodePhoto(args, inputStream);
+                            if (args.photo != null) {
+                                photoCache.put(key, ((BitmapDrawable) args.photo).getBitmap());
+                            }
 
                             Log.d(ContactsAsyncHelper.this, "Loading image: " + msg.arg1 +
                                     " token: " + msg.what + " image URI: " + args.displayPhotoUri);
@@ -149,6 +184,8 @@ public class ContactsAsyncHelper {
                             }
                         }
                     }
+                    LookupLatencyStats.getInstance().record(LookupLatencyStats.STAGE_IMAGE_LOAD,
+                            start, args.photo != null);
                     break;
                 default:
             }
@@ -160,10 +197,81 @@ public class ContactsAsyncHelper {
             reply.sendToTarget();
         }
 
+        /**
+         * Decodes a photo into {@link WorkerArgs#photo}, subsampled while it is larger than needed
+         * to fill the width of the call card in portrait, and the notification icon into
+         * {@link WorkerArgs#photoIcon}. The stream is read once into a reused buffer; its bounds
+         * are decoded from there first, then the photo and the icon.
+         */
+        private void decodePhoto(WorkerArgs args, InputStream inputStream) {
+            final Context context = args.context;
+            final DecodeBuffers buffers = sDecodeBuffers.get();
+            int length = 0;
+            try {
+                int read;
+                while ((read = inputStream.read(buffers.data, length,
+                        buffers.data.length - length)) != -1) {
+                    length += read;
+                    if (length == buffers.data.length) {
+                        final byte[] data = new byte[buffers.data.length * 2];
+                        System.arraycopy(buffers.data, 0, data, 0, length);
+                        buffers.data = data;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(this, "Error reading photo input stream", e);
+                return;
+            }
+
+            try {
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inTempStorage = buffers.tempStorage;
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(buffers.data, 0, length, options);
+                final int width = options.outWidth;
+                final int height = options.outHeight;
+                if (width <= 0 || height <= 0) {
+                    Log.w(this, "Unable to decode photo bounds.");
+                    return;
+                }
+
+                // The photo is cropped to fill the call card, which is as wide as the shorter
+                // edge of the screen.
+                final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+                options.inSampleSize = getSampleSize(width, height,
+                        Math.min(metrics.widthPixels, metrics.heightPixels));
+                options.inJustDecodeBounds = false;
+                final Bitmap bitmap =
+                        BitmapFactory.decodeByteArray(buffers.data, 0, length, options);
+                if (bitmap == null) {
+                    return;
+                }
+                args.photo = new BitmapDrawable(context.getResources(), bitmap);
+
+                final int iconSize = context.getResources()
+                        .getDimensionPixelSize(R.dimen.notification_icon_size);
+                if (Math.max(width, height) <= iconSize) {
+                    args.photoIcon = bitmap;
+                } else {
+                    args.photoIcon = decodeIcon(buffers.data, length, width, height, iconSize,
+                            buffers.tempStorage);
+                    if (args.photoIcon != null) {
+                        // Undo the density the decoder scaled to.
+                        args.photoIcon.setDensity(metrics.densityDpi);
+                    }
+                }
+            } finally {
+                if (buffers.data.length > MAX_RETAINED_PHOTO_BUFFER_SIZE) {
+                    buffers.data = new byte[INITIAL_PHOTO_BUFFER_SIZE];
+                }
+            }
+        }
+
         /**
          * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
          * return null when the given Drawable isn't BitmapDrawable, or if the system fails to
-         * create a scaled Bitmap for the Drawable.
+         * create a scaled Bitmap for the Drawable. Only used for cached photos, whose encoded
+         * form is not at hand; decoded photos get their icon from {@link #decodeIcon}.
          */
         private Bitmap getPhotoIconWhenAppropriate(Context context, Drawable photo) {
             if (!(photo instanceof BitmapDrawable)) {
@@ -196,13 +304,44 @@ public class ContactsAsyncHelper {
         }
     }
 
+    /**
+     * Decodes an image so that its longer edge is as long as the icon size, subsampling it as far
+     * as possible and letting the decoder scale the rest of the way.
+     *
+     * @param width Width of the encoded image.
+     * @param height Height of the encoded image.
+     * @return The icon, or null if it could not be decoded.
+     */
+    static Bitmap decodeIcon(byte[] data, int length, int width, int height, int iconSize,
+            byte[] tempStorage) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = tempStorage;
+        options.inSampleSize = getSampleSize(width, height, iconSize);
+        final int sampledLongerEdge = Math.max(width, height) / options.inSampleSize;
+        if (sampledLongerEdge > iconSize) {
+            options.inScaled = true;
+            options.inDensity = sampledLongerEdge;
+            options.inTargetDensity = iconSize;
+        }
+        return BitmapFactory.decodeByteArray(data, 0, length, options);
+    }
+
+    /**
+     * @return The largest power of two the image can be subsampled by while both of its edges
+     *      stay at least as long as the target size.
+     */
+    static int getSampleSize(int width, int height, int targetSize) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetSize && height / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     /**
      * Private constructor for static class
      */
     private ContactsAsyncHelper() {
-        HandlerThread thread = new HandlerThread("ContactsAsyncWorker");
-        thread.start();
-        sThreadHandler = new WorkerHandler(thread.getLooper());
     }
 
     /**
@@ -223,6 +362,17 @@ public class ContactsAsyncHelper {
      */
     public static final void startObtainPhotoAsync(int token, Context context, Uri displayPhotoUri,
             OnImageLoadCompleteListener listener, Object cookie) {
+        startObtainPhotoAsync(token, context, displayPhotoUri, listener, cookie,
+                CallerIdExecutor.PRIORITY_PRIMARY);
+    }
+
+    /**
+     * Starts an asynchronous image load at the given {@link CallerIdExecutor} priority.
+     *
+     * @see #startObtainPhotoAsync(int, Context, Uri, OnImageLoadCompleteListener, Object)
+     */
+    public static final void startObtainPhotoAsync(int token, Context context, Uri displayPhotoUri,
+            OnImageLoadCompleteListener listener, Object cookie, int priority) {
         // in case the source caller info is null, the URI will be null as well.
         // just update using the placeholder image in this case.
         if (displayPhotoUri == null) {
@@ -241,7 +391,8 @@ public class ContactsAsyncHelper {
         args.listener = listener;
 
         // setup message arguments
-        Message msg = sThreadHandler.obtainMessage(token);
+        Message msg = Message.obtain();
+        msg.what = token;
         msg.arg1 = EVENT_LOAD_IMAGE;
         msg.obj = args;
 
@@ -249,7 +400,7 @@ public class ContactsAsyncHelper {
                 ", displaying default image for now.");
 
         // notify the thread to begin working
-        sThreadHandler.sendMessage(msg);
+        CallerIdExecutor.getInstance().execute(priority, sInstance.new Worker(msg));
     }
 
 
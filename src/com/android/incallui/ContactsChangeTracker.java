@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserManager;
+import android.preference.PreferenceManager;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Tells which contacts were inserted or edited, so that the caller id caches only drop what
+ * went stale. Most notifications of the contacts provider are about usage statistics, which
+ * leave {@link Contacts#CONTACT_LAST_UPDATED_TIMESTAMP} alone and are therefore ignored.
+ *
+ * The time of the last check is persisted, so that contacts edited while the process was not
+ * running are reported when it starts.
+ *
+ * Only the contacts of the personal profile are observed. Callers are also looked up among the
+ * contacts of a work profile, whose edits go unnoticed; see {@link #hasWorkProfile}. Adding or
+ * removing a work profile reports every contact as changed.
+ */
+public class ContactsChangeTracker {
+    private static final String TAG = "ContactsChangeTracker";
+
+    /**
+     * Callback for {@link ContactsChangeTracker}.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread.
+         *
+         * @param contactIds Ids of the contacts inserted or edited, or null if too many have
+         *      changed to list them, in which case every contact must be assumed changed.
+         * @param numbersE164 Phone numbers of those contacts in E.164 format, or null along with
+         *      the ids.
+         */
+        void onContactsChanged(Set<Long> contactIds, Set<String> numbersE164);
+    }
+
+    private static final String PREF_LAST_CHECK = "contacts_change_tracker_last_check";
+    /** Notifications come in bursts, e.g. during a sync, so checks wait for them to settle. */
+    private static final long CHECK_DELAY_MS = 1000;
+    /** Above this many changed contacts, all contacts are reported as changed. */
+    private static final int MAX_REPORTED_CONTACTS = 200;
+
+    private static final String[] CONTACTS_PROJECTION = new String[] {
+            Contacts._ID,
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+    };
+    private static final String[] PHONE_PROJECTION = new String[] {
+            Phone.NUMBER,
+    };
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mHasWorkProfile;
+    private final Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            });
+        }
+    };
+
+    public ContactsChangeTracker(Context context, Listener listener) {
+        mContext = context;
+        mListener = listener;
+        mExecutor = CallerIdExecutor.getInstance().newSerialExecutor(
+                CallerIdExecutor.PRIORITY_BACKGROUND);
+        context.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                new ContentObserver(mMainHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mMainHandler.removeCallbacks(mCheckRunnable);
+                        mMainHandler.postDelayed(mCheckRunnable, CHECK_DELAY_MS);
+                    }
+                });
+        mHasWorkProfile = queryHasWorkProfile();
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mHasWorkProfile = queryHasWorkProfile();
+                Log.d(TAG, "Work profile changed: " + intent.getAction());
+                mListener.onContactsChanged(null, null);
+            }
+        }, filter);
+        // Catch up with the edits made while the process was not running.
+        mCheckRunnable.run();
+    }
+
+    /**
+     * @return {@code true} if the user has a work profile, whose contacts are not tracked. Any
+     *      number may then have become a work contact without being reported.
+     */
+    public boolean hasWorkProfile() {
+        return mHasWorkProfile;
+    }
+
+    private boolean queryHasWorkProfile() {
+        final UserManager userManager =
+                (UserManager) mContext.getSystemService(Context.USER_SERVICE);
+        return userManager != null && userManager.getUserProfiles().size() > 1;
+    }
+
+    private void check() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        final long lastCheck = prefs.getLong(PREF_LAST_CHECK, 0);
+        if (lastCheck == 0) {
+            // What was cached before the first check cannot be trusted.
+            prefs.edit().putLong(PREF_LAST_CHECK, System.currentTimeMillis()).apply();
+            notifyListener(null, null);
+            return;
+        }
+
+        final Set<Long> contactIds = Sets.newHashSet();
+        long newestUpdate = lastCheck;
+        final Cursor cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                CONTACTS_PROJECTION, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?",
+                new String[] { String.valueOf(lastCheck) }, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+                newestUpdate = Math.max(newestUpdate, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (contactIds.isEmpty()) {
+            return;
+        }
+        prefs.edit().putLong(PREF_LAST_CHECK, newestUpdate).apply();
+
+        if (contactIds.size() > MAX_REPORTED_CONTACTS) {
+            Log.d(TAG, contactIds.size() + " contacts changed");
+            notifyListener(null, null);
+            return;
+        }
+        Log.d(TAG, "Contacts changed: " + contactIds);
+        notifyListener(contactIds, queryNumbers(contactIds));
+    }
+
+    /**
+     * @return The numbers of the contacts, in E.164 format for the current country.
+     */
+    private Set<String> queryNumbers(Set<Long> contactIds) {
+        final Set<String> numbers = Sets.newHashSet();
+        final Cursor cursor = mContext.getContentResolver().query(Phone.CONTENT_URI,
+                PHONE_PROJECTION,
+                Phone.CONTACT_ID + " IN (" + TextUtils.join(",", contactIds) + ")", null, null);
+        if (cursor == null) {
+            return numbers;
+        }
+        // Not memoized: these numbers are seldom looked up again soon.
+        final String countryIso = NumberNormalizer.getInstance(mContext).getCountryIso();
+        try {
+            while (cursor.moveToNext()) {
+                final String number = cursor.getString(0);
+                final String numberE164 = TextUtils.isEmpty(number)
+                        ? null : PhoneNumberUtils.formatNumberToE164(number, countryIso);
+                if (numberE164 != null) {
+                    numbers.add(numberE164);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return numbers;
+    }
+
+    private void notifyListener(final Set<Long> contactIds, final Set<String> numbersE164) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onContactsChanged(contactIds, numbersE164);
+            }
+        });
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Memoizes the location descriptions of unknown numbers. Numbers from the same area share their
+ * description, so results are stored under the number without its last digits and found again
+ * by longest prefix match. The connection to the home location provider is held across lookups.
+ */
+public class GeoDescriptionCache {
+    private static final String TAG = "GeoDescriptionCache";
+
+    private static final Uri CONTENT_URI = Uri.parse("content://geocoded_location/location");
+    private static final String METHOD_GET_LOCATION = "getLocation";
+    private static final String RESULT_LOCATION = "location";
+
+    /** Trailing digits which are assumed to not affect the location of a number. */
+    private static final int SUBSCRIBER_DIGITS = 4;
+    /** Shortest prefix stored or matched, so that a country code alone never matches. */
+    private static final int MIN_PREFIX_LENGTH = 5;
+    private static final int MAX_ENTRIES = 256;
+    /** Stored for numbers without a description, since null means not cached. */
+    private static final String NO_DESCRIPTION = "";
+
+    private static GeoDescriptionCache sInstance;
+
+    private final Context mContext;
+    /** Descriptions by number prefix, least recently used first. */
+    private final LinkedHashMap<String, String> mDescriptions =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private final Object mProviderLock = new Object();
+    private ContentProviderClient mProvider;
+    /** The locale and country the stored descriptions were made for. */
+    private Locale mLocale;
+    private String mCountryIso;
+    private int mHitCount;
+    private int mMissCount;
+    private int mUncachedCount;
+    private int mProviderErrorCount;
+
+    public static synchronized GeoDescriptionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GeoDescriptionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GeoDescriptionCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return A geographical description of the number, or null if there is none.
+     */
+    public String getDescription(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final Locale locale = mContext.getResources().getConfiguration().locale;
+        final NumberNormalizer normalizer = NumberNormalizer.getInstance(mContext);
+        final String countryIso = normalizer.getCountryIso();
+        final String numberE164 = normalizer.getE164(number);
+        final String prefix = numberE164 == null
+                || numberE164.length() - SUBSCRIBER_DIGITS < MIN_PREFIX_LENGTH
+                ? null : numberE164.substring(0, numberE164.length() - SUBSCRIBER_DIGITS);
+
+        synchronized (this) {
+            if (!locale.equals(mLocale) || !TextUtils.equals(countryIso, mCountryIso)) {
+                // Descriptions are localized, and numbers are parsed for the current country.
+                mDescriptions.clear();
+                mLocale = locale;
+                mCountryIso = countryIso;
+            }
+            if (prefix == null) {
+                mUncachedCount++;
+            } else {
+                for (int end = numberE164.length(); end >= MIN_PREFIX_LENGTH; end--) {
+                    final String description = mDescriptions.get(numberE164.substring(0, end));
+                    if (description != null) {
+                        mHitCount++;
+                        return description == NO_DESCRIPTION ? null : description;
+                    }
+                }
+                mMissCount++;
+            }
+        }
+
+        String description = null;
+        if (mContext.getResources().getBoolean(R.bool.enable_home_location)) {
+            description = queryProvider(number);
+        }
+        if (description == null) {
+            description = CallerInfo.getGeoDescription(mContext, number);
+        }
+        if (prefix != null) {
+            synchronized (this) {
+                mDescriptions.put(prefix, description == null ? NO_DESCRIPTION : description);
+            }
+        }
+        return description;
+    }
+
+    /**
+     * @return The location of the number according to the home location provider, or null if
+     *      the provider is not available or does not know the number.
+     */
+    private String queryProvider(String number) {
+        synchronized (mProviderLock) {
+            if (mProvider == null) {
+                mProvider = mContext.getContentResolver()
+                        .acquireUnstableContentProviderClient(CONTENT_URI);
+                if (mProvider == null) {
+                    return null;
+                }
+            }
+            try {
+                final Bundle result = mProvider.call(METHOD_GET_LOCATION, number, null);
+                return result != null ? result.getString(RESULT_LOCATION) : null;
+            } catch (RemoteException e) {
+                // The provider died; connect again for the next number.
+                Log.w(TAG, "Home location provider failed: " + e);
+                mProviderErrorCount++;
+                mProvider.release();
+                mProvider = null;
+                return null;
+            }
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        final int lookups = mHitCount + mMissCount;
+        pw.println(TAG + ": entries=" + mDescriptions.size() + " hits=" + mHitCount
+                + " misses=" + mMissCount + " uncached=" + mUncachedCount
+                + " hitRate=" + (lookups == 0 ? 0 : 100 * mHitCount / lookups) + "%"
+                + " providerErrors=" + mProviderErrorCount);
+    }
+}
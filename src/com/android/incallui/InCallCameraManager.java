@@ -25,9 +25,6 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.util.Size;
 
 import java.lang.String;
-import java.util.Collections;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Set;
 
 /**
  * Used to track which camera is used for outgoing video.
@@ -38,8 +35,8 @@ public class InCallCameraManager {
         void onActiveCameraSelectionChanged(boolean isUsingFrontFacingCamera);
     }
 
-    private final Set<Listener> mCameraSelectionListeners = Collections.
-        newSetFromMap(new ConcurrentHashMap<Listener, Boolean>(8,0.9f,1));
+    private final ListenerList<Listener> mCameraSelectionListeners =
+            new ListenerList<>(Listener.class);
 
     /**
      * The camera ID for the front facing camera.
@@ -84,7 +81,9 @@ public class InCallCameraManager {
      */
     public void setUseFrontFacingCamera(boolean useFrontFacingCamera) {
         mUseFrontFacingCamera = useFrontFacingCamera;
-        for (Listener listener : mCameraSelectionListeners) {
+        final Listener[] listeners = mCameraSelectionListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final Listener listener = listeners[i];
             listener.onActiveCameraSelectionChanged(mUseFrontFacingCamera);
         }
     }
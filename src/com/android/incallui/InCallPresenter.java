@@ -47,13 +47,9 @@ import com.android.phone.common.incall.DialerDataSubscription;
 
 import com.google.common.base.Preconditions;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Takes updates from the CallList and notifies the InCallActivity (UI)
@@ -78,27 +74,22 @@ public class InCallPresenter implements CallList.Listener,
 
     private static InCallPresenter sInCallPresenter;
 
-    /**
-     * ConcurrentHashMap constructor params: 8 is initial table size, 0.9f is
-     * load factor before resizing, 1 means we only expect a single thread to
-     * access the map so make only a single shard
-     */
-    private final Set<InCallStateListener> mListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<InCallStateListener, Boolean>(8, 0.9f, 1));
-    private final List<IncomingCallListener> mIncomingCallListeners = new CopyOnWriteArrayList<>();
-    private final Set<InCallDetailsListener> mDetailsListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<InCallDetailsListener, Boolean>(8, 0.9f, 1));
-    private final Set<CanAddCallListener> mCanAddCallListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<CanAddCallListener, Boolean>(8, 0.9f, 1));
-    private final Set<InCallUiListener> mInCallUiListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<InCallUiListener, Boolean>(8, 0.9f, 1));
-    private final Set<InCallOrientationListener> mOrientationListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<InCallOrientationListener, Boolean>(8, 0.9f, 1));
-    private final Set<InCallEventListener> mInCallEventListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<InCallEventListener, Boolean>(8, 0.9f, 1));
-    private final Set<InCallPluginUpdateListener> mInCallPluginUpdateListeners =
-            Collections.newSetFromMap(
-                    new ConcurrentHashMap<InCallPluginUpdateListener, Boolean>(8, 0.9f, 1));
+    private final ListenerList<InCallStateListener> mListeners =
+            new ListenerList<>(InCallStateListener.class);
+    private final ListenerList<IncomingCallListener> mIncomingCallListeners =
+            new ListenerList<>(IncomingCallListener.class);
+    private final ListenerList<InCallDetailsListener> mDetailsListeners =
+            new ListenerList<>(InCallDetailsListener.class);
+    private final ListenerList<CanAddCallListener> mCanAddCallListeners =
+            new ListenerList<>(CanAddCallListener.class);
+    private final ListenerList<InCallUiListener> mInCallUiListeners =
+            new ListenerList<>(InCallUiListener.class);
+    private final ListenerList<InCallOrientationListener> mOrientationListeners =
+            new ListenerList<>(InCallOrientationListener.class);
+    private final ListenerList<InCallEventListener> mInCallEventListeners =
+            new ListenerList<>(InCallEventListener.class);
+    private final ListenerList<InCallPluginUpdateListener> mInCallPluginUpdateListeners =
+            new ListenerList<>(InCallPluginUpdateListener.class);
 
     private AudioModeProvider mAudioModeProvider;
     private StatusBarNotifier mStatusBarNotifier;
@@ -153,7 +144,15 @@ public class InCallPresenter implements CallList.Listener,
                 Log.w(this, "Call not found in call list: " + telecomCall);
                 return;
             }
-            for (InCallDetailsListener listener : mDetailsListeners) {
+            // The call registered its own callback first, so it has already processed these
+            // details; skip the listeners if nothing actually changed.
+            if (call.getLastUpdateChanges() == Call.Change.NONE) {
+                Log.v(this, "Ignoring unchanged details for " + call.getId());
+                return;
+            }
+            final InCallDetailsListener[] listeners = mDetailsListeners.snapshot();
+            for (int i = 0; i < listeners.length; i++) {
+                final InCallDetailsListener listener = listeners[i];
                 listener.onDetailsChanged(call, details);
             }
         }
@@ -256,11 +255,15 @@ public class InCallPresenter implements CallList.Listener,
 
         DialerDataSubscription.get(mContext).subscribe(AMBIENT_SUBSCRIPTION_ID, this);
 
+        // Start contact lookups as soon as calls arrive, ahead of the UI.
+        mCallList.setCallLifecycleObserver(mContactInfoCache);
+
         // The final thing we do in this set up is add ourselves as a listener to CallList.  This
         // will kick off an update and the whole process can start.
         mCallList.addListener(this);
 
         InCallCsRedialHandler.getInstance().setUp(mContext);
+        PhoneAccountCache.getInstance().setUp(mContext);
         InCallUiStateNotifier.getInstance().setUp(mContext);
         VideoPauseController.getInstance().setUp(this);
         InCallMessageController.getInstance().setUp(mContext);
@@ -451,7 +454,9 @@ public class InCallPresenter implements CallList.Listener,
     }
 
     public void onCanAddCallChanged(boolean canAddCall) {
-        for (CanAddCallListener listener : mCanAddCallListeners) {
+        final CanAddCallListener[] listeners = mCanAddCallListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final CanAddCallListener listener = listeners[i];
             listener.onCanAddCallChanged(canAddCall);
         }
     }
@@ -486,14 +491,17 @@ public class InCallPresenter implements CallList.Listener,
         mInCallState = newState;
 
         // notify listeners of new state
-        for (InCallStateListener listener : mListeners) {
+        final InCallStateListener[] listeners = mListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final InCallStateListener listener = listeners[i];
             Log.d(this, "Notify " + listener + " of state " + mInCallState.toString());
             listener.onStateChange(oldState, mInCallState, callList);
         }
 
         if (isActivityStarted()) {
-            final boolean hasCall = callList.getActiveOrBackgroundCall() != null ||
-                    callList.getOutgoingCall() != null;
+            final CallListSnapshot snapshot = callList.getSnapshot();
+            final boolean hasCall = snapshot.getActiveOrBackgroundCall() != null ||
+                    snapshot.getOutgoingCall() != null;
             mInCallActivity.dismissKeyguard(hasCall);
         }
         if (InCallServiceImpl.isDsdaEnabled() && (mInCallActivity != null)) {
@@ -514,7 +522,9 @@ public class InCallPresenter implements CallList.Listener,
         Log.i(this, "Phone switching state: " + oldState + " -> " + newState);
         mInCallState = newState;
 
-        for (IncomingCallListener listener : mIncomingCallListeners) {
+        final IncomingCallListener[] listeners = mIncomingCallListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final IncomingCallListener listener = listeners[i];
             listener.onIncomingCall(oldState, mInCallState, call);
         }
 
@@ -559,7 +569,9 @@ public class InCallPresenter implements CallList.Listener,
     @Override
     public void onContactInfoComplete(String callId, ContactInfoCache.ContactCacheEntry entry) {
         if (DEBUG) Log.i(this, "onContactInfoComplete");
-        for (InCallPluginUpdateListener listener : mInCallPluginUpdateListeners) {
+        final InCallPluginUpdateListener[] listeners = mInCallPluginUpdateListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final InCallPluginUpdateListener listener = listeners[i];
             listener.onInCallPluginUpdated();
         }
     }
@@ -579,18 +591,19 @@ public class InCallPresenter implements CallList.Listener,
         if (callList == null) {
             return newState;
         }
-        if (callList.getIncomingCall() != null) {
+        final CallListSnapshot snapshot = callList.getSnapshot();
+        if (snapshot.getIncomingCall() != null) {
             newState = InCallState.INCOMING;
-        } else if (callList.getWaitingForAccountCall() != null) {
+        } else if (snapshot.getWaitingForAccountCall() != null) {
             newState = InCallState.WAITING_FOR_ACCOUNT;
-        } else if (callList.getPendingOutgoingCall() != null) {
+        } else if (snapshot.getPendingOutgoingCall() != null) {
             newState = InCallState.PENDING_OUTGOING;
-        } else if (callList.getOutgoingCall() != null) {
+        } else if (snapshot.getOutgoingCall() != null) {
             newState = InCallState.OUTGOING;
-        } else if (callList.getActiveCall() != null ||
-                callList.getBackgroundCall() != null ||
-                callList.getDisconnectedCall() != null ||
-                callList.getDisconnectingCall() != null) {
+        } else if (snapshot.getActiveCall() != null ||
+                snapshot.getBackgroundCall() != null ||
+                snapshot.getDisconnectedCall() != null ||
+                snapshot.getDisconnectingCall() != null) {
             newState = InCallState.INCALL;
         }
 
@@ -938,7 +951,9 @@ public class InCallPresenter implements CallList.Listener,
             updateIsChangingConfigurations();
         }
 
-        for (InCallUiListener listener : mInCallUiListeners) {
+        final InCallUiListener[] listeners = mInCallUiListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final InCallUiListener listener = listeners[i];
             listener.onUiShowing(showing);
         }
     }
@@ -1146,7 +1161,9 @@ public class InCallPresenter implements CallList.Listener,
      * @param isFullscreenMode {@code True} if entering full screen mode.
      */
     public void notifyFullscreenModeChange(boolean isFullscreenMode) {
-        for (InCallEventListener listener : mInCallEventListeners) {
+        final InCallEventListener[] listeners = mInCallEventListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final InCallEventListener listener = listeners[i];
             listener.onFullscreenModeChanged(isFullscreenMode);
         }
     }
@@ -1160,7 +1177,9 @@ public class InCallPresenter implements CallList.Listener,
      * @param height the height of the secondary caller info bar.
      */
     public void notifySecondaryCallerInfoVisibilityChanged(boolean isVisible, int height) {
-        for (InCallEventListener listener : mInCallEventListeners) {
+        final InCallEventListener[] listeners = mInCallEventListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final InCallEventListener listener = listeners[i];
             listener.onSecondaryCallerInfoVisibilityChanged(isVisible, height);
         }
     }
@@ -1186,6 +1205,9 @@ public class InCallPresenter implements CallList.Listener,
      */
     private InCallState startOrFinishUi(InCallState newState) {
         Log.d(this, "startOrFinishUi: " + mInCallState + " -> " + newState);
+        CallEventJournal.getInstance().record(CallEventJournal.EVENT_UI_STATE,
+                CallEventJournal.NO_CALL, mInCallState.ordinal(), newState.ordinal(),
+                VideoProfile.STATE_AUDIO_ONLY);
 
         // TODO: Consider a proper state machine implementation
 
@@ -1448,6 +1470,7 @@ public class InCallPresenter implements CallList.Listener,
             mStatusBarNotifier = null;
 
             InCallCsRedialHandler.getInstance().tearDown();
+            PhoneAccountCache.getInstance().tearDown();
             if (mInCallVibrationHandler != null) {
                 removeListener(mInCallVibrationHandler);
             }
@@ -1455,6 +1478,7 @@ public class InCallPresenter implements CallList.Listener,
 
             if (mCallList != null) {
                 mCallList.removeListener(this);
+                mCallList.setCallLifecycleObserver(null);
             }
             mCallList = null;
 
@@ -1585,7 +1609,9 @@ public class InCallPresenter implements CallList.Listener,
         }
 
         // Notify listeners of device orientation changed.
-        for (InCallOrientationListener listener : mOrientationListeners) {
+        final InCallOrientationListener[] listeners = mOrientationListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final InCallOrientationListener listener = listeners[i];
             listener.onDeviceOrientationChanged(orientation);
         }
     }
@@ -1751,17 +1777,12 @@ public class InCallPresenter implements CallList.Listener,
 
     private MaterialPalette getColorsFromPhoneAccountHandle(PhoneAccountHandle phoneAccountHandle) {
         int highlightColor = PhoneAccount.NO_HIGHLIGHT_COLOR;
-        if (phoneAccountHandle != null) {
-            final TelecomManager tm = getTelecomManager();
-
-            if (tm != null) {
-                final PhoneAccount account = tm.getPhoneAccount(phoneAccountHandle);
-                // For single-sim devices, there will be no selected highlight color, so the phone
-                // account will default to NO_HIGHLIGHT_COLOR.
-                if (account != null) {
-                    highlightColor = account.getHighlightColor();
-                }
-            }
+        final PhoneAccountCache.Entry account =
+                PhoneAccountCache.getInstance().get(phoneAccountHandle);
+        // For single-sim devices, there will be no selected highlight color, so the phone
+        // account will default to NO_HIGHLIGHT_COLOR.
+        if (account != null) {
+            highlightColor = account.getHighlightColor();
         }
         return new InCallUIMaterialColorMapUtils(
                 mContext.getResources()).calculatePrimaryAndSecondaryColor(highlightColor);
@@ -24,6 +24,9 @@ import android.telecom.CallAudioState;
 import android.telecom.InCallService;
 import android.telephony.TelephonyManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Used to receive updates about calls from the Telecomm component.  This service is bound to
  * Telecomm while there exist calls which potentially require UI. This includes ringing (incoming),
@@ -97,6 +100,29 @@ public class InCallServiceImpl extends InCallService {
         return false;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length > 0) {
+            final CallbackTrace trace = CallbackTrace.getInstance();
+            if ("trace-start".equals(args[0])) {
+                trace.start();
+                pw.println("Callback trace started");
+                return;
+            } else if ("trace-stop".equals(args[0])) {
+                trace.stop();
+                trace.dump(pw);
+                return;
+            }
+        }
+        CallEventJournal.getInstance().dump(pw);
+        ContactInfoCache.getInstance(this).dump(pw);
+        LookupLatencyStats.getInstance().dump(pw);
+        CallerIdExecutor.getInstance().dump(pw);
+        GeoDescriptionCache.getInstance(this).dump(pw);
+        NumberNormalizer.getInstance(this).dump(pw);
+        ContactPhotoCache.getInstance(this).dump(pw);
+    }
+
     static boolean isDsdaEnabled() {
         if (mTelephonyManager.getMultiSimConfiguration()
                 == TelephonyManager.MultiSimVariants.DSDA) {
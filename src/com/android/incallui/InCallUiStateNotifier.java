@@ -32,8 +32,6 @@ import android.content.Context;
 import android.hardware.display.DisplayManager;
 import android.view.Display;
 
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.List;
 
 import com.google.common.base.Preconditions;
 
@@ -44,8 +42,8 @@ import com.google.common.base.Preconditions;
  */
 public class InCallUiStateNotifier implements DisplayManager.DisplayListener {
 
-    private List<InCallUiStateNotifierListener> mInCallUiStateNotifierListeners =
-            new CopyOnWriteArrayList<>();
+    private final ListenerList<InCallUiStateNotifierListener> mInCallUiStateNotifierListeners =
+            new ListenerList<>(InCallUiStateNotifierListener.class);
     private static InCallUiStateNotifier sInCallUiStateNotifier;
     private DisplayManager mDisplayManager;
     private Context mContext;
@@ -120,7 +118,10 @@ public class InCallUiStateNotifier implements DisplayManager.DisplayListener {
      */
     private void notifyOnUiShowing(boolean showing) {
         Preconditions.checkNotNull(mInCallUiStateNotifierListeners);
-        for (InCallUiStateNotifierListener listener : mInCallUiStateNotifierListeners) {
+        final InCallUiStateNotifierListener[] listeners =
+                mInCallUiStateNotifierListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final InCallUiStateNotifierListener listener = listeners[i];
             listener.onUiShowing(showing);
         }
     }
@@ -18,10 +18,6 @@ package com.android.incallui;
 
 import com.google.common.base.Preconditions;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Class used by {@link InCallService.VideoCallCallback} to notify interested parties of incoming
  * events.
@@ -33,18 +29,12 @@ public class InCallVideoCallCallbackNotifier {
     private static InCallVideoCallCallbackNotifier sInstance =
             new InCallVideoCallCallbackNotifier();
 
-    /**
-     * ConcurrentHashMap constructor params: 8 is initial table size, 0.9f is
-     * load factor before resizing, 1 means we only expect a single thread to
-     * access the map so make only a single shard
-     */
-    private final Set<SessionModificationListener> mSessionModificationListeners =
-            Collections.newSetFromMap(new ConcurrentHashMap<SessionModificationListener, Boolean>
-                    (8, 0.9f, 1));
-    private final Set<VideoEventListener> mVideoEventListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<VideoEventListener, Boolean>(8, 0.9f, 1));
-    private final Set<SurfaceChangeListener> mSurfaceChangeListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<SurfaceChangeListener, Boolean>(8, 0.9f, 1));
+    private final ListenerList<SessionModificationListener> mSessionModificationListeners =
+            new ListenerList<>(SessionModificationListener.class);
+    private final ListenerList<VideoEventListener> mVideoEventListeners =
+            new ListenerList<>(VideoEventListener.class);
+    private final ListenerList<SurfaceChangeListener> mSurfaceChangeListeners =
+            new ListenerList<>(SurfaceChangeListener.class);
 
     /**
      * Static singleton accessor method.
@@ -129,7 +119,9 @@ public class InCallVideoCallCallbackNotifier {
      */
     public void upgradeToVideoRequest(Call call, int videoState) {
         Log.d(this, "upgradeToVideoRequest call = " + call + " new video state = " + videoState);
-        for (SessionModificationListener listener : mSessionModificationListeners) {
+        final SessionModificationListener[] listeners = mSessionModificationListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final SessionModificationListener listener = listeners[i];
             listener.onUpgradeToVideoRequest(call, videoState);
         }
     }
@@ -140,7 +132,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param call The call.
      */
     public void upgradeToVideoSuccess(Call call) {
-        for (SessionModificationListener listener : mSessionModificationListeners) {
+        final SessionModificationListener[] listeners = mSessionModificationListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final SessionModificationListener listener = listeners[i];
             listener.onUpgradeToVideoSuccess(call);
         }
     }
@@ -151,7 +145,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param call The call.
      */
     public void upgradeToVideoFail(int status, Call call) {
-        for (SessionModificationListener listener : mSessionModificationListeners) {
+        final SessionModificationListener[] listeners = mSessionModificationListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final SessionModificationListener listener = listeners[i];
             listener.onUpgradeToVideoFail(status, call);
         }
     }
@@ -162,7 +158,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param call The call.
      */
     public void downgradeToAudio(Call call) {
-        for (SessionModificationListener listener : mSessionModificationListeners) {
+        final SessionModificationListener[] listeners = mSessionModificationListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final SessionModificationListener listener = listeners[i];
             listener.onDowngradeToAudio(call);
         }
     }
@@ -173,7 +171,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param event The call session event.
      */
     public void callSessionEvent(int event) {
-        for (VideoEventListener listener : mVideoEventListeners) {
+        final VideoEventListener[] listeners = mVideoEventListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final VideoEventListener listener = listeners[i];
             listener.onCallSessionEvent(event);
         }
     }
@@ -185,7 +185,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param paused The paused state.
      */
     public void peerPausedStateChanged(Call call, boolean paused) {
-        for (VideoEventListener listener : mVideoEventListeners) {
+        final VideoEventListener[] listeners = mVideoEventListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final VideoEventListener listener = listeners[i];
             listener.onPeerPauseStateChanged(call, paused);
         }
     }
@@ -197,7 +199,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param videoQuality The updated video quality of the call.
      */
     public void videoQualityChanged(Call call, int videoQuality) {
-        for (VideoEventListener listener : mVideoEventListeners) {
+        final VideoEventListener[] listeners = mVideoEventListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final VideoEventListener listener = listeners[i];
             listener.onVideoQualityChanged(call, videoQuality);
         }
     }
@@ -210,7 +214,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param height New peer height.
      */
     public void peerDimensionsChanged(Call call, int width, int height) {
-        for (SurfaceChangeListener listener : mSurfaceChangeListeners) {
+        final SurfaceChangeListener[] listeners = mSurfaceChangeListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final SurfaceChangeListener listener = listeners[i];
             listener.onUpdatePeerDimensions(call, width, height);
         }
     }
@@ -223,7 +229,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param height The new camera video height.
      */
     public void cameraDimensionsChanged(Call call, int width, int height) {
-        for (SurfaceChangeListener listener : mSurfaceChangeListeners) {
+        final SurfaceChangeListener[] listeners = mSurfaceChangeListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final SurfaceChangeListener listener = listeners[i];
             listener.onCameraDimensionsChange(call, width, height);
         }
     }
@@ -234,7 +242,9 @@ public class InCallVideoCallCallbackNotifier {
      * @param dataUsage data usage value
      */
     public void callDataUsageChanged(long dataUsage) {
-        for (VideoEventListener listener : mVideoEventListeners) {
+        final VideoEventListener[] listeners = mVideoEventListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            final VideoEventListener listener = listeners[i];
             listener.onCallDataUsageChange(dataUsage);
         }
     }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets, in the manner of HdrHistogram:
+ * each power of two is split into {@link #SUB_BUCKETS} / 2 buckets, so recorded values keep about
+ * three significant bits (a relative error of at most 12.5%) over the whole range while the
+ * histogram stays a fixed array of counters. Recording never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    /** Values are clamped to about 67 seconds. */
+    private static final long MAX_VALUE = (1L << 26) - 1;
+    private static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mSum;
+    private long mMax;
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds; negative values are recorded as 0.
+     */
+    public synchronized void record(long micros) {
+        final long value = Math.max(0, Math.min(micros, MAX_VALUE));
+        mCounts[getBucketIndex(value)]++;
+        mTotalCount++;
+        mSum += value;
+        mMax = Math.max(mMax, value);
+    }
+
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mTotalCount == 0 ? 0 : mSum / mTotalCount;
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The highest value which could have been recorded in the bucket holding the
+     *      percentile, or 0 if nothing was recorded.
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    /**
+     * Prints the count and the main percentiles, in milliseconds.
+     */
+    public synchronized void dump(PrintWriter pw, String name) {
+        pw.println(name + ": n=" + mTotalCount
+                + " mean=" + formatMillis(getMean())
+                + " p50=" + formatMillis(getValueAtPercentile(50))
+                + " p90=" + formatMillis(getValueAtPercentile(90))
+                + " p99=" + formatMillis(getValueAtPercentile(99))
+                + " max=" + formatMillis(mMax));
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long getBucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / HALF_SUB_BUCKETS - 1;
+        final long lowerBound = (long) (index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format(Locale.US, "%.1fms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.reflect.Array;
+
+/**
+ * Copy-on-write registry of listeners. Registration copies the backing array; dispatch reads a
+ * stable snapshot of it and so allocates nothing:
+ *
+ * <pre>
+ *     final Listener[] listeners = mListeners.snapshot();
+ *     for (int i = 0; i < listeners.length; i++) {
+ *         listeners[i].onSomething();
+ *     }
+ * </pre>
+ *
+ * Listeners are notified in registration order. A listener can only be registered once.
+ *
+ * Registration is thread safe; listeners added or removed during a dispatch only take effect for
+ * the next snapshot.
+ *
+ * @param <T> The listener type.
+ */
+public final class ListenerList<T> {
+
+    private final Class<T> mType;
+    private final T[] mEmpty;
+    private volatile T[] mListeners;
+
+    public ListenerList(Class<T> type) {
+        mType = type;
+        mEmpty = newArray(0);
+        mListeners = mEmpty;
+    }
+
+    /**
+     * Registers a listener, which is notified after the listeners registered before it.
+     *
+     * @return {@code false} if the listener was already registered.
+     */
+    public synchronized boolean add(T listener) {
+        Preconditions.checkNotNull(listener);
+        final T[] old = mListeners;
+        if (indexOf(old, listener) >= 0) {
+            return false;
+        }
+
+        final T[] listeners = newArray(old.length + 1);
+        System.arraycopy(old, 0, listeners, 0, old.length);
+        listeners[old.length] = listener;
+        mListeners = listeners;
+        return true;
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @return {@code true} if the listener was registered.
+     */
+    public synchronized boolean remove(T listener) {
+        final T[] old = mListeners;
+        final int index = indexOf(old, listener);
+        if (index < 0) {
+            return false;
+        }
+
+        if (old.length == 1) {
+            mListeners = mEmpty;
+            return true;
+        }
+
+        final T[] listeners = newArray(old.length - 1);
+        System.arraycopy(old, 0, listeners, 0, index);
+        System.arraycopy(old, index + 1, listeners, index, old.length - index - 1);
+        mListeners = listeners;
+        return true;
+    }
+
+    public synchronized void clear() {
+        mListeners = mEmpty;
+    }
+
+    public boolean contains(T listener) {
+        return indexOf(mListeners, listener) >= 0;
+    }
+
+    public int size() {
+        return mListeners.length;
+    }
+
+    public boolean isEmpty() {
+        return mListeners.length == 0;
+    }
+
+    /**
+     * Returns the registered listeners in dispatch order. The returned array is shared and is
+     * never modified; it must not be modified by the caller either.
+     */
+    public T[] snapshot() {
+        return mListeners;
+    }
+
+    private static int indexOf(Object[] listeners, Object listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] newArray(int length) {
+        return (T[]) Array.newInstance(mType, length);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms for each stage of the caller id lookup, split by whether the stage found
+ * something, so that a slow incoming call screen can be pinned on the stage responsible. Dumped
+ * with the in-call service.
+ */
+public class LookupLatencyStats {
+
+    /* Stages */
+    /** Contacts provider query, from the start of the query to its result. */
+    public static final int STAGE_LOCAL_QUERY = 0;
+    /** Second contacts query for SIP calls with a numeric user name. */
+    public static final int STAGE_SECONDARY_LOOKUP = 1;
+    public static final int STAGE_GEO_DESCRIPTION = 2;
+    public static final int STAGE_PHONE_NUMBER_SERVICE = 3;
+    public static final int STAGE_LOOKUP_PROVIDER = 4;
+    /** Contact photo load and decode. */
+    public static final int STAGE_IMAGE_LOAD = 5;
+    /**
+     * Contacts provider query for a batch of numbers, e.g. the participants of a conference.
+     * Recorded once per batch; a hit means at least one number matched.
+     */
+    public static final int STAGE_BATCH_QUERY = 6;
+
+    private static final String[] STAGE_NAMES = new String[] {
+            "localQuery", "secondaryLookup", "geoDescription", "phoneNumberService",
+            "lookupProvider", "imageLoad", "batchQuery"
+    };
+
+    private static final LookupLatencyStats sInstance = new LookupLatencyStats();
+
+    private final LatencyHistogram[] mHits = new LatencyHistogram[STAGE_NAMES.length];
+    private final LatencyHistogram[] mMisses = new LatencyHistogram[STAGE_NAMES.length];
+
+    public static LookupLatencyStats getInstance() {
+        return sInstance;
+    }
+
+    private LookupLatencyStats() {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            mHits[i] = new LatencyHistogram();
+            mMisses[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return The start time to pass to {@link #record}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time a stage took.
+     *
+     * @param stage One of the {@code STAGE_} constants.
+     * @param startNanos The time returned by {@link #start} when the stage began.
+     * @param hit Whether the stage found what it looked for.
+     */
+    public void record(int stage, long startNanos, boolean hit) {
+        final long micros = (System.nanoTime() - startNanos) / 1000;
+        (hit ? mHits : mMisses)[stage].record(micros);
+    }
+
+    public LatencyHistogram getHistogram(int stage, boolean hit) {
+        return (hit ? mHits : mMisses)[stage];
+    }
+
+    public void reset() {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            mHits[i].reset();
+            mMisses[i].reset();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("LookupLatencyStats:");
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            mHits[i].dump(pw, "  " + STAGE_NAMES[i] + " hit");
+            mMisses[i].dump(pw, "  " + STAGE_NAMES[i] + " miss");
+        }
+    }
+}
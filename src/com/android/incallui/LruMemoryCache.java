@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thread safe map which evicts its least recently used entries once the total size of its values
+ * exceeds a budget. Sizes come from a {@link Sizer}, so that values holding bitmaps can be charged
+ * for the bitmap memory they keep alive. A value stored under several keys is charged once, since
+ * it only takes memory once. Entries can be pinned, in which case they are never evicted; the
+ * cache then goes over budget rather than drop them.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class LruMemoryCache<K, V> {
+
+    /**
+     * Measures values.
+     */
+    public interface Sizer<V> {
+        /** @return The size of the value in bytes. */
+        int sizeOf(V value);
+    }
+
+    /**
+     * Decides which entries must not be evicted.
+     */
+    public interface Pinning<K> {
+        /** @return {@code true} if the entry for the key must be kept. */
+        boolean isPinned(K key);
+    }
+
+    private final String mName;
+    private final long mMaxBytes;
+    private final Sizer<V> mSizer;
+    private final Pinning<K> mPinning;
+    /**
+     * Memory charged for a value, and the number of keys it is stored under.
+     */
+    private static class Charge {
+        int mSize;
+        int mKeyCount;
+    }
+
+    /** Least recently used first; {@link #get} moves entries to the end. */
+    private final LinkedHashMap<K, V> mMap = new LinkedHashMap<>();
+    /** Charges by value, compared by identity. */
+    private final IdentityHashMap<V, Charge> mCharges = new IdentityHashMap<>();
+    private long mBytes;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    public LruMemoryCache(String name, long maxBytes, Sizer<V> sizer, Pinning<K> pinning) {
+        mName = name;
+        mMaxBytes = maxBytes;
+        mSizer = sizer;
+        mPinning = pinning;
+    }
+
+    /**
+     * Looks a value up, counting a hit or a miss and marking the entry as recently used.
+     */
+    public synchronized V get(K key) {
+        final V value = mMap.remove(key);
+        if (value != null) {
+            mMap.put(key, value);
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Looks a value up without affecting the statistics or the eviction order.
+     */
+    public synchronized V peek(K key) {
+        return mMap.get(key);
+    }
+
+    /**
+     * Stores a value, re-measuring it if it is already stored, and evicts entries as needed.
+     * Callers which modify a stored value in place should put it again so that its new size is
+     * accounted for.
+     */
+    public synchronized V put(K key, V value) {
+        final V previous = mMap.remove(key);
+        mMap.put(key, value);
+        if (previous != null) {
+            release(previous);
+        }
+        Charge charge = mCharges.get(value);
+        if (charge == null) {
+            charge = new Charge();
+            mCharges.put(value, charge);
+        }
+        charge.mKeyCount++;
+        final int size = mSizer.sizeOf(value);
+        mBytes += size - charge.mSize;
+        charge.mSize = size;
+        trimToSize(key);
+        return previous;
+    }
+
+    public synchronized V remove(K key) {
+        final V value = mMap.remove(key);
+        if (value != null) {
+            release(value);
+        }
+        return value;
+    }
+
+    public synchronized void clear() {
+        mMap.clear();
+        mCharges.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * @return A copy of the stored keys, least recently used first.
+     */
+    public synchronized List<K> keys() {
+        return new ArrayList<>(mMap.keySet());
+    }
+
+    /**
+     * @return A copy of the stored values, least recently used first.
+     */
+    public synchronized List<V> values() {
+        return new ArrayList<>(mMap.values());
+    }
+
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(mName + ": entries=" + mMap.size() + " bytes=" + mBytes + "/" + mMaxBytes
+                + " hits=" + mHitCount + " misses=" + mMissCount
+                + " evictions=" + mEvictionCount);
+    }
+
+    /**
+     * Evicts unpinned entries, least recently used first, until the cache is within budget.
+     *
+     * @param keep Key of the entry being stored, which is never evicted by its own put.
+     */
+    private void trimToSize(K keep) {
+        if (mBytes <= mMaxBytes) {
+            return;
+        }
+        final Iterator<Map.Entry<K, V>> it = mMap.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            final Map.Entry<K, V> entry = it.next();
+            final K key = entry.getKey();
+            if (key.equals(keep) || (mPinning != null && mPinning.isPinned(key))) {
+                continue;
+            }
+            final V value = entry.getValue();
+            it.remove();
+            release(value);
+            mEvictionCount++;
+        }
+        if (mBytes > mMaxBytes) {
+            Log.d(this, mName + " over budget with pinned entries: " + mBytes + "/" + mMaxBytes);
+        }
+    }
+
+    /**
+     * Drops one key of a value, and its charge along with the last key.
+     */
+    private void release(V value) {
+        final Charge charge = mCharges.get(value);
+        if (--charge.mKeyCount == 0) {
+            mCharges.remove(value);
+            mBytes -= charge.mSize;
+        }
+    }
+
+    /**
+     * @return The memory held by the bitmap of a drawable, or 0 if it is not a bitmap.
+     */
+    public static int sizeOf(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            return bitmap == null ? 0 : bitmap.getAllocationByteCount();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+
+import com.android.contacts.common.util.PhoneNumberHelper;
+import com.android.contacts.common.util.TelephonyManagerUtils;
+
+import com.google.i18n.phonenumbers.NumberParseException;
+import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Normalizes phone numbers for the current country, memoizing the parsed, E164 and display forms
+ * of recently seen numbers. The country is only determined again when the SIM, the locale or
+ * the country of the network changes, at which point the memoized forms are dropped. The network
+ * country takes precedence, so it changes the country when roaming.
+ */
+public class NumberNormalizer {
+    private static final String TAG = "NumberNormalizer";
+
+    /** TelephonyIntents.ACTION_SIM_STATE_CHANGED, which is not public. */
+    private static final String ACTION_SIM_STATE_CHANGED =
+            "android.intent.action.SIM_STATE_CHANGED";
+    private static final int MAX_ENTRIES = 64;
+
+    private static NumberNormalizer sInstance;
+
+    /**
+     * The forms of one number, each computed on first use.
+     */
+    private static class Forms {
+        boolean mHasE164;
+        String mE164;
+        boolean mHasParsed;
+        PhoneNumber mParsed;
+        String mDisplay;
+    }
+
+    private final Context mContext;
+    /** Forms by raw number, least recently used first. */
+    private final LinkedHashMap<String, Forms> mForms =
+            new LinkedHashMap<String, Forms>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Forms> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private String mCountryIso;
+    /** Country of the network the country was last determined on. */
+    private String mNetworkCountryIso;
+    private int mHitCount;
+    private int mMissCount;
+    private int mCountryChangeCount;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Country may have changed: " + intent.getAction());
+            invalidate();
+        }
+    };
+
+    public static synchronized NumberNormalizer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NumberNormalizer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NumberNormalizer(Context context) {
+        mContext = context;
+        final IntentFilter filter = new IntentFilter(ACTION_SIM_STATE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiver(mReceiver, filter);
+        // Listeners are bound to the looper of the thread creating them.
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                getTelephonyManager().listen(new PhoneStateListener() {
+                    @Override
+                    public void onServiceStateChanged(ServiceState serviceState) {
+                        onNetworkMaybeChanged();
+                    }
+                }, PhoneStateListener.LISTEN_SERVICE_STATE);
+            }
+        });
+    }
+
+    /**
+     * @return Whether the numbers are the same, either as given or once normalized.
+     */
+    public synchronized boolean areSameNumber(String number1, String number2) {
+        if (TextUtils.equals(number1, number2)) {
+            return true;
+        }
+        if (TextUtils.isEmpty(number1) || TextUtils.isEmpty(number2)) {
+            return false;
+        }
+        final String e164 = getE164(number1);
+        return e164 != null && e164.equals(getE164(number2));
+    }
+
+    /**
+     * @return The ISO code of the country numbers are normalized for.
+     */
+    public synchronized String getCountryIso() {
+        if (mCountryIso == null) {
+            mNetworkCountryIso = getTelephonyManager().getNetworkCountryIso();
+            mCountryIso = TelephonyManagerUtils.getCurrentCountryIso(mContext,
+                    Locale.getDefault());
+            mCountryChangeCount++;
+        }
+        return mCountryIso;
+    }
+
+    /**
+     * @return The number in E164 format, or null if it is not a valid number.
+     */
+    public synchronized String getE164(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        return getE164(number, getForms(number));
+    }
+
+    /**
+     * @return The parsed number, or null if it cannot be parsed. The result is shared, so it
+     *      must not be modified.
+     */
+    public synchronized PhoneNumber getParsedNumber(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final Forms forms = getForms(number);
+        if (!forms.mHasParsed) {
+            try {
+                forms.mParsed = PhoneNumberUtil.getInstance().parse(number, getCountryIso());
+            } catch (NumberParseException e) {
+                Log.v(TAG, "Could not parse number: " + e);
+            }
+            forms.mHasParsed = true;
+        }
+        return forms.mParsed;
+    }
+
+    /**
+     * @return The number formatted for display.
+     */
+    public synchronized String getDisplayNumber(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return number;
+        }
+        final Forms forms = getForms(number);
+        if (forms.mDisplay == null) {
+            forms.mDisplay = PhoneNumberHelper.formatNumber(number, getE164(number, forms),
+                    getCountryIso());
+        }
+        return forms.mDisplay;
+    }
+
+    /**
+     * Drops the country and the memoized forms, e.g. after a SIM or locale change.
+     */
+    public synchronized void invalidate() {
+        mCountryIso = null;
+        mForms.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(TAG + ": country=" + mCountryIso + " entries=" + mForms.size()
+                + " hits=" + mHitCount + " misses=" + mMissCount
+                + " countryLookups=" + mCountryChangeCount);
+    }
+
+    /**
+     * Drops the country if the network is in another country than when it was determined.
+     * Service state changes are frequent, but the network country seldom changes with them.
+     */
+    private synchronized void onNetworkMaybeChanged() {
+        if (mCountryIso != null && !TextUtils.equals(mNetworkCountryIso,
+                getTelephonyManager().getNetworkCountryIso())) {
+            Log.d(TAG, "Network country changed from " + mNetworkCountryIso);
+            invalidate();
+        }
+    }
+
+    private TelephonyManager getTelephonyManager() {
+        return (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+    }
+
+    private String getE164(String number, Forms forms) {
+        if (!forms.mHasE164) {
+            forms.mE164 = PhoneNumberUtils.formatNumberToE164(number, getCountryIso());
+            forms.mHasE164 = true;
+        }
+        return forms.mE164;
+    }
+
+    private Forms getForms(String number) {
+        Forms forms = mForms.get(number);
+        if (forms == null) {
+            mMissCount++;
+            forms = new Forms();
+            mForms.put(number, forms);
+        } else {
+            mHitCount++;
+        }
+        return forms;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+import android.telephony.SubscriptionManager;
+
+import java.util.HashMap;
+
+/**
+ * Caches the {@link PhoneAccount} metadata the in-call UI needs, so that it is fetched from
+ * telecom once per account instead of on every call update and UI refresh. The cache is dropped
+ * whenever the subscriptions change, since that is when telephony re-registers its accounts, and
+ * when the in-call UI is torn down.
+ */
+public class PhoneAccountCache {
+
+    /**
+     * Immutable copy of the fields of a {@link PhoneAccount}.
+     */
+    public static final class Entry {
+        private final int mCapabilities;
+        private final CharSequence mLabel;
+        private final Icon mIcon;
+        private final int mHighlightColor;
+        private final Uri mSubscriptionAddress;
+        private final int mSubId;
+
+        Entry(PhoneAccount account) {
+            mCapabilities = account.getCapabilities();
+            mLabel = account.getLabel();
+            mIcon = account.getIcon();
+            mHighlightColor = account.getHighlightColor();
+            mSubscriptionAddress = account.getSubscriptionAddress();
+            mSubId = parseSubId(account.getAccountHandle());
+        }
+
+        public int getCapabilities() {
+            return mCapabilities;
+        }
+
+        public boolean hasCapabilities(int capabilities) {
+            return (mCapabilities & capabilities) == capabilities;
+        }
+
+        public CharSequence getLabel() {
+            return mLabel;
+        }
+
+        public Icon getIcon() {
+            return mIcon;
+        }
+
+        public int getHighlightColor() {
+            return mHighlightColor;
+        }
+
+        public Uri getSubscriptionAddress() {
+            return mSubscriptionAddress;
+        }
+
+        /**
+         * @return The subscription id of the account, or
+         *      {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if it is not a SIM account.
+         */
+        public int getSubId() {
+            return mSubId;
+        }
+    }
+
+    private static final int UNKNOWN_COUNT = -1;
+
+    private static PhoneAccountCache sInstance;
+
+    private final HashMap<PhoneAccountHandle, Entry> mEntries = new HashMap<>();
+    private int mCallCapableAccountCount = UNKNOWN_COUNT;
+    private SubscriptionManager mSubscriptionManager;
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    Log.d(PhoneAccountCache.this, "onSubscriptionsChanged");
+                    invalidate();
+                }
+            };
+
+    /**
+     * Private constructor. Must use getInstance() to get this singleton.
+     */
+    private PhoneAccountCache() {
+    }
+
+    public static synchronized PhoneAccountCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PhoneAccountCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts listening for subscription changes. Must be called on the main thread.
+     */
+    public void setUp(Context context) {
+        if (mSubscriptionManager == null) {
+            mSubscriptionManager = SubscriptionManager.from(context);
+            mSubscriptionManager.addOnSubscriptionsChangedListener(mSubscriptionsListener);
+        }
+    }
+
+    public void tearDown() {
+        if (mSubscriptionManager != null) {
+            mSubscriptionManager.removeOnSubscriptionsChangedListener(mSubscriptionsListener);
+            mSubscriptionManager = null;
+        }
+        invalidate();
+    }
+
+    /**
+     * Drops all cached accounts.
+     */
+    public synchronized void invalidate() {
+        mEntries.clear();
+        mCallCapableAccountCount = UNKNOWN_COUNT;
+    }
+
+    /**
+     * @return The metadata of the account, or {@code null} if the handle is {@code null} or
+     *      telecom does not know the account.
+     */
+    public synchronized Entry get(PhoneAccountHandle handle) {
+        if (handle == null) {
+            return null;
+        }
+        Entry entry = mEntries.get(handle);
+        if (entry == null) {
+            final TelecomManager tm = InCallPresenter.getInstance().getTelecomManager();
+            final PhoneAccount account = tm == null ? null : tm.getPhoneAccount(handle);
+            if (account == null) {
+                // Not cached, so that an account registered later is picked up.
+                return null;
+            }
+            entry = new Entry(account);
+            mEntries.put(handle, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return The number of accounts which can place calls.
+     */
+    public synchronized int getCallCapableAccountCount() {
+        if (mCallCapableAccountCount == UNKNOWN_COUNT) {
+            final TelecomManager tm = InCallPresenter.getInstance().getTelecomManager();
+            if (tm == null) {
+                return 0;
+            }
+            mCallCapableAccountCount = tm.getCallCapablePhoneAccounts().size();
+        }
+        return mCallCapableAccountCount;
+    }
+
+    /**
+     * Parses the subscription id out of a SIM account handle.
+     *
+     * @return The subscription id, or {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if the
+     *      handle is not a SIM account.
+     */
+    static int parseSubId(PhoneAccountHandle handle) {
+        final String id = handle == null ? null : handle.getId();
+        if (id == null || id.contains("sip")) {
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            Log.w(getInstance(), "Sub Id is not a number " + e);
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+    }
+}
@@ -31,8 +31,6 @@ package com.android.incallui;
 import android.os.Bundle;
 import com.android.incallui.InCallPresenter.InCallDetailsListener;
 import com.google.common.base.Preconditions;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.List;
 
 import org.codeaurora.QtiVideoCallConstants;
 
@@ -44,8 +42,9 @@ import org.codeaurora.QtiVideoCallConstants;
  */
 public class SessionModificationCauseNotifier implements InCallDetailsListener{
 
-    private final List<InCallSessionModificationCauseListener> mSessionModificationCauseListeners
-            = new CopyOnWriteArrayList<>();
+    private final ListenerList<InCallSessionModificationCauseListener>
+            mSessionModificationCauseListeners =
+                    new ListenerList<>(InCallSessionModificationCauseListener.class);
 
     private static SessionModificationCauseNotifier sSessionModificationCauseNotifier;
 
@@ -103,8 +102,10 @@ public class SessionModificationCauseNotifier implements InCallDetailsListener{
 
         if (sessionModificationCause != QtiVideoCallConstants.CAUSE_CODE_UNSPECIFIED) {
             Preconditions.checkNotNull(mSessionModificationCauseListeners);
-            for (InCallSessionModificationCauseListener listener :
-                    mSessionModificationCauseListeners) {
+            final InCallSessionModificationCauseListener[] listeners =
+                    mSessionModificationCauseListeners.snapshot();
+            for (int i = 0; i < listeners.length; i++) {
+                final InCallSessionModificationCauseListener listener = listeners[i];
                 listener.onSessionModificationCauseChanged(call, sessionModificationCause);
             }
         }
@@ -779,7 +779,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener,
     }
 
     @Override
-    public void onCallChanged(Call call) {
+    public void onCallChanged(Call call, int changes) {
         // no-op
     }
 
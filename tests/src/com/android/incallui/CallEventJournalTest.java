@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class CallEventJournalTest extends AndroidTestCase {
+
+    private CallEventJournal mJournal;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mJournal = new CallEventJournal(4);
+    }
+
+    public void testRecord_keepsLastRecords() {
+        for (int i = 0; i < 6; i++) {
+            mJournal.record(CallEventJournal.EVENT_CALL_UPDATED, i, Call.State.DIALING,
+                    Call.State.ACTIVE, 0);
+        }
+        assertEquals(4, mJournal.size());
+        assertEquals(6, mJournal.getTotalCount());
+
+        final String[] lines = dump();
+        assertEquals(5, lines.length);
+        assertTrue(lines[0].startsWith("CallEventJournal: 4 of 6"));
+        // Oldest surviving record is for call 2.
+        assertTrue(lines[1].contains(" 2 UPDATED DIALING->ACTIVE v0"));
+        assertTrue(lines[4].contains(" 5 UPDATED DIALING->ACTIVE v0"));
+    }
+
+    public void testDump_uiState() {
+        mJournal.record(CallEventJournal.EVENT_UI_STATE, CallEventJournal.NO_CALL,
+                InCallPresenter.InCallState.NO_CALLS.ordinal(),
+                InCallPresenter.InCallState.INCOMING.ordinal(), 0);
+        assertTrue(dump()[1].contains(" -1 UI_STATE NO_CALLS->INCOMING"));
+    }
+
+    public void testClear() {
+        mJournal.record(CallEventJournal.EVENT_CALL_ADDED, 0, Call.State.INVALID,
+                Call.State.INCOMING, 0);
+        mJournal.clear();
+        assertEquals(0, mJournal.size());
+        assertEquals(1, dump().length);
+    }
+
+    public void testRecord_allocatesNothing() {
+        // Warm up so that class loading and JIT do not show up in the counters.
+        mJournal.record(CallEventJournal.EVENT_CALL_UPDATED, 0, 0, 0, 0);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < 100; i++) {
+                mJournal.record(CallEventJournal.EVENT_CALL_UPDATED, i, Call.State.ACTIVE,
+                        Call.State.ONHOLD, 0);
+            }
+            assertEquals(0, Debug.getThreadAllocCount());
+            assertEquals(0, Debug.getThreadAllocSize());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private String[] dump() {
+        final StringWriter writer = new StringWriter();
+        final PrintWriter pw = new PrintWriter(writer);
+        mJournal.dump(pw);
+        pw.flush();
+        return writer.toString().split("\n");
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.telephony.SubscriptionManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Verifies that the per-state index kept by {@link CallList} answers state lookups the same way
+ * a scan over every tracked call does.
+ */
+@SmallTest
+public class CallListTest extends AndroidTestCase {
+
+    private CallList mCallList;
+    private final List<Call> mTrackedCalls = new ArrayList<>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mCallList = new CallList();
+        mTrackedCalls.clear();
+    }
+
+    public void testEmptyList() {
+        for (int state = 0; state < Call.State.COUNT; state++) {
+            assertNull(mCallList.getFirstCallWithState(state));
+        }
+        assertNull(mCallList.getIncomingCall());
+        assertNull(mCallList.getActiveCall());
+        assertNull(mCallList.getBackgroundCall());
+    }
+
+    public void testSingleCallPerState_matchesScan() {
+        addCall(Call.State.ACTIVE);
+        addCall(Call.State.ONHOLD);
+        addCall(Call.State.CALL_WAITING);
+        addCall(Call.State.DIALING);
+
+        verifyMatchesScan();
+        assertSame(scanFirst(Call.State.ACTIVE), mCallList.getActiveCall());
+        assertSame(scanFirst(Call.State.ONHOLD), mCallList.getBackgroundCall());
+        assertSame(scanFirst(Call.State.CALL_WAITING), mCallList.getIncomingCall());
+        assertSame(scanFirst(Call.State.DIALING), mCallList.getOutgoingCall());
+    }
+
+    public void testMultipleCallsPerState_keepEntryOrder() {
+        final Call first = addCall(Call.State.ONHOLD);
+        final Call second = addCall(Call.State.ONHOLD);
+        final Call third = addCall(Call.State.ONHOLD);
+
+        verifyMatchesScan();
+        assertSame(first, mCallList.getBackgroundCall());
+        assertSame(second, mCallList.getSecondBackgroundCall());
+        assertSame(third, mCallList.getCallWithState(Call.State.ONHOLD, 2));
+        assertNull(mCallList.getCallWithState(Call.State.ONHOLD, 3));
+    }
+
+    public void testStateChange_movesCallBetweenBuckets() {
+        final Call held = addCall(Call.State.ONHOLD);
+        final Call active = addCall(Call.State.ACTIVE);
+
+        // Swap the two calls.
+        setCallState(active, Call.State.ONHOLD);
+        setCallState(held, Call.State.ACTIVE);
+
+        verifyMatchesScan();
+        assertSame(held, mCallList.getActiveCall());
+        assertSame(active, mCallList.getBackgroundCall());
+        assertNull(mCallList.getSecondBackgroundCall());
+    }
+
+    public void testRepeatedUpdate_doesNotDuplicateCall() {
+        final Call active = addCall(Call.State.ACTIVE);
+        mCallList.onUpdate(active);
+        mCallList.onUpdate(active);
+
+        verifyMatchesScan();
+        assertNull(mCallList.getCallWithState(Call.State.ACTIVE, 1));
+    }
+
+    public void testDeadCall_isRemovedFromIndex() {
+        final Call active = addCall(Call.State.ACTIVE);
+        final Call incoming = addCall(Call.State.INCOMING);
+
+        setCallState(incoming, Call.State.IDLE);
+        mTrackedCalls.remove(incoming);
+
+        verifyMatchesScan();
+        assertNull(mCallList.getIncomingCall());
+        assertSame(active, mCallList.getIncomingOrActive());
+    }
+
+    public void testDisconnectedCallNotPreviouslyTracked_isNotIndexed() {
+        final Call call = new Call(Call.State.DISCONNECTED);
+        mCallList.onUpdate(call);
+
+        assertNull(mCallList.getDisconnectedCall());
+        assertNull(mCallList.getCallById(call.getId()));
+    }
+
+    public void testCallWithoutAccount_isVisibleOnEverySub() {
+        final Call active = addCall(Call.State.ACTIVE);
+
+        // Calls without a phone account are shown on any subscription but do not count as a
+        // live call on one.
+        assertSame(active, mCallList.getCallWithState(Call.State.ACTIVE, 0, 1));
+        assertSame(active, mCallList.getCallWithState(Call.State.ACTIVE, 0, 2));
+        assertNull(mCallList.getCallWithState(Call.State.ONHOLD, 0, 1));
+        assertFalse(mCallList.hasAnyLiveCall(1));
+        assertEquals(SubscriptionManager.INVALID_SUBSCRIPTION_ID, active.getAccountSubId());
+    }
+
+    public void testSnapshot_isSharedUntilCallListChanges() {
+        final Call active = addCall(Call.State.ACTIVE);
+        final CallListSnapshot snapshot = mCallList.getSnapshot();
+        assertSame(snapshot, mCallList.getSnapshot());
+        assertSame(active, snapshot.getActiveCall());
+        assertSame(active, snapshot.getPrimaryCall());
+        assertNull(snapshot.getSecondaryCall());
+
+        final Call held = addCall(Call.State.ONHOLD);
+        final CallListSnapshot updated = mCallList.getSnapshot();
+        assertNotSame(snapshot, updated);
+        assertTrue(updated.getVersion() > snapshot.getVersion());
+        assertSame(active, updated.getPrimaryCall());
+        assertSame(held, updated.getSecondaryCall());
+
+        // The earlier snapshot is unaffected by the change.
+        assertNull(snapshot.getBackgroundCall());
+        assertTrue(snapshot.getCallsWithState(Call.State.ONHOLD).isEmpty());
+    }
+
+    private Call addCall(int state) {
+        final Call call = new Call(state);
+        mCallList.onUpdate(call);
+        mTrackedCalls.add(call);
+        return call;
+    }
+
+    private void setCallState(Call call, int state) {
+        call.setState(state);
+        mCallList.onUpdate(call);
+    }
+
+    /**
+     * Reference implementation: the linear scan {@link CallList} used before the index existed.
+     */
+    private Call scanFirst(int state) {
+        for (Call call : mTrackedCalls) {
+            if (call.getState() == state) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    private HashSet<Call> scanAll(int state) {
+        final HashSet<Call> result = new HashSet<>();
+        for (Call call : mTrackedCalls) {
+            if (call.getState() == state) {
+                result.add(call);
+            }
+        }
+        return result;
+    }
+
+    private void verifyMatchesScan() {
+        for (int state = 0; state < Call.State.COUNT; state++) {
+            final HashSet<Call> expected = scanAll(state);
+            final HashSet<Call> actual = new HashSet<>();
+            Call call;
+            for (int i = 0; (call = mCallList.getCallWithState(state, i)) != null; i++) {
+                assertEquals(state, call.getState());
+                assertTrue("Duplicate entry for " + call, actual.add(call));
+            }
+            assertEquals("Mismatch for state " + Call.State.toString(state), expected, actual);
+            if (expected.size() == 1) {
+                assertSame(scanFirst(state), mCallList.getFirstCallWithState(state));
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.incallui.InCallPresenter.InCallState;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+public class CallbackTraceReplayTest extends InstrumentationTestCase {
+
+    /**
+     * Conference merge on SIM 1 while a call waiting on SIM 2 rings and is rejected, followed by
+     * a burst of conference detail updates.
+     */
+    private static final String DSDA_MERGE_STORM = CallbackTrace.HEADER + "\n"
+            // Active call on sub 1, call waiting on sub 1.
+            + "A 1000000 0 3 -1 1 1 67 -1 -\n"
+            + "A 5000000 1 5 -1 1 1 67 -1 -\n"
+            // Hold the first call and answer the second, which can then merge.
+            + "U 6000000 0 8 1 1 1 67 -1 -\n"
+            + "U 6500000 1 3 257 1 1 71 -1 -\n"
+            // Merge: the conference appears and both calls become its children.
+            + "A 9000000 2 3 -1 1 1 195 -1 -\n"
+            + "U 9100000 0 11 17 1 1 67 2 -\n"
+            + "U 9200000 1 11 17 1 1 67 2 -\n"
+            + "U 9300000 2 3 8 1 1 195 -1 0,1\n"
+            // Call waiting on sub 2 during the merge, rejected.
+            + "A 9400000 3 5 -1 2 0 67 -1 -\n"
+            + "U 9500000 2 3 512 1 1 195 -1 0,1\n"
+            + "U 9600000 2 3 512 1 1 195 -1 0,1\n"
+            + "D 9700000 3 10 3 2 0 67 -1 -\n"
+            + "U 9800000 2 3 640 1 1 195 -1 0,1\n"
+            + "R 9900000 3 10 0 2 0 67 -1 -\n"
+            + "U 10000000 2 3 512 1 1 195 -1 0,1\n"
+            + "U 30000000 2 3 512 1 1 195 -1 0,1\n";
+
+    @Mock private AudioModeProvider mAudioModeProvider;
+    @Mock private StatusBarNotifier mStatusBarNotifier;
+    @Mock private ContactInfoCache mContactInfoCache;
+    @Mock private ProximitySensor mProximitySensor;
+    @Mock private Context mContext;
+
+    private CallList mCallList;
+    private CountingListener mListener;
+    private StateRecorder mStateRecorder;
+    private InCallPresenter mInCallPresenter;
+    private CallbackTraceReplayer mReplayer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        MockitoAnnotations.initMocks(this);
+        mCallList = new CallList();
+        mListener = new CountingListener();
+        mCallList.addListener(mListener);
+
+        mInCallPresenter = InCallPresenter.getInstance();
+        mInCallPresenter.setUp(mContext, mCallList, mAudioModeProvider, mStatusBarNotifier,
+                mContactInfoCache, mProximitySensor);
+        mStateRecorder = new StateRecorder();
+        mInCallPresenter.addListener(mStateRecorder);
+        mInCallPresenter.addIncomingCallListener(mStateRecorder);
+
+        mReplayer = new CallbackTraceReplayer(mCallList);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // The tear down method needs to run in the main thread since there is an explicit check
+        // inside TelecomAdapter.getInstance().
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mInCallPresenter.removeListener(mStateRecorder);
+                mInCallPresenter.removeIncomingCallListener(mStateRecorder);
+                mInCallPresenter.tearDown();
+                InCallPresenter.setInstance(null);
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testReplay_dsdaMergeStorm() throws Exception {
+        mReplayer.load(new StringReader(DSDA_MERGE_STORM));
+        final CallbackTraceReplayer.Result result = mReplayer.replay();
+        Log.i(this, "DSDA merge storm: " + result);
+
+        assertEquals(16, result.eventLatencyNs.length);
+        final Call conference = mReplayer.getCall(2);
+        assertSame(conference, mCallList.getActiveCall());
+        assertEquals(2, mCallList.getCallsWithState(Call.State.CONFERENCED).size());
+        assertEquals(Arrays.asList(mReplayer.getCall(0).getId(), mReplayer.getCall(1).getId()),
+                conference.getChildCallIds());
+        assertEquals(conference.getId(), mReplayer.getCall(1).getParentId());
+        assertTrue(conference.can(android.telecom.Call.Details.CAPABILITY_MANAGE_CONFERENCE));
+        assertFalse(mReplayer.getCall(1).can(
+                android.telecom.Call.Details.CAPABILITY_MERGE_CONFERENCE));
+        assertNull(mCallList.getIncomingCall());
+        assertTrue(mCallList.hasAnyLiveCall(1));
+
+        assertEquals(2, mListener.mIncomingCount);
+        assertEquals(1, mListener.mDisconnectCount);
+        // Updates within a frame are delivered together.
+        assertTrue(mListener.mChangeCount < 12);
+
+        // Each call waiting interrupts the call in progress, which resumes once it is answered
+        // or rejected; the merge in between does not leave INCALL.
+        assertEquals(Arrays.asList(InCallState.INCALL, InCallState.INCOMING, InCallState.INCALL,
+                InCallState.INCOMING, InCallState.INCALL), mStateRecorder.mStates);
+        assertEquals(InCallState.INCALL, mInCallPresenter.getInCallState());
+    }
+
+    public void testRecordedTrace_replaysToSameState() throws Exception {
+        final CallbackTrace trace = new CallbackTrace(16);
+        trace.start();
+        final FakeCall active = new FakeCall(Call.State.ACTIVE);
+        active.setAccountSubId(1);
+        trace.record(CallbackTrace.OP_ADDED, active, Call.Change.ALL);
+        final FakeCall dialing = new FakeCall(Call.State.DIALING);
+        dialing.setAccountSubId(2);
+        trace.record(CallbackTrace.OP_ADDED, dialing, Call.Change.ALL);
+        active.setState(Call.State.ONHOLD);
+        trace.record(CallbackTrace.OP_UPDATED, active, Call.Change.STATE);
+        dialing.setState(Call.State.ACTIVE);
+        dialing.setCapabilities(android.telecom.Call.Details.CAPABILITY_MERGE_CONFERENCE);
+        trace.record(CallbackTrace.OP_UPDATED, dialing, Call.Change.STATE);
+        final FakeCall conference = new FakeCall(Call.State.ACTIVE);
+        conference.setAccountSubId(2);
+        conference.setConference(null, Arrays.asList(active, dialing));
+        trace.record(CallbackTrace.OP_ADDED, conference, Call.Change.ALL);
+        active.setState(Call.State.CONFERENCED);
+        active.setConference(conference, Collections.<Call>emptyList());
+        trace.record(CallbackTrace.OP_UPDATED, active, Call.Change.STATE | Call.Change.PARENT);
+        trace.stop();
+        trace.record(CallbackTrace.OP_UPDATED, dialing, Call.Change.DETAILS);
+        assertEquals(6, trace.size());
+
+        final StringWriter writer = new StringWriter();
+        trace.dump(new PrintWriter(writer, true));
+        mReplayer.load(new StringReader(writer.toString()));
+        mReplayer.replay();
+
+        final Call replayedDialing = mReplayer.getCall(dialing.getIndex());
+        assertEquals(2, replayedDialing.getAccountSubId());
+        assertTrue(replayedDialing.can(android.telecom.Call.Details.CAPABILITY_MERGE_CONFERENCE));
+        final Call replayedConference = mReplayer.getCall(conference.getIndex());
+        assertEquals(Arrays.asList(mReplayer.getCall(active.getIndex()).getId(),
+                replayedDialing.getId()), replayedConference.getChildCallIds());
+        assertEquals(replayedConference.getId(),
+                mReplayer.getCall(active.getIndex()).getParentId());
+        assertEquals(1, mCallList.getCallsWithState(Call.State.CONFERENCED).size());
+        // How the recorded events fall into frames depends on recording speed, but the call was
+        // never ringing and ends up in the conference.
+        assertFalse(mStateRecorder.mStates.contains(InCallState.INCOMING));
+        assertEquals(InCallState.INCALL, mInCallPresenter.getInCallState());
+    }
+
+    public void testTrace_stopsWhenFull() {
+        final CallbackTrace trace = new CallbackTrace(2);
+        final FakeCall call = new FakeCall(Call.State.ACTIVE);
+        trace.start();
+        for (int i = 0; i < 5; i++) {
+            trace.record(CallbackTrace.OP_UPDATED, call, Call.Change.DETAILS);
+        }
+        assertEquals(2, trace.size());
+
+        final StringWriter writer = new StringWriter();
+        trace.dump(new PrintWriter(writer, true));
+        assertTrue(writer.toString().contains("# dropped 3 events"));
+    }
+
+    private static class CountingListener implements CallList.Listener {
+        int mIncomingCount;
+        int mChangeCount;
+        int mDisconnectCount;
+
+        @Override
+        public void onIncomingCall(Call call) {
+            mIncomingCount++;
+        }
+
+        @Override
+        public void onUpgradeToVideo(Call call) {
+        }
+
+        @Override
+        public void onCallListChange(CallList callList) {
+            mChangeCount++;
+        }
+
+        @Override
+        public void onDisconnect(Call call) {
+            mDisconnectCount++;
+        }
+    }
+
+    /**
+     * Records the states {@link InCallPresenter} moves through, leaving out repeats of the
+     * current state.
+     */
+    private static class StateRecorder implements InCallPresenter.InCallStateListener,
+            InCallPresenter.IncomingCallListener {
+        final List<InCallState> mStates = new ArrayList<>();
+
+        @Override
+        public void onStateChange(InCallState oldState, InCallState newState,
+                CallList callList) {
+            record(newState);
+        }
+
+        @Override
+        public void onIncomingCall(InCallState oldState, InCallState newState, Call call) {
+            record(newState);
+        }
+
+        private void record(InCallState state) {
+            if (mStates.isEmpty() || mStates.get(mStates.size() - 1) != state) {
+                mStates.add(state);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Debug;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Replays a trace written by {@link CallbackTrace} against a {@link CallList}, using
+ * {@link FakeCall}s. Events are applied back to back; the change dispatcher of the call list runs
+ * on a virtual clock that follows the recorded timestamps, so notifications are coalesced the way
+ * they were on the device. Conference topology and capabilities are applied to the fake calls
+ * before each event.
+ *
+ * The events reach whatever listens to the call list. To replay through the UI state machine,
+ * set up {@link InCallPresenter} with the same call list before replaying.
+ */
+public class CallbackTraceReplayer {
+
+    /**
+     * Outcome of a replay.
+     */
+    public static class Result {
+        /** Wall time spent on each event, including the notifications it caused, in ns. */
+        public final long[] eventLatencyNs;
+        /** Objects allocated on the replaying thread during the replay. */
+        public final int allocCount;
+        /** Bytes allocated on the replaying thread during the replay. */
+        public final int allocSize;
+
+        Result(long[] eventLatencyNs, int allocCount, int allocSize) {
+            this.eventLatencyNs = eventLatencyNs;
+            this.allocCount = allocCount;
+            this.allocSize = allocSize;
+        }
+
+        public long getPercentileNs(int percentile) {
+            if (eventLatencyNs.length == 0) {
+                return 0;
+            }
+            final long[] sorted = eventLatencyNs.clone();
+            Arrays.sort(sorted);
+            final int index = (sorted.length - 1) * percentile / 100;
+            return sorted[index];
+        }
+
+        @Override
+        public String toString() {
+            return "events=" + eventLatencyNs.length
+                    + " p50=" + getPercentileNs(50) + "ns"
+                    + " p99=" + getPercentileNs(99) + "ns"
+                    + " max=" + getPercentileNs(100) + "ns"
+                    + " allocs=" + allocCount + " (" + allocSize + " bytes)";
+        }
+    }
+
+    private static class Event {
+        char op;
+        long timestampNs;
+        int callIndex;
+        int state;
+        int changes;
+        int subId;
+        int flags;
+        int capabilities;
+        int parentIndex;
+        int[] childIndices;
+    }
+
+    private final CallList mCallList;
+    private final VirtualClock mClock = new VirtualClock();
+    private final List<Event> mEvents = new ArrayList<>();
+    private final HashMap<Integer, FakeCall> mCalls = new HashMap<>();
+    /** Reused for the children of each event, so that replaying does not allocate. */
+    private final ArrayList<Call> mChildren = new ArrayList<>();
+
+    /**
+     * @param callList The call list to drive. Its change dispatcher is moved to a virtual clock.
+     */
+    public CallbackTraceReplayer(CallList callList) {
+        mCallList = callList;
+        mCallList.setChangeDispatcherClock(mClock);
+    }
+
+    /**
+     * Reads a trace. Blank lines and lines starting with {@code #} are ignored.
+     */
+    public void load(Reader reader) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split(" ");
+            if (fields.length != 10 || fields[0].length() != 1) {
+                throw new IOException("Malformed trace line: " + line);
+            }
+            final Event event = new Event();
+            try {
+                event.op = fields[0].charAt(0);
+                event.timestampNs = Long.parseLong(fields[1]);
+                event.callIndex = Integer.parseInt(fields[2]);
+                event.state = Integer.parseInt(fields[3]);
+                event.changes = Integer.parseInt(fields[4]);
+                event.subId = Integer.parseInt(fields[5]);
+                event.flags = Integer.parseInt(fields[6]);
+                event.capabilities = Integer.parseInt(fields[7]);
+                event.parentIndex = Integer.parseInt(fields[8]);
+                event.childIndices = parseIndices(fields[9]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed trace line: " + line, e);
+            }
+            mEvents.add(event);
+        }
+    }
+
+    private static int[] parseIndices(String field) {
+        if ("-".equals(field)) {
+            return new int[0];
+        }
+        final String[] values = field.split(",");
+        final int[] indices = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            indices[i] = Integer.parseInt(values[i]);
+        }
+        return indices;
+    }
+
+    /**
+     * @return The call created for the given recorded call index, or {@code null}.
+     */
+    public FakeCall getCall(int callIndex) {
+        return mCalls.get(callIndex);
+    }
+
+    /**
+     * Applies every loaded event to the call list as fast as possible.
+     */
+    public Result replay() {
+        final long[] latencies = new long[mEvents.size()];
+        final long startNs = mEvents.isEmpty() ? 0 : mEvents.get(0).timestampNs;
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < mEvents.size(); i++) {
+                final Event event = mEvents.get(i);
+                final long before = System.nanoTime();
+                mClock.advanceTo((event.timestampNs - startNs) / 1000000);
+                apply(event);
+                latencies[i] = System.nanoTime() - before;
+            }
+            // Deliver whatever is still coalescing.
+            mClock.advanceTo(Long.MAX_VALUE);
+            return new Result(latencies, Debug.getThreadAllocCount(),
+                    Debug.getThreadAllocSize());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private void apply(Event event) {
+        FakeCall call = mCalls.get(event.callIndex);
+        if (call == null) {
+            call = new FakeCall(event.state);
+            mCalls.put(event.callIndex, call);
+        }
+        call.setState(event.state);
+        call.setAccountSubId(event.subId);
+        call.mIsActiveSub = (event.flags & CallbackTrace.FLAG_ACTIVE_SUB) != 0;
+        call.setCapabilities(event.capabilities);
+        mChildren.clear();
+        for (int childIndex : event.childIndices) {
+            final Call child = mCalls.get(childIndex);
+            if (child != null) {
+                mChildren.add(child);
+            }
+        }
+        call.setConference(event.parentIndex < 0 ? null : mCalls.get(event.parentIndex),
+                mChildren);
+
+        switch (event.op) {
+            case CallbackTrace.OP_ADDED:
+                if (event.state == Call.State.INCOMING
+                        || event.state == Call.State.CALL_WAITING) {
+                    mCallList.onIncoming(call, call.getCannedSmsResponses());
+                } else {
+                    mCallList.onUpdate(call);
+                }
+                break;
+            case CallbackTrace.OP_UPDATED:
+                mCallList.onUpdate(call, event.changes);
+                break;
+            case CallbackTrace.OP_DISCONNECTED:
+                mCallList.onDisconnect(call);
+                break;
+            case CallbackTrace.OP_REMOVED:
+                mCallList.onCallRemoved(call);
+                mCalls.remove(event.callIndex);
+                break;
+            default:
+                Log.w(this, "Skipping unknown trace op " + event.op);
+                break;
+        }
+    }
+
+    /**
+     * Clock which only moves when the replay moves it. Uses parallel arrays so that posting a
+     * notification does not allocate during the replay.
+     */
+    private static class VirtualClock implements CoalescingDispatcher.Clock {
+        private static final int MAX_PENDING = 16;
+
+        private final Runnable[] mRunnables = new Runnable[MAX_PENDING];
+        private final long[] mTimes = new long[MAX_PENDING];
+        private int mCount;
+        private long mNow;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void postAtTime(Runnable r, long uptimeMillis) {
+            if (mCount == MAX_PENDING) {
+                throw new IllegalStateException("Too many pending runnables");
+            }
+            mRunnables[mCount] = r;
+            mTimes[mCount] = uptimeMillis;
+            mCount++;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            for (int i = mCount - 1; i >= 0; i--) {
+                if (mRunnables[i] == r) {
+                    removeAt(i);
+                }
+            }
+        }
+
+        void advanceTo(long uptimeMillis) {
+            mNow = Math.max(mNow, uptimeMillis);
+            for (int i = 0; i < mCount; ) {
+                if (mTimes[i] <= mNow) {
+                    final Runnable r = mRunnables[i];
+                    removeAt(i);
+                    r.run();
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private void removeAt(int i) {
+            System.arraycopy(mRunnables, i + 1, mRunnables, i, mCount - i - 1);
+            System.arraycopy(mTimes, i + 1, mTimes, i, mCount - i - 1);
+            mCount--;
+            mRunnables[mCount] = null;
+        }
+    }
+}
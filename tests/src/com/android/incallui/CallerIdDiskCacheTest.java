@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import java.util.concurrent.Executor;
+
+@SmallTest
+public class CallerIdDiskCacheTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "caller_id_cache_test.db";
+    private static final String NUMBER = "+16505551234";
+
+    /** Runs database work on the test thread so that results are visible immediately. */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testPut_survivesReload() {
+        final long now = System.currentTimeMillis();
+        createCache().put(createRecord(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, false, now));
+
+        final CallerIdDiskCache reloaded = createCache();
+        assertTrue(reloaded.isLoaded());
+        final CallerIdDiskCache.Record record = reloaded.get(NUMBER);
+        assertNotNull(record);
+        assertEquals("Jane", record.name);
+        assertEquals("Provider", record.lookupProviderName);
+        assertEquals(3, record.spamCount);
+        assertEquals("http://example.com/photo.png", record.photoUri);
+        assertEquals(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, record.source);
+        assertEquals(now, record.updatedMillis);
+    }
+
+    public void testRemove() {
+        final CallerIdDiskCache cache = createCache();
+        cache.put(createRecord(CallerIdDiskCache.SOURCE_CONTACTS, false,
+                System.currentTimeMillis()));
+        cache.remove(NUMBER);
+        assertNull(cache.get(NUMBER));
+        assertNull(createCache().get(NUMBER));
+    }
+
+    public void testExpiredRecord_isDroppedOnLoad() {
+        final long monthsAgo = System.currentTimeMillis() - 60 * DateUtils.DAY_IN_MILLIS;
+        final CallerIdDiskCache cache = createCache();
+        cache.put(createRecord(CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE, false, monthsAgo));
+        assertNull(cache.get(NUMBER));
+        assertNull(createCache().get(NUMBER));
+    }
+
+    public void testPut_keepsFreshRecordOfHigherPrioritySource() {
+        final long now = System.currentTimeMillis();
+        final CallerIdDiskCache cache = createCache();
+        assertTrue(cache.put(createRecord(CallerIdDiskCache.SOURCE_CONTACTS, false, now)));
+        assertFalse(cache.put(createRecord(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, false,
+                now)));
+        assertEquals(CallerIdDiskCache.SOURCE_CONTACTS, cache.get(NUMBER).source);
+        assertEquals(CallerIdDiskCache.SOURCE_CONTACTS, createCache().get(NUMBER).source);
+    }
+
+    public void testPut_replacesStaleRecordOfHigherPrioritySource() {
+        final long now = System.currentTimeMillis();
+        final CallerIdDiskCache cache = createCache();
+        cache.put(createRecord(CallerIdDiskCache.SOURCE_CONTACTS, false,
+                now - 2 * DateUtils.DAY_IN_MILLIS));
+        assertTrue(cache.put(createRecord(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, false, now)));
+        assertEquals(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, cache.get(NUMBER).source);
+    }
+
+    public void testFreshness_dependsOnSource() {
+        final long now = System.currentTimeMillis();
+        final long twoDaysAgo = now - 2 * DateUtils.DAY_IN_MILLIS;
+        assertFalse(createRecord(CallerIdDiskCache.SOURCE_CONTACTS, false, twoDaysAgo)
+                .isFresh(now));
+        assertTrue(createRecord(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, false, twoDaysAgo)
+                .isFresh(now));
+        assertTrue(createRecord(CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE, false, twoDaysAgo)
+                .isFresh(now));
+        // Spam records are revalidated sooner than their source alone would require.
+        assertFalse(createRecord(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, true, twoDaysAgo)
+                .isFresh(now));
+    }
+
+    public void testMiss_survivesReload() {
+        createCache().putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, "Mountain View, CA");
+
+        final CallerIdDiskCache reloaded = createCache();
+        assertTrue(reloaded.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS));
+        assertFalse(reloaded.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER));
+        assertEquals("Mountain View, CA", reloaded.getMissLocation(NUMBER));
+    }
+
+    public void testRecord_clearsMissOfItsSource() {
+        final CallerIdDiskCache cache = createCache();
+        cache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, null);
+        cache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        cache.put(createRecord(CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, true,
+                System.currentTimeMillis()));
+
+        assertFalse(cache.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER));
+        assertTrue(cache.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS));
+        assertFalse(createCache().isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER));
+    }
+
+    public void testClearMisses_onlyClearsSource() {
+        final CallerIdDiskCache cache = createCache();
+        cache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        cache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE, null);
+        cache.clearMisses(CallerIdDiskCache.SOURCE_CONTACTS);
+
+        assertFalse(cache.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS));
+        assertTrue(cache.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE));
+        final CallerIdDiskCache reloaded = createCache();
+        assertFalse(reloaded.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS));
+        assertTrue(reloaded.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_PHONE_NUMBER_SERVICE));
+    }
+
+    public void testRemoveMiss_onlyRemovesNumberAndSource() {
+        final String otherNumber = "+16505550000";
+        final CallerIdDiskCache cache = createCache();
+        cache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        cache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, null);
+        cache.putMiss(otherNumber, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        cache.removeMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS);
+
+        assertFalse(cache.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS));
+        assertTrue(cache.isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER));
+        assertTrue(cache.isKnownMiss(otherNumber, CallerIdDiskCache.SOURCE_CONTACTS));
+        assertFalse(createCache().isKnownMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS));
+    }
+
+    public void testPut_dropsOldestRecordsOverLimit() {
+        final int count = CallerIdDiskCache.MAX_RECORDS + 1;
+        final long now = System.currentTimeMillis();
+        final CallerIdDiskCache cache = createCache();
+        for (int i = 0; i < count; i++) {
+            cache.put(new CallerIdDiskCache.Record(getNumber(i), "Jane", null, null, null, 0,
+                    false, null, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER, now - count + i));
+        }
+
+        assertNull(cache.get(getNumber(0)));
+        assertNotNull(cache.get(getNumber(count - 1)));
+        assertTrue(countRecords(cache, count) <= CallerIdDiskCache.MAX_RECORDS);
+        final CallerIdDiskCache reloaded = createCache();
+        assertNull(reloaded.get(getNumber(0)));
+        assertNotNull(reloaded.get(getNumber(count - 1)));
+        assertTrue(countRecords(reloaded, count) <= CallerIdDiskCache.MAX_RECORDS);
+    }
+
+    public void testPutMiss_dropsMissesOverLimit() {
+        final int count = CallerIdDiskCache.MAX_RECORDS + 1;
+        final CallerIdDiskCache cache = createCache();
+        for (int i = 0; i < count; i++) {
+            cache.putMiss(getNumber(i), CallerIdDiskCache.SOURCE_CONTACTS, null);
+        }
+
+        assertTrue(countMisses(cache, count) <= CallerIdDiskCache.MAX_RECORDS);
+        assertTrue(countMisses(createCache(), count) <= CallerIdDiskCache.MAX_RECORDS);
+    }
+
+    private CallerIdDiskCache createCache() {
+        return new CallerIdDiskCache(getContext(), DATABASE_NAME, DIRECT_EXECUTOR);
+    }
+
+    private static CallerIdDiskCache.Record createRecord(int source, boolean isSpam,
+            long updatedMillis) {
+        return new CallerIdDiskCache.Record(NUMBER, "Jane", "Mobile", "Mountain View, CA",
+                "Provider", 3, isSpam, "http://example.com/photo.png", source, updatedMillis);
+    }
+
+    private static String getNumber(int index) {
+        return "+1650555" + String.format("%04d", index);
+    }
+
+    private static int countRecords(CallerIdDiskCache cache, int numbers) {
+        int records = 0;
+        for (int i = 0; i < numbers; i++) {
+            if (cache.get(getNumber(i)) != null) {
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private static int countMisses(CallerIdDiskCache cache, int numbers) {
+        int misses = 0;
+        for (int i = 0; i < numbers; i++) {
+            if (cache.isKnownMiss(getNumber(i), CallerIdDiskCache.SOURCE_CONTACTS)) {
+                misses++;
+            }
+        }
+        return misses;
+    }
+}
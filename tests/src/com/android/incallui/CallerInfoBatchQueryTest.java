@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class CallerInfoBatchQueryTest extends AndroidTestCase {
+
+    private static final int CONFERENCE_SIZE = 30;
+
+    private FakeContactsProvider mProvider;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeContactsProvider();
+    }
+
+    public void testPhoneRow_buildsCallerInfo() {
+        final MatrixCursor cursor = new MatrixCursor(CallerInfo.PHONE_PROJECTION);
+        cursor.addRow(new Object[] {
+                42L, "Jane", "650-555-1234", "+16505551234", Phone.TYPE_MOBILE, null,
+                "lookup", "content://com.android.contacts/contacts/42/photo", null, 1});
+        assertTrue(cursor.moveToFirst());
+
+        final CallerInfo info = CallerInfo.getCallerInfoForPhoneRow(getContext(), cursor);
+        assertTrue(info.contactExists);
+        assertEquals("Jane", info.name);
+        assertEquals("+16505551234", info.normalizedNumber);
+        assertEquals(Phone.TYPE_MOBILE, info.numberType);
+        assertEquals(42L, info.contactIdOrZero);
+        assertEquals("lookup", info.lookupKeyOrNull);
+        assertEquals(Uri.parse("content://com.android.contacts/contacts/42/photo"),
+                info.contactDisplayPhotoUri);
+        assertNull(info.contactRingtoneUri);
+        assertTrue(info.shouldSendToVoicemail);
+        // The row is left for the caller to close.
+        assertFalse(cursor.isClosed());
+        cursor.close();
+    }
+
+    public void testQuery_skipsSipAddresses() {
+        final List<String> numbers = new ArrayList<>();
+        numbers.add("jane@example.com");
+        assertTrue(CallerInfoBatchQuery.query(getContext(), numbers).isEmpty());
+    }
+
+    /**
+     * Compares resolving the participants of a conference one query at a time, which is what
+     * the conference manager used to do, against a single batch query. Every participant is a
+     * contact, so both sides pay for reading the matching rows.
+     */
+    public void testBenchmark_conferenceParticipants() {
+        final List<String> numbers = new ArrayList<>(CONFERENCE_SIZE);
+        for (int i = 0; i < CONFERENCE_SIZE; i++) {
+            final String number = String.format("+1650555%04d", i);
+            numbers.add(number);
+            mProvider.addPhone(i + 1, "Participant " + i, number, number);
+        }
+        final Context context = createContext();
+
+        long start = System.nanoTime();
+        int individualMatches = 0;
+        for (String number : numbers) {
+            final Cursor cursor = context.getContentResolver().query(
+                    Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number)),
+                    null, null, null, null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    individualMatches++;
+                }
+                cursor.close();
+            }
+        }
+        final long individualNs = System.nanoTime() - start;
+
+        final LookupLatencyStats stats = LookupLatencyStats.getInstance();
+        stats.reset();
+        start = System.nanoTime();
+        final Map<String, CallerInfo> result = CallerInfoBatchQuery.query(context, numbers);
+        final long batchNs = System.nanoTime() - start;
+
+        assertEquals(CONFERENCE_SIZE, individualMatches);
+        assertEquals(CONFERENCE_SIZE, result.size());
+        assertEquals(CONFERENCE_SIZE, mProvider.mLookupNumbers.size());
+        assertEquals(1, mProvider.mBatchQueryCount);
+        // The batch is one sample of its own, not one local query per participant.
+        assertEquals(1, stats.getHistogram(LookupLatencyStats.STAGE_BATCH_QUERY, true)
+                .getTotalCount());
+        assertEquals(0, stats.getHistogram(LookupLatencyStats.STAGE_LOCAL_QUERY, true)
+                .getTotalCount());
+        assertEquals(0, stats.getHistogram(LookupLatencyStats.STAGE_LOCAL_QUERY, false)
+                .getTotalCount());
+        Log.i(this, "Conference of " + CONFERENCE_SIZE + ": individual=" + individualNs
+                + "ns, batch=" + batchNs + "ns");
+    }
+
+    public void testStartQuery_looksUpUnmatchedCallersIndividually() throws Exception {
+        // Matched by the batch query.
+        mProvider.addPhone(1, "Jane", "+16505550001", "+16505550001");
+        // Without a normalized number, so only PhoneLookup finds it.
+        mProvider.addPhone(2, "John", "6505550002", null);
+        final List<CallerInfo> infos = new ArrayList<>();
+        final List<String> cookies = new ArrayList<>();
+        for (String number : new String[] { "+16505550001", "6505550002", "+16505550003" }) {
+            final CallerInfo info = new CallerInfo();
+            info.phoneNumber = number;
+            infos.add(info);
+            cookies.add("cookie " + number);
+        }
+
+        final Map<Object, List<CallerInfo>> results = new HashMap<>();
+        final CountDownLatch latch = new CountDownLatch(infos.size());
+        CallerInfoBatchQuery.startQuery(createContext(), infos, cookies,
+                CallerIdExecutor.PRIORITY_CONFERENCE,
+                new CallerInfoAsyncQuery.OnQueryCompleteListener() {
+                    @Override
+                    public void onQueryComplete(int token, Object cookie, CallerInfo info) {
+                        synchronized (results) {
+                            List<CallerInfo> cookieResults = results.get(cookie);
+                            if (cookieResults == null) {
+                                cookieResults = new ArrayList<>();
+                                results.put(cookie, cookieResults);
+                            }
+                            cookieResults.add(info);
+                        }
+                        latch.countDown();
+                    }
+                });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        synchronized (results) {
+            assertEquals(3, results.size());
+            assertEquals(1, results.get("cookie +16505550001").size());
+            assertEquals("Jane", results.get("cookie +16505550001").get(0).name);
+            assertEquals(1, results.get("cookie 6505550002").size());
+            assertEquals("John", results.get("cookie 6505550002").get(0).name);
+            assertEquals(1, results.get("cookie +16505550003").size());
+            assertFalse(results.get("cookie +16505550003").get(0).contactExists);
+        }
+        assertEquals(1, mProvider.mBatchQueryCount);
+        assertEquals(Arrays.asList("6505550002", "+16505550003"), mProvider.mLookupNumbers);
+    }
+
+    private Context createContext() {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        return new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+    }
+
+    /**
+     * Contacts provider answering the batch query and PhoneLookup from an in-memory database,
+     * so that matching rows are read without depending on the contacts of the device.
+     * PhoneLookup matches the normalized number or the number as stored.
+     */
+    private static class FakeContactsProvider extends MockContentProvider {
+        private static final String PHONES_TABLE = "phones";
+        private static final String LOOKUP_COLUMNS = Phone.CONTACT_ID + " AS " + PhoneLookup._ID
+                + "," + Phone.DISPLAY_NAME + " AS " + PhoneLookup.DISPLAY_NAME
+                + "," + Phone.NUMBER + " AS " + PhoneLookup.NUMBER
+                + "," + Phone.NORMALIZED_NUMBER + " AS " + PhoneLookup.NORMALIZED_NUMBER
+                + "," + Phone.TYPE + " AS " + PhoneLookup.TYPE
+                + "," + Phone.LABEL + " AS " + PhoneLookup.LABEL
+                + "," + Phone.LOOKUP_KEY + " AS " + PhoneLookup.LOOKUP_KEY
+                + "," + Phone.PHOTO_URI + " AS " + PhoneLookup.PHOTO_URI
+                + "," + Phone.CUSTOM_RINGTONE + " AS " + PhoneLookup.CUSTOM_RINGTONE
+                + "," + Phone.SEND_TO_VOICEMAIL + " AS " + PhoneLookup.SEND_TO_VOICEMAIL;
+
+        private final SQLiteDatabase mDatabase = SQLiteDatabase.create(null);
+        final List<String> mLookupNumbers = Collections.synchronizedList(new ArrayList<String>());
+        volatile int mBatchQueryCount;
+
+        FakeContactsProvider() {
+            mDatabase.execSQL("CREATE TABLE " + PHONES_TABLE + " ("
+                    + TextUtils.join(",", CallerInfo.PHONE_PROJECTION) + ")");
+            mDatabase.execSQL("CREATE INDEX normalized_number_index ON " + PHONES_TABLE
+                    + " (" + Phone.NORMALIZED_NUMBER + ")");
+        }
+
+        void addPhone(long contactId, String name, String number, String numberE164) {
+            final ContentValues values = new ContentValues();
+            values.put(Phone.CONTACT_ID, contactId);
+            values.put(Phone.DISPLAY_NAME, name);
+            values.put(Phone.NUMBER, number);
+            values.put(Phone.NORMALIZED_NUMBER, numberE164);
+            values.put(Phone.TYPE, Phone.TYPE_MOBILE);
+            values.put(Phone.LOOKUP_KEY, "lookup" + contactId);
+            values.put(Phone.SEND_TO_VOICEMAIL, 0);
+            mDatabase.insert(PHONES_TABLE, null, values);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (uri.getPathSegments().get(0).startsWith("phone_lookup")) {
+                final String number = uri.getLastPathSegment();
+                mLookupNumbers.add(number);
+                final String numberE164 = PhoneNumberUtils.formatNumberToE164(number, "US");
+                return mDatabase.rawQuery("SELECT " + LOOKUP_COLUMNS + " FROM " + PHONES_TABLE
+                        + " WHERE " + Phone.NORMALIZED_NUMBER + "=? OR " + Phone.NUMBER + "=?",
+                        new String[] { String.valueOf(numberE164), number });
+            }
+            mBatchQueryCount++;
+            return mDatabase.query(PHONES_TABLE, projection, selection, selectionArgs, null,
+                    null, sortOrder);
+        }
+    }
+}
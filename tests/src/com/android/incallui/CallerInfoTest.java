@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class CallerInfoTest extends AndroidTestCase {
+
+    private static final int ROW_COUNT = 10000;
+
+    private static final Uri PHONE_LOOKUP_URI =
+            Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, "6505551234");
+
+    private static final String[] PHONE_LOOKUP_COLUMNS = new String[] {
+            PhoneLookup._ID, PhoneLookup.LOOKUP_KEY, PhoneLookup.DISPLAY_NAME,
+            PhoneLookup.PHOTO_ID, PhoneLookup.PHOTO_URI, PhoneLookup.PHOTO_THUMBNAIL_URI,
+            PhoneLookup.IN_VISIBLE_GROUP, PhoneLookup.HAS_PHONE_NUMBER, PhoneLookup.NUMBER,
+            PhoneLookup.TYPE, PhoneLookup.LABEL, PhoneLookup.NORMALIZED_NUMBER,
+            PhoneLookup.CUSTOM_RINGTONE, PhoneLookup.SEND_TO_VOICEMAIL,
+            PhoneLookup.STARRED, PhoneLookup.TIMES_CONTACTED, PhoneLookup.LAST_TIME_CONTACTED,
+    };
+
+    public void testGetCallerInfo_readsPhoneLookupRow() {
+        final CallerInfo info = CallerInfo.getCallerInfo(getContext(), PHONE_LOOKUP_URI,
+                createCursor());
+        assertTrue(info.contactExists);
+        assertEquals("Jane", info.name);
+        assertEquals("650-555-1234", info.phoneNumber);
+        assertEquals("+16505551234", info.normalizedNumber);
+        assertEquals(Phone.TYPE_MOBILE, info.numberType);
+        assertEquals(42L, info.contactIdOrZero);
+        assertEquals("lookup", info.lookupKeyOrNull);
+        assertEquals(Uri.parse("content://com.android.contacts/contacts/42/photo"),
+                info.contactDisplayPhotoUri);
+        assertNull(info.contactRingtoneUri);
+        assertTrue(info.shouldSendToVoicemail);
+    }
+
+    public void testColumnPlan_isSharedBetweenCursorsOfSameShape() {
+        final CallerInfo.ColumnPlan plan =
+                CallerInfo.ColumnPlan.get(PhoneLookup._ID, createCursor());
+        // Another cursor has another column array with the same names.
+        assertSame(plan, CallerInfo.ColumnPlan.get(PhoneLookup._ID, createCursor()));
+
+        // The person id is read from another column for other kinds of URI.
+        final CallerInfo.ColumnPlan phonePlan =
+                CallerInfo.ColumnPlan.get(RawContacts.CONTACT_ID, createCursor());
+        assertNotSame(plan, phonePlan);
+        assertEquals(0, plan.mPersonId);
+        assertEquals(-1, phonePlan.mPersonId);
+        assertSame(plan, CallerInfo.ColumnPlan.get(PhoneLookup._ID, createCursor()));
+    }
+
+    public void testColumnPlan_distinguishesCursorsOfOtherShape() {
+        final CallerInfo.ColumnPlan plan =
+                CallerInfo.ColumnPlan.get(PhoneLookup._ID, createCursor());
+        final MatrixCursor cursor = new MatrixCursor(new String[] {
+                PhoneLookup.DISPLAY_NAME, PhoneLookup._ID });
+        final CallerInfo.ColumnPlan otherPlan = CallerInfo.ColumnPlan.get(PhoneLookup._ID, cursor);
+        assertNotSame(plan, otherPlan);
+        assertEquals(0, otherPlan.mDisplayName);
+        assertEquals(1, otherPlan.mPersonId);
+    }
+
+    public void testColumnPlan_comparesNamesOnHashCollision() {
+        // "Aa" and "BB" have the same hash code, so both lookups land on the same key.
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "Aa", "BB" });
+        assertEquals(0, CallerInfo.ColumnPlan.get("Aa", cursor).mPersonId);
+        assertEquals(1, CallerInfo.ColumnPlan.get("BB", cursor).mPersonId);
+
+        final MatrixCursor otherCursor = new MatrixCursor(new String[] { "BB", "Aa" });
+        assertEquals(0, CallerInfo.ColumnPlan.get("BB", otherCursor).mPersonId);
+    }
+
+    /**
+     * Measures the per-row parse cost with the cached plan against resolving every column by
+     * name, which is what getCallerInfo used to do.
+     */
+    public void testBenchmark_rowParse() {
+        final MatrixCursor cursor = createCursor();
+        assertTrue(cursor.moveToFirst());
+        CallerInfo.ColumnPlan.get(PhoneLookup._ID, cursor);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            CallerInfo.ColumnPlan.get(PhoneLookup._ID, cursor);
+        }
+        final long cachedNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            CallerInfo.ColumnPlan.resolve(PhoneLookup._ID, cursor);
+        }
+        final long resolvedNs = System.nanoTime() - start;
+
+        Log.i(this, "Column plan for " + ROW_COUNT + " rows: cached=" + cachedNs / ROW_COUNT
+                + "ns/row, resolved=" + resolvedNs / ROW_COUNT + "ns/row");
+    }
+
+    private static MatrixCursor createCursor() {
+        final MatrixCursor cursor = new MatrixCursor(PHONE_LOOKUP_COLUMNS);
+        cursor.addRow(new Object[] {
+                42L, "lookup", "Jane", 7L, "content://com.android.contacts/contacts/42/photo",
+                null, 1, 1, "650-555-1234", Phone.TYPE_MOBILE, null, "+16505551234", null, 1,
+                0, 3, 0L});
+        return cursor;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+@SmallTest
+public class ChildCallTrackerTest extends AndroidTestCase {
+
+    private static final int CONFERENCE_SIZE = 100;
+
+    private final HashMap<Object, String> mKnownCalls = new HashMap<>();
+    private int mResolveCount;
+    private ChildCallTracker<Object> mTracker;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mKnownCalls.clear();
+        mResolveCount = 0;
+        mTracker = new ChildCallTracker<>(new ChildCallTracker.Resolver<Object>() {
+            @Override
+            public String resolve(Object child) {
+                mResolveCount++;
+                return mKnownCalls.get(child);
+            }
+        });
+    }
+
+    public void testSameChildren_doesNotResolveAgain() {
+        final List<Object> children = createChildren(3);
+        assertTrue(mTracker.setChildren(children));
+        assertEquals(3, mResolveCount);
+        final List<String> ids = mTracker.getChildIds();
+
+        assertFalse(mTracker.setChildren(new ArrayList<>(children)));
+        assertEquals(3, mResolveCount);
+        assertSame(ids, mTracker.getChildIds());
+    }
+
+    public void testChildJoins_onlyResolvesNewChild() {
+        final List<Object> children = createChildren(3);
+        mTracker.setChildren(children);
+
+        children.addAll(createChildren(1));
+        assertTrue(mTracker.setChildren(children));
+        assertEquals(4, mResolveCount);
+        assertEquals(4, mTracker.getChildIds().size());
+    }
+
+    public void testChildLeaves_isRemoved() {
+        final List<Object> children = createChildren(3);
+        mTracker.setChildren(children);
+        final String leavingId = mKnownCalls.get(children.get(1));
+
+        children.remove(1);
+        assertTrue(mTracker.setChildren(children));
+        assertFalse(mTracker.getChildIds().contains(leavingId));
+        assertEquals(2, mTracker.getChildIds().size());
+    }
+
+    public void testUnknownChild_isRetriedUntilResolved() {
+        final List<Object> children = createChildren(2);
+        final Object lateChild = new Object();
+        children.add(lateChild);
+
+        mTracker.setChildren(children);
+        assertFalse(mTracker.isResolved());
+        assertEquals(2, mTracker.getChildIds().size());
+
+        mKnownCalls.put(lateChild, "late");
+        assertTrue(mTracker.setChildren(children));
+        assertTrue(mTracker.isResolved());
+        assertEquals("late", mTracker.getChildIds().get(2));
+    }
+
+    public void testChildIds_areImmutable() {
+        mTracker.setChildren(createChildren(2));
+        try {
+            mTracker.getChildIds().clear();
+            fail("Child ids should not be modifiable");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    /**
+     * Compares a participant-update burst on a large conference against rebuilding the child id
+     * list on every update, which is what Call used to do.
+     */
+    public void testBenchmark_largeConferenceUpdates() {
+        final List<Object> children = createChildren(CONFERENCE_SIZE);
+        mTracker.setChildren(children);
+        mResolveCount = 0;
+
+        // One update per participant, none of which change membership.
+        long start = System.nanoTime();
+        for (int i = 0; i < CONFERENCE_SIZE; i++) {
+            mTracker.setChildren(children);
+        }
+        final long incrementalNs = System.nanoTime() - start;
+        assertEquals(0, mResolveCount);
+
+        start = System.nanoTime();
+        for (int i = 0; i < CONFERENCE_SIZE; i++) {
+            final ArrayList<String> ids = new ArrayList<>();
+            for (int j = 0; j < children.size(); j++) {
+                mResolveCount++;
+                ids.add(mKnownCalls.get(children.get(j)));
+            }
+        }
+        final long rebuildNs = System.nanoTime() - start;
+        assertEquals(CONFERENCE_SIZE * CONFERENCE_SIZE, mResolveCount);
+
+        Log.i(this, "Conference of " + CONFERENCE_SIZE + ": incremental=" + incrementalNs
+                + "ns, rebuild=" + rebuildNs + "ns");
+    }
+
+    private List<Object> createChildren(int count) {
+        final List<Object> children = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Object child = new Object();
+            mKnownCalls.put(child, "Call_child_" + mKnownCalls.size());
+            children.add(child);
+        }
+        return children;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class CoalescingDispatcherTest extends AndroidTestCase {
+
+    private FakeClock mClock;
+    private int mTargetRuns;
+    private CoalescingDispatcher mDispatcher;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mTargetRuns = 0;
+        mDispatcher = new CoalescingDispatcher(mClock, new Runnable() {
+            @Override
+            public void run() {
+                mTargetRuns++;
+            }
+        });
+    }
+
+    public void testBurstWithinFrame_dispatchesOnce() {
+        mDispatcher.requestDispatch();
+        mClock.advance(5);
+        mDispatcher.requestDispatch();
+        mDispatcher.requestDispatch();
+        assertEquals(0, mTargetRuns);
+
+        mClock.advance(CoalescingDispatcher.FRAME_INTERVAL_MS);
+        assertEquals(1, mTargetRuns);
+        assertEquals(3, mDispatcher.getRequestCount());
+        assertFalse(mDispatcher.isPending());
+    }
+
+    public void testRequestsInSeparateFrames_dispatchSeparately() {
+        mDispatcher.requestDispatch();
+        mClock.advance(CoalescingDispatcher.FRAME_INTERVAL_MS);
+        mDispatcher.requestDispatch();
+        mClock.advance(CoalescingDispatcher.FRAME_INTERVAL_MS);
+
+        assertEquals(2, mTargetRuns);
+    }
+
+    public void testDispatchNow_absorbsPendingRequest() {
+        mDispatcher.requestDispatch();
+        mDispatcher.dispatchNow();
+        assertEquals(1, mTargetRuns);
+
+        mClock.advance(CoalescingDispatcher.FRAME_INTERVAL_MS);
+        assertEquals(1, mTargetRuns);
+    }
+
+    public void testFlush_onlyDispatchesWhenPending() {
+        mDispatcher.flush();
+        assertEquals(0, mTargetRuns);
+
+        mDispatcher.requestDispatch();
+        mDispatcher.flush();
+        assertEquals(1, mTargetRuns);
+        assertFalse(mDispatcher.isPending());
+    }
+
+    public void testCallList_coalescesUpdatesButNotIncomingCalls() {
+        final CallList callList = new CallList();
+        callList.setChangeDispatcherClock(mClock);
+        final CountingListener listener = new CountingListener();
+        callList.addListener(listener);
+        listener.mEvents.clear();
+
+        final Call active = new Call(Call.State.ACTIVE);
+        final Call held = new Call(Call.State.ONHOLD);
+        callList.onUpdate(active);
+        callList.onUpdate(held);
+        callList.onUpdate(active);
+        assertTrue(listener.mEvents.isEmpty());
+
+        // An incoming call is delivered at once, after the change it overtook.
+        final Call incoming = new Call(Call.State.CALL_WAITING);
+        callList.onIncoming(incoming, null);
+        assertEquals(2, listener.mEvents.size());
+        assertEquals("change", listener.mEvents.get(0));
+        assertEquals("incoming", listener.mEvents.get(1));
+
+        mClock.advance(CoalescingDispatcher.FRAME_INTERVAL_MS);
+        assertEquals(2, listener.mEvents.size());
+    }
+
+    /**
+     * Clock which only moves when told to, running posted callbacks as it passes their time.
+     */
+    private static class FakeClock implements CoalescingDispatcher.Clock {
+        private long mNow;
+        private final List<Runnable> mRunnables = new ArrayList<>();
+        private final List<Long> mTimes = new ArrayList<>();
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void postAtTime(Runnable r, long uptimeMillis) {
+            mRunnables.add(r);
+            mTimes.add(uptimeMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            for (int i = mRunnables.size() - 1; i >= 0; i--) {
+                if (mRunnables.get(i) == r) {
+                    mRunnables.remove(i);
+                    mTimes.remove(i);
+                }
+            }
+        }
+
+        void advance(long ms) {
+            mNow += ms;
+            for (int i = 0; i < mRunnables.size(); ) {
+                if (mTimes.get(i) <= mNow) {
+                    final Runnable r = mRunnables.remove(i);
+                    mTimes.remove(i);
+                    r.run();
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+
+    private static class CountingListener implements CallList.Listener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onIncomingCall(Call call) {
+            mEvents.add("incoming");
+        }
+
+        @Override
+        public void onUpgradeToVideo(Call call) {
+        }
+
+        @Override
+        public void onCallListChange(CallList callList) {
+            mEvents.add("change");
+        }
+
+        @Override
+        public void onDisconnect(Call call) {
+            mEvents.add("disconnect");
+        }
+    }
+}
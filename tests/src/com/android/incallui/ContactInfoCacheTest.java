@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telecom.TelecomManager;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+import com.android.incallui.ContactInfoCache.ContactInfoCacheCallback;
+import com.android.incallui.service.PhoneNumberService;
+
+import com.cyanogen.lookup.phonenumber.contract.LookupProvider;
+import com.cyanogen.lookup.phonenumber.request.LookupRequest;
+
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Drives the lookup state machine of {@link ContactInfoCache} with fake sources: the contacts
+ * query is answered by the test, and the remote sources are mocks whose listeners the test
+ * calls back.
+ */
+@SmallTest
+public class ContactInfoCacheTest extends InstrumentationTestCase {
+
+    private static final String DATABASE_NAME = "contact_info_cache_test.db";
+    private static final String NUMBER = "+16505551234";
+
+    /** Runs database work on the calling thread so that results are visible immediately. */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private Context mContext;
+    private CallerIdDiskCache mDiskCache;
+    private PhoneNumberService mPhoneNumberService;
+    private LookupProvider mLookupProvider;
+    private TestContactInfoCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        System.setProperty("dexmaker.dexcache", mContext.getCacheDir().getPath());
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDiskCache = new CallerIdDiskCache(mContext, DATABASE_NAME, DIRECT_EXECUTOR);
+        mPhoneNumberService = mock(PhoneNumberService.class);
+        mLookupProvider = mock(LookupProvider.class);
+        when(mLookupProvider.isEnabled()).thenReturn(true);
+        when(mLookupProvider.getDisplayName()).thenReturn("Provider");
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache = new TestContactInfoCache();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.clearCache();
+            }
+        });
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testHigherPriorityResult_isNotReplacedByLowerOne() {
+        mDiskCache.put(new CallerIdDiskCache.Record(NUMBER, "Cached Jane", null, null,
+                "Provider", 0, false, null, CallerIdDiskCache.SOURCE_LOOKUP_PROVIDER,
+                System.currentTimeMillis()));
+        final Call call = createCall("Call_0");
+        final RecordingCallback callback = new RecordingCallback();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.findInfo(call, true, callback);
+                // The contacts do not know the number either.
+                mCache.completeLocalQuery(call);
+            }
+        });
+
+        assertEquals("Cached Jane", mCache.getInfo(call.getId()).name);
+        assertEquals("Cached Jane", callback.mInfo.name);
+        // The fresh record spares the remote sources.
+        verify(mPhoneNumberService, never()).getPhoneNumberInfo(anyString(),
+                any(PhoneNumberService.NumberLookupListener.class),
+                any(PhoneNumberService.ImageLookupListener.class), anyBoolean());
+    }
+
+    public void testRemoteSources_waitForLocalMiss() {
+        final Call call = createCall("Call_0");
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.findInfo(call, true, null);
+            }
+        });
+        verify(mPhoneNumberService, never()).getPhoneNumberInfo(anyString(),
+                any(PhoneNumberService.NumberLookupListener.class),
+                any(PhoneNumberService.ImageLookupListener.class), anyBoolean());
+        verify(mLookupProvider, never()).fetchInfo(any(LookupRequest.class));
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.completeLocalQuery(call);
+            }
+        });
+        captureNumberLookupListener();
+        verify(mLookupProvider).fetchInfo(any(LookupRequest.class));
+    }
+
+    public void testDeadline_clearsLookupInProgressButKeepsCallbacks() {
+        mDiskCache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        final Call call = createCall("Call_0");
+        final RecordingCallback callback = new RecordingCallback();
+        final boolean[] inProgress = new boolean[1];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.setLookupDeadlineMillis(0);
+                mCache.findInfo(call, true, callback);
+                inProgress[0] = mCache.getInfo(call.getId()).isLookupInProgress;
+            }
+        });
+        assertTrue(inProgress[0]);
+
+        // Runs after the deadline posted by the lookup.
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                inProgress[0] = mCache.getInfo(call.getId()).isLookupInProgress;
+            }
+        });
+        assertFalse(inProgress[0]);
+        assertFalse(callback.mInfo.isLookupInProgress);
+
+        final PhoneNumberService.NumberLookupListener listener = captureNumberLookupListener();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPhoneNumberInfoComplete(createPhoneNumberInfo(null));
+            }
+        });
+        assertEquals("Remote Jane", callback.mInfo.name);
+    }
+
+    public void testFollower_getsResultAndPhotoOfLeader() {
+        mDiskCache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        final Call leader = createCall("Call_0");
+        final Call follower = createCall("Call_1");
+        final RecordingCallback leaderCallback = new RecordingCallback();
+        final RecordingCallback followerCallback = new RecordingCallback();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.findInfo(leader, true, leaderCallback);
+                mCache.findInfo(follower, true, followerCallback);
+            }
+        });
+
+        final ArgumentCaptor<PhoneNumberService.NumberLookupListener> listener =
+                ArgumentCaptor.forClass(PhoneNumberService.NumberLookupListener.class);
+        final ArgumentCaptor<PhoneNumberService.ImageLookupListener> imageListener =
+                ArgumentCaptor.forClass(PhoneNumberService.ImageLookupListener.class);
+        // Only the leader asks the remote sources.
+        verify(mPhoneNumberService, times(1)).getPhoneNumberInfo(anyString(),
+                listener.capture(), imageListener.capture(), anyBoolean());
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                listener.getValue().onPhoneNumberInfoComplete(
+                        createPhoneNumberInfo("http://example.com/photo.png"));
+                imageListener.getValue().onImageFetchComplete(
+                        Bitmap.createBitmap(10, 10, Bitmap.Config.RGB_565));
+            }
+        });
+
+        assertEquals("Remote Jane", followerCallback.mInfo.name);
+        assertNotNull(followerCallback.mImage);
+        assertNotNull(followerCallback.mImage.photo);
+        assertSame(leaderCallback.mImage, followerCallback.mImage);
+        assertEquals("Remote Jane", mCache.getInfo(follower.getId()).name);
+    }
+
+    public void testDisconnect_dropsLateResults() {
+        mDiskCache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        final Call call = createCall("Call_0");
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.findInfo(call, true, null);
+            }
+        });
+        final PhoneNumberService.NumberLookupListener listener = captureNumberLookupListener();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.onCallDisconnected(call);
+                listener.onPhoneNumberInfoComplete(createPhoneNumberInfo(null));
+            }
+        });
+
+        final ContactCacheEntry entry = mCache.getInfo(call.getId());
+        assertTrue(entry == null || !"Remote Jane".equals(entry.name));
+        assertNull(mDiskCache.get(NUMBER));
+    }
+
+    public void testClearCache_dropsLateResults() {
+        mDiskCache.putMiss(NUMBER, CallerIdDiskCache.SOURCE_CONTACTS, null);
+        final Call call = createCall("Call_0");
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.findInfo(call, true, null);
+            }
+        });
+        final PhoneNumberService.NumberLookupListener listener = captureNumberLookupListener();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCache.clearCache();
+                listener.onPhoneNumberInfoComplete(createPhoneNumberInfo(null));
+            }
+        });
+
+        assertNull(mCache.getInfo(call.getId()));
+        assertNull(mDiskCache.get(NUMBER));
+    }
+
+    private void runOnMainSync(Runnable runnable) {
+        getInstrumentation().runOnMainSync(runnable);
+    }
+
+    private PhoneNumberService.NumberLookupListener captureNumberLookupListener() {
+        final ArgumentCaptor<PhoneNumberService.NumberLookupListener> listener =
+                ArgumentCaptor.forClass(PhoneNumberService.NumberLookupListener.class);
+        verify(mPhoneNumberService).getPhoneNumberInfo(anyString(), listener.capture(),
+                any(PhoneNumberService.ImageLookupListener.class), anyBoolean());
+        return listener.getValue();
+    }
+
+    private static Call createCall(String id) {
+        final Call call = mock(Call.class);
+        when(call.getId()).thenReturn(id);
+        when(call.getNumber()).thenReturn(NUMBER);
+        when(call.getNumberPresentation()).thenReturn(TelecomManager.PRESENTATION_ALLOWED);
+        when(call.getCnapNamePresentation()).thenReturn(TelecomManager.PRESENTATION_ALLOWED);
+        when(call.getState()).thenReturn(Call.State.INCOMING);
+        return call;
+    }
+
+    private static PhoneNumberService.PhoneNumberInfo createPhoneNumberInfo(String imageUrl) {
+        final PhoneNumberService.PhoneNumberInfo info =
+                mock(PhoneNumberService.PhoneNumberInfo.class);
+        when(info.getDisplayName()).thenReturn("Remote Jane");
+        when(info.getNumber()).thenReturn(NUMBER);
+        when(info.getPhoneType()).thenReturn(Phone.TYPE_MOBILE);
+        when(info.getImageUrl()).thenReturn(imageUrl);
+        return info;
+    }
+
+    /**
+     * Answers the contacts query from the test instead of the contacts provider.
+     */
+    private class TestContactInfoCache extends ContactInfoCache {
+        private CallerInfoAsyncQuery.OnQueryCompleteListener mLocalQueryListener;
+
+        TestContactInfoCache() {
+            super(mContext, mDiskCache, mPhoneNumberService, mLookupProvider,
+                    new Handler(Looper.getMainLooper()));
+        }
+
+        @Override
+        CallerInfo buildCallerInfo(Call call) {
+            final CallerInfo info = new CallerInfo();
+            info.phoneNumber = call.getNumber();
+            info.numberPresentation = call.getNumberPresentation();
+            info.namePresentation = call.getCnapNamePresentation();
+            return info;
+        }
+
+        @Override
+        void startLocalQuery(Call call, CallerInfo callerInfo,
+                CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
+            mLocalQueryListener = listener;
+        }
+
+        /**
+         * Answers the pending contacts query with a miss.
+         */
+        void completeLocalQuery(Call call) {
+            mLocalQueryListener.onQueryComplete(0, call, buildCallerInfo(call));
+        }
+    }
+
+    private static class RecordingCallback implements ContactInfoCacheCallback {
+        ContactCacheEntry mInfo;
+        ContactCacheEntry mImage;
+
+        @Override
+        public void onContactInfoComplete(String callId, ContactCacheEntry entry) {
+            mInfo = entry;
+        }
+
+        @Override
+        public void onImageLoadComplete(String callId, ContactCacheEntry entry) {
+            mImage = entry;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+
+@SmallTest
+public class ContactPhotoCacheTest extends AndroidTestCase {
+
+    private static final String DISPLAY_PHOTO = "content://com.android.contacts/display_photo/1";
+    private static final String THUMBNAIL_1 = "content://com.android.contacts/contacts/1/photo";
+    private static final String THUMBNAIL_2 = "content://com.android.contacts/contacts/2/photo";
+    private static final String REMOTE_PHOTO = "http://example.com/photo.png";
+
+    /** Runs disk work on the test thread so that results are visible immediately. */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mDirectory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "caller_photos_test");
+        deleteDirectory();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testPut_isServedFromMemory() {
+        final ContactPhotoCache cache = createCache();
+        final Bitmap bitmap = createBitmap(10, 10);
+        cache.put(REMOTE_PHOTO, bitmap);
+        assertSame(bitmap, cache.getFromMemory(REMOTE_PHOTO));
+        assertSame(bitmap, cache.get(REMOTE_PHOTO));
+    }
+
+    public void testPut_survivesOnDiskScaledDown() {
+        createCache().put(REMOTE_PHOTO, createBitmap(1440, 720));
+
+        final ContactPhotoCache reloaded = createCache();
+        assertNull(reloaded.getFromMemory(REMOTE_PHOTO));
+        final Bitmap bitmap = reloaded.get(REMOTE_PHOTO);
+        assertNotNull(bitmap);
+        assertEquals(720, bitmap.getWidth());
+        assertEquals(360, bitmap.getHeight());
+        assertNotNull(reloaded.getFromMemory(REMOTE_PHOTO));
+    }
+
+    public void testDiskHit_marksPhotoAsRecentlyUsed() {
+        createCache().put(REMOTE_PHOTO, createBitmap(10, 10));
+        final File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        final long dayAgo = System.currentTimeMillis() - 24 * 60 * 60 * 1000;
+        assertTrue(files[0].setLastModified(dayAgo));
+
+        assertNotNull(createCache().get(REMOTE_PHOTO));
+        assertTrue(files[0].lastModified() > dayAgo);
+    }
+
+    public void testInvalidate() {
+        final ContactPhotoCache cache = createCache();
+        cache.put(REMOTE_PHOTO, createBitmap(10, 10));
+        cache.invalidate(REMOTE_PHOTO);
+        assertNull(cache.get(REMOTE_PHOTO));
+        assertNull(createCache().get(REMOTE_PHOTO));
+    }
+
+    public void testInvalidateContact_onlyDropsItsThumbnail() {
+        final ContactPhotoCache cache = createCache();
+        cache.put(THUMBNAIL_1, createBitmap(10, 10));
+        cache.put(THUMBNAIL_2, createBitmap(10, 10));
+        cache.put(DISPLAY_PHOTO, createBitmap(10, 10));
+        cache.invalidateContact(1);
+
+        assertNull(cache.get(THUMBNAIL_1));
+        assertNotNull(cache.get(THUMBNAIL_2));
+        assertNotNull(cache.get(DISPLAY_PHOTO));
+        assertNull(createCache().get(THUMBNAIL_1));
+    }
+
+    public void testInvalidateContactPhotos_keepsDisplayAndRemotePhotos() {
+        final ContactPhotoCache cache = createCache();
+        cache.put(THUMBNAIL_1, createBitmap(10, 10));
+        cache.put(DISPLAY_PHOTO, createBitmap(10, 10));
+        cache.put(REMOTE_PHOTO, createBitmap(10, 10));
+        cache.invalidateContactPhotos();
+
+        assertNull(cache.get(THUMBNAIL_1));
+        assertNotNull(cache.get(DISPLAY_PHOTO));
+        assertNotNull(cache.get(REMOTE_PHOTO));
+        final ContactPhotoCache reloaded = createCache();
+        assertNull(reloaded.get(THUMBNAIL_1));
+        assertNotNull(reloaded.get(DISPLAY_PHOTO));
+        assertNotNull(reloaded.get(REMOTE_PHOTO));
+    }
+
+    private ContactPhotoCache createCache() {
+        return new ContactPhotoCache(mDirectory, DIRECT_EXECUTOR);
+    }
+
+    private static Bitmap createBitmap(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+
+@SmallTest
+public class ContactsAsyncHelperTest extends AndroidTestCase {
+
+    public void testSampleSize_keepsBothEdgesAboveTarget() {
+        assertEquals(1, ContactsAsyncHelper.getSampleSize(720, 720, 1920));
+        assertEquals(1, ContactsAsyncHelper.getSampleSize(3000, 3000, 1920));
+        assertEquals(2, ContactsAsyncHelper.getSampleSize(4000, 4000, 1920));
+        assertEquals(4, ContactsAsyncHelper.getSampleSize(8000, 8000, 1920));
+        // The shorter edge decides.
+        assertEquals(1, ContactsAsyncHelper.getSampleSize(8000, 2000, 1920));
+        // Against the shorter edge of a 1080p screen, large photos are subsampled.
+        assertEquals(2, ContactsAsyncHelper.getSampleSize(3000, 3000, 1080));
+        assertEquals(1, ContactsAsyncHelper.getSampleSize(1440, 1440, 1080));
+    }
+
+    public void testDecodeIcon_scalesLongerEdgeToIconSize() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bitmap.createBitmap(720, 540, Bitmap.Config.ARGB_8888)
+                .compress(Bitmap.CompressFormat.PNG, 100, out);
+        final byte[] data = out.toByteArray();
+
+        final Bitmap icon = ContactsAsyncHelper.decodeIcon(data, data.length, 720, 540, 128,
+                new byte[16 * 1024]);
+        assertNotNull(icon);
+        assertEquals(128, icon.getWidth());
+        assertEquals(96, icon.getHeight());
+    }
+}
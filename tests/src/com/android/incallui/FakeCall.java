@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import java.util.List;
+
+/**
+ * Call without a telecom counterpart whose conference topology and capabilities are set by the
+ * test. Children are tracked by {@link ChildCallTracker}, as those of real calls are.
+ */
+public class FakeCall extends Call {
+    private final ChildCallTracker<Call> mChildCallTracker =
+            new ChildCallTracker<>(new ChildCallTracker.Resolver<Call>() {
+                @Override
+                public String resolve(Call child) {
+                    return child.getId();
+                }
+            });
+    private Call mParent;
+    private int mCapabilities;
+
+    public FakeCall(int state) {
+        super(state);
+    }
+
+    /**
+     * @param parent The conference this call is a child of, or null.
+     * @param children The children of this call if it is a conference, in display order.
+     * @return {@code true} if the list of child ids changed.
+     */
+    public boolean setConference(Call parent, List<Call> children) {
+        mParent = parent;
+        return mChildCallTracker.setChildren(children);
+    }
+
+    public void setCapabilities(int capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    @Override
+    public boolean can(int capabilities) {
+        return capabilities == (capabilities & mCapabilities);
+    }
+
+    @Override
+    int getCallCapabilities() {
+        return mCapabilities;
+    }
+
+    @Override
+    public List<String> getChildCallIds() {
+        return mChildCallTracker.getChildIds();
+    }
+
+    @Override
+    public String getParentId() {
+        return mParent == null ? null : mParent.getId();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class GeoDescriptionCacheTest extends AndroidTestCase {
+
+    public void testSameArea_reusesDescription() {
+        final GeoDescriptionCache cache = GeoDescriptionCache.getInstance(getContext());
+        final String description = cache.getDescription("+16502530000");
+        final int hits = cache.getHitCount();
+        final int misses = cache.getMissCount();
+
+        assertEquals(description, cache.getDescription("+16502531234"));
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(misses, cache.getMissCount());
+    }
+
+    public void testOtherArea_isLookedUp() {
+        final GeoDescriptionCache cache = GeoDescriptionCache.getInstance(getContext());
+        cache.getDescription("+12125550000");
+        final int misses = cache.getMissCount();
+
+        cache.getDescription("+13125550000");
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    public void testEmptyNumber_hasNoDescription() {
+        assertNull(GeoDescriptionCache.getInstance(getContext()).getDescription(""));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class LatencyHistogramTest extends AndroidTestCase {
+
+    public void testBuckets_areContiguous() {
+        long expectedLowerBound = 0;
+        for (int i = 0; i < LatencyHistogram.getBucketIndex(1 << 20); i++) {
+            assertEquals(i, LatencyHistogram.getBucketIndex(expectedLowerBound));
+            final long upperBound = LatencyHistogram.getBucketUpperBound(i);
+            assertEquals(i, LatencyHistogram.getBucketIndex(upperBound));
+            expectedLowerBound = upperBound + 1;
+        }
+    }
+
+    public void testPercentiles_withinBucketPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getTotalCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean());
+        assertWithinPrecision(500000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(990000, histogram.getValueAtPercentile(99));
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    public void testOutOfRangeValues_areClamped() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertTrue(histogram.getMax() < Long.MAX_VALUE);
+    }
+
+    public void testReset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(42);
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
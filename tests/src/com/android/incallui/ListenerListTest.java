@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class ListenerListTest extends AndroidTestCase {
+
+    private ListenerList<TestListener> mListeners;
+    private final List<String> mCalls = new ArrayList<>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mListeners = new ListenerList<>(TestListener.class);
+        mCalls.clear();
+    }
+
+    public void testDispatch_followsRegistrationOrder() {
+        mListeners.add(new TestListener("a"));
+        mListeners.add(new TestListener("b"));
+        mListeners.add(new TestListener("c"));
+
+        dispatch();
+        assertEquals("[a, b, c]", mCalls.toString());
+    }
+
+    public void testAdd_rejectsDuplicates() {
+        final TestListener listener = new TestListener("a");
+        assertTrue(mListeners.add(listener));
+        assertFalse(mListeners.add(listener));
+        assertEquals(1, mListeners.size());
+    }
+
+    public void testRemove() {
+        final TestListener a = new TestListener("a");
+        final TestListener b = new TestListener("b");
+        mListeners.add(a);
+        mListeners.add(b);
+
+        assertTrue(mListeners.remove(a));
+        assertFalse(mListeners.remove(a));
+        assertFalse(mListeners.contains(a));
+        dispatch();
+        assertEquals("[b]", mCalls.toString());
+
+        mListeners.remove(b);
+        assertTrue(mListeners.isEmpty());
+    }
+
+    public void testSnapshot_isStableDuringDispatch() {
+        final TestListener late = new TestListener("late");
+        mListeners.add(new TestListener("a") {
+            @Override
+            void onEvent() {
+                super.onEvent();
+                mListeners.add(late);
+            }
+        });
+
+        dispatch();
+        assertEquals("[a]", mCalls.toString());
+        assertTrue(mListeners.contains(late));
+    }
+
+    public void testCallListDispatch_allocatesNothing() {
+        final CallList callList = new CallList();
+        final CountingCallListListener[] listeners = new CountingCallListListener[8];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new CountingCallListListener();
+            callList.addListener(listeners[i]);
+        }
+        final CoalescingDispatcher dispatcher = callList.getChangeDispatcher();
+        // Warm up so that class loading and JIT do not show up in the counters.
+        dispatcher.dispatchNow();
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < 100; i++) {
+                dispatcher.dispatchNow();
+            }
+            assertEquals(0, Debug.getThreadAllocCount());
+            assertEquals(0, Debug.getThreadAllocSize());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        for (CountingCallListListener listener : listeners) {
+            // One change on registration, one for the warm up.
+            assertEquals(102, listener.mChangeCount);
+        }
+    }
+
+    private void dispatch() {
+        final TestListener[] listeners = mListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onEvent();
+        }
+    }
+
+    private class TestListener {
+        private final String mName;
+
+        TestListener(String name) {
+            mName = name;
+        }
+
+        void onEvent() {
+            mCalls.add(mName);
+        }
+    }
+
+    private static class CountingCallListListener implements CallList.Listener {
+        int mChangeCount;
+
+        @Override
+        public void onIncomingCall(Call call) {
+        }
+
+        @Override
+        public void onUpgradeToVideo(Call call) {
+        }
+
+        @Override
+        public void onCallListChange(CallList callList) {
+            mChangeCount++;
+        }
+
+        @Override
+        public void onDisconnect(Call call) {
+        }
+    }
+}
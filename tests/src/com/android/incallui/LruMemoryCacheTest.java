@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+
+@SmallTest
+public class LruMemoryCacheTest extends AndroidTestCase {
+
+    private static final LruMemoryCache.Sizer<byte[]> ARRAY_SIZER =
+            new LruMemoryCache.Sizer<byte[]>() {
+                @Override
+                public int sizeOf(byte[] value) {
+                    return value.length;
+                }
+            };
+
+    private final HashSet<String> mPinned = new HashSet<>();
+    private LruMemoryCache<String, byte[]> mCache;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mPinned.clear();
+        mCache = new LruMemoryCache<>("test", 100, ARRAY_SIZER,
+                new LruMemoryCache.Pinning<String>() {
+                    @Override
+                    public boolean isPinned(String key) {
+                        return mPinned.contains(key);
+                    }
+                });
+    }
+
+    public void testOverBudget_evictsLeastRecentlyUsed() {
+        mCache.put("a", new byte[40]);
+        mCache.put("b", new byte[40]);
+        mCache.get("a");
+        mCache.put("c", new byte[40]);
+
+        assertNotNull(mCache.peek("a"));
+        assertNull(mCache.peek("b"));
+        assertNotNull(mCache.peek("c"));
+        assertEquals(80, mCache.getBytes());
+        assertEquals(1, mCache.getEvictionCount());
+    }
+
+    public void testValueUnderSeveralKeys_isChargedOnce() {
+        final byte[] shared = new byte[40];
+        mCache.put("leader", shared);
+        mCache.put("follower", shared);
+        assertEquals(40, mCache.getBytes());
+
+        mCache.remove("leader");
+        assertEquals(40, mCache.getBytes());
+        mCache.put("follower", new byte[10]);
+        assertEquals(10, mCache.getBytes());
+        mCache.remove("follower");
+        assertEquals(0, mCache.getBytes());
+    }
+
+    public void testPinnedEntry_isNotEvicted() {
+        mPinned.add("a");
+        mCache.put("a", new byte[60]);
+        mCache.put("b", new byte[60]);
+
+        assertNotNull(mCache.peek("a"));
+        assertNotNull(mCache.peek("b"));
+        assertEquals(120, mCache.getBytes());
+
+        mCache.put("c", new byte[10]);
+        assertNull(mCache.peek("b"));
+        assertEquals(70, mCache.getBytes());
+    }
+
+    public void testPutAgain_reaccountsSize() {
+        mCache.put("a", new byte[10]);
+        mCache.put("a", new byte[30]);
+        assertEquals(30, mCache.getBytes());
+        mCache.remove("a");
+        assertEquals(0, mCache.getBytes());
+    }
+
+    public void testCounters() {
+        mCache.put("a", new byte[1]);
+        mCache.get("a");
+        mCache.get("b");
+        mCache.peek("c");
+
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    public void testSizeOfDrawable_countsBitmapBytes() {
+        final Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        assertEquals(400,
+                LruMemoryCache.sizeOf(new BitmapDrawable(getContext().getResources(), bitmap)));
+        assertEquals(0, LruMemoryCache.sizeOf(new ColorDrawable()));
+        assertEquals(0, LruMemoryCache.sizeOf(null));
+    }
+}
@@ -35,6 +35,7 @@ import java.util.HashSet;
 public class MockCallListWrapper {
     private CallList mCallList;
     private HashSet<Integer> mCallSet = new HashSet<>();
+    private long mSnapshotVersion;
 
     public MockCallListWrapper() {
         mCallList = Mockito.mock(CallList.class);
@@ -51,6 +52,14 @@ public class MockCallListWrapper {
                 }
             }
         });
+        // The call states above are stubbed rather than tracked by the call list, so build a
+        // fresh snapshot every time instead of relying on the call list's versioning.
+        when(mCallList.getSnapshot()).thenAnswer(new Answer<CallListSnapshot>() {
+            @Override
+            public CallListSnapshot answer(InvocationOnMock i) throws Throwable {
+                return new CallListSnapshot(mCallList, ++mSnapshotVersion);
+            }
+        });
     }
 
     public CallList getCallList() {
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.incallui;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class NumberNormalizerTest extends AndroidTestCase {
+
+    private static final String NUMBER = "+1 650-555-1234";
+
+    private NumberNormalizer mNormalizer;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mNormalizer = NumberNormalizer.getInstance(getContext());
+        mNormalizer.invalidate();
+    }
+
+    public void testE164() {
+        assertEquals("+16505551234", mNormalizer.getE164(NUMBER));
+        assertNull(mNormalizer.getE164(""));
+        assertNull(mNormalizer.getE164(null));
+    }
+
+    public void testForms_areMemoized() {
+        final int misses = mNormalizer.getMissCount();
+        final String e164 = mNormalizer.getE164(NUMBER);
+        assertSame(e164, mNormalizer.getE164(NUMBER));
+        assertSame(mNormalizer.getParsedNumber(NUMBER), mNormalizer.getParsedNumber(NUMBER));
+        assertSame(mNormalizer.getDisplayNumber(NUMBER), mNormalizer.getDisplayNumber(NUMBER));
+        assertEquals(misses + 1, mNormalizer.getMissCount());
+    }
+
+    public void testInvalidate_dropsForms() {
+        mNormalizer.getE164(NUMBER);
+        final int misses = mNormalizer.getMissCount();
+        mNormalizer.invalidate();
+        mNormalizer.getE164(NUMBER);
+        assertEquals(misses + 1, mNormalizer.getMissCount());
+    }
+
+    public void testAreSameNumber() {
+        assertTrue(mNormalizer.areSameNumber(null, null));
+        assertTrue(mNormalizer.areSameNumber(NUMBER, NUMBER));
+        assertTrue(mNormalizer.areSameNumber(NUMBER, "+16505551234"));
+        assertFalse(mNormalizer.areSameNumber(NUMBER, "+16505554321"));
+        assertFalse(mNormalizer.areSameNumber(NUMBER, null));
+    }
+}